@@ -149,7 +149,7 @@ public class NarrativeService implements ApplicationContextAware {
             OutputStream out) throws IOException {
         boolean found = false;
 
-        for (Resource resource : applicationContext.getResources(path)) {
+        for (Resource resource : ResourceIndex.getResources(applicationContext, path)) {
             log.info("Found FHIR narrative template at " + resource);
             found = true;
 
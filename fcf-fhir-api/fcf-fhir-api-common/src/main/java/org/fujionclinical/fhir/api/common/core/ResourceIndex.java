@@ -0,0 +1,210 @@
+/*
+ * #%L
+ * Fujion Clinical Framework
+ * %%
+ * Copyright (C) 2020 fujionclinical.org
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.fujionclinical.org/licensing/disclaimer
+ *
+ * #L%
+ */
+package org.fujionclinical.fhir.api.common.core;
+
+import org.apache.commons.io.IOUtils;
+import org.fujion.common.Logger;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.UrlResource;
+import org.springframework.core.io.support.ResourcePatternResolver;
+import org.springframework.util.AntPathMatcher;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Locates classpath resources using index files generated at build time, avoiding a scan of every
+ * jar on the classpath. Each jar built with the index step contains an index file at
+ * {@value #INDEX_PATH} listing the paths (relative to the classpath root) of the resources it
+ * contains that are of interest at startup. Classpath roots without an index file are scanned
+ * conventionally, as is the entire classpath if the search pattern is not a
+ * <code>classpath*:</code> pattern or has no fixed root directory.
+ */
+public class ResourceIndex {
+
+    private static final Logger log = Logger.create(ResourceIndex.class);
+
+    /**
+     * Location of the index file within a jar.
+     */
+    public static final String INDEX_PATH = "META-INF/fcf-resource.index";
+
+    /**
+     * Indexed resource paths, by class loader and classpath root. Class loaders are weakly
+     * referenced, so that the index does not prevent a redeployed application's class loader from
+     * being collected.
+     */
+    private static final Map<ClassLoader, Map<String, List<String>>> indexes =
+            Collections.synchronizedMap(new WeakHashMap<>());
+
+    private static final AntPathMatcher matcher = new AntPathMatcher();
+
+    /**
+     * Returns all resources matching the pattern.
+     *
+     * @param resolver The resource resolver (typically, the application context).
+     * @param pattern  The search pattern.
+     * @return The matching resources.
+     * @throws IOException If an error occurred during a scan.
+     */
+    public static Resource[] getResources(
+            ResourcePatternResolver resolver,
+            String pattern) throws IOException {
+        String prefix = ResourcePatternResolver.CLASSPATH_ALL_URL_PREFIX;
+
+        if (pattern.startsWith(prefix)) {
+            ClassLoader classLoader = resolver.getClassLoader() == null ? ResourceIndex.class.getClassLoader()
+                    : resolver.getClassLoader();
+            Map<String, List<String>> index = getIndex(classLoader);
+            String path = pattern.substring(prefix.length()).replaceFirst("^/+", "");
+            String rootDir = getRootDir(path);
+
+            if (!index.isEmpty() && !rootDir.isEmpty()) {
+                return getResources(resolver, classLoader, index, path, rootDir);
+            }
+        }
+
+        return resolver.getResources(pattern);
+    }
+
+    /**
+     * Returns all resources matching the pattern, consulting the index for classpath roots that
+     * have one and scanning those that do not.
+     *
+     * @param resolver    The resource resolver.
+     * @param classLoader The class loader.
+     * @param index       The combined index.
+     * @param path        The search pattern, relative to the classpath root.
+     * @param rootDir     The fixed root directory of the search pattern.
+     * @return The matching resources.
+     * @throws IOException If an error occurred during a scan.
+     */
+    private static Resource[] getResources(
+            ResourcePatternResolver resolver,
+            ClassLoader classLoader,
+            Map<String, List<String>> index,
+            String path,
+            String rootDir) throws IOException {
+        List<Resource> resources = new ArrayList<>();
+
+        index.forEach((root, paths) -> {
+            for (String indexed : paths) {
+                if (matcher.match(path, indexed)) {
+                    try {
+                        resources.add(new UrlResource(root + indexed));
+                    } catch (MalformedURLException e) {
+                        log.warn(() -> "Invalid resource index entry: " + root + indexed);
+                    }
+                }
+            }
+        });
+
+        Enumeration<URL> urls = classLoader.getResources(rootDir);
+
+        while (urls.hasMoreElements()) {
+            String external = urls.nextElement().toExternalForm();
+            String root = external.endsWith(rootDir) ? external.substring(0, external.length() - rootDir.length()) : null;
+
+            if (root == null || !index.containsKey(root)) {
+                log.debug(() -> "No resource index for " + external + ", scanning.");
+                Collections.addAll(resources, resolver.getResources(external + path.substring(rootDir.length())));
+            }
+        }
+
+        return resources.toArray(new Resource[0]);
+    }
+
+    /**
+     * Returns the portion of a search pattern preceding its first wildcard, up to and including the
+     * last path separator (e.g., <code>scenarios/</code> for <code>scenarios/&#42;&#42;/&#42;.yaml</code>).
+     * If the pattern contains no wildcard, the entire pattern is returned.
+     *
+     * @param path The search pattern, relative to the classpath root.
+     * @return The root directory (empty if the pattern begins with a wildcard).
+     */
+    private static String getRootDir(String path) {
+        int end = path.length();
+
+        while (end > 0 && matcher.isPattern(path.substring(0, end))) {
+            end = path.lastIndexOf('/', end - 2) + 1;
+        }
+
+        return path.substring(0, end);
+    }
+
+    /**
+     * Returns the contents of all index files visible to the class loader, loading them on first
+     * use.
+     *
+     * @param classLoader The class loader.
+     * @return The indexed resource paths by classpath root (empty if no index files were found).
+     */
+    private static Map<String, List<String>> getIndex(ClassLoader classLoader) {
+        return indexes.computeIfAbsent(classLoader, ResourceIndex::loadIndex);
+    }
+
+    private static Map<String, List<String>> loadIndex(ClassLoader classLoader) {
+        Map<String, List<String>> index = new LinkedHashMap<>();
+        int count = 0;
+
+        try {
+            Enumeration<URL> urls = classLoader.getResources(INDEX_PATH);
+
+            while (urls.hasMoreElements()) {
+                URL url = urls.nextElement();
+                String external = url.toExternalForm();
+                String root = external.substring(0, external.length() - INDEX_PATH.length());
+                List<String> paths = index.computeIfAbsent(root, k -> new ArrayList<>());
+
+                try (InputStream in = url.openStream()) {
+                    for (String path : IOUtils.readLines(in, StandardCharsets.UTF_8)) {
+                        path = path.trim();
+
+                        if (!path.isEmpty()) {
+                            paths.add(path);
+                            count++;
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            log.warn(() -> "Error reading resource index, falling back to classpath scan.", e);
+            return Collections.emptyMap();
+        }
+
+        int entryCount = count;
+        log.debug(() -> "Loaded " + entryCount + " entries from " + index.size() + " resource index file(s).");
+        return Collections.unmodifiableMap(index);
+    }
+
+    private ResourceIndex() {
+    }
+
+}
@@ -0,0 +1,129 @@
+/*
+ * #%L
+ * Fujion Clinical Framework
+ * %%
+ * Copyright (C) 2020 fujionclinical.org
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.fujionclinical.org/licensing/disclaimer
+ *
+ * #L%
+ */
+package org.fujionclinical.fhir.api.common.core;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+
+public class ResourceIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Creates a classpath root containing the specified files, each of which contains its own
+     * path.
+     */
+    private File createRoot(
+            String name,
+            String... paths) throws IOException {
+        File root = folder.newFolder(name);
+
+        for (String path : paths) {
+            File file = new File(root, path);
+            file.getParentFile().mkdirs();
+            Files.write(file.toPath(), path.getBytes(StandardCharsets.UTF_8));
+        }
+
+        return root;
+    }
+
+    private void writeIndex(
+            File root,
+            String... paths) throws IOException {
+        File index = new File(root, ResourceIndex.INDEX_PATH);
+        index.getParentFile().mkdirs();
+        Files.write(index.toPath(), Arrays.asList(paths), StandardCharsets.UTF_8);
+    }
+
+    private Set<String> getResources(
+            String pattern,
+            File... roots) throws IOException {
+        URL[] urls = new URL[roots.length];
+
+        for (int i = 0; i < roots.length; i++) {
+            urls[i] = roots[i].toURI().toURL();
+        }
+
+        try (URLClassLoader classLoader = new URLClassLoader(urls, null)) {
+            Set<String> contents = new TreeSet<>();
+
+            for (Resource resource : ResourceIndex.getResources(new PathMatchingResourcePatternResolver(classLoader), pattern)) {
+                try (InputStream in = resource.getInputStream()) {
+                    contents.add(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+                }
+            }
+
+            return contents;
+        }
+    }
+
+    @Test
+    public void testIndexedAndUnindexedRoots() throws IOException {
+        // Only indexed entries are returned from an indexed root; c.yaml is deliberately not indexed.
+        File indexed = createRoot("indexed", "scenarios/a/a.yaml", "scenarios/b.yaml", "scenarios/c.yaml", "other/d.yaml");
+        writeIndex(indexed, "scenarios/a/a.yaml", "scenarios/b.yaml", "other/d.yaml", "META-INF/x.smart");
+        // A root without an index is scanned.
+        File unindexed = createRoot("unindexed", "scenarios/e.yaml", "scenarios/e/f.yaml", "other/g.yaml");
+        assertEquals(new TreeSet<>(Arrays.asList("scenarios/a/a.yaml", "scenarios/b.yaml", "scenarios/e.yaml", "scenarios/e/f.yaml")),
+                getResources("classpath*:scenarios/**/*.yaml", indexed, unindexed));
+        assertEquals(new TreeSet<>(Arrays.asList("scenarios/b.yaml", "scenarios/e.yaml")),
+                getResources("classpath*:scenarios/*.yaml", indexed, unindexed));
+    }
+
+    @Test
+    public void testPatternWithoutRoot() throws IOException {
+        // A pattern without a fixed root directory is resolved by a full scan.
+        File indexed = createRoot("indexed", "scenarios/b.yaml", "scenarios/c.yaml");
+        writeIndex(indexed, "scenarios/b.yaml");
+        assertEquals(new TreeSet<>(Arrays.asList("scenarios/b.yaml", "scenarios/c.yaml")),
+                getResources("classpath*:**/*.yaml", indexed));
+    }
+
+    @Test
+    public void testNoIndex() throws IOException {
+        File unindexed = createRoot("unindexed", "scenarios/a.yaml", "scenarios/a/b.yaml");
+        assertEquals(new TreeSet<>(Arrays.asList("scenarios/a.yaml", "scenarios/a/b.yaml")),
+                getResources("classpath*:scenarios/**/*.yaml", unindexed));
+    }
+
+}
@@ -32,7 +32,7 @@ import org.coolmodel.mediator.fhir.common.AbstractFhirDataSource;
 import org.coolmodel.util.CoolUtils;
 import org.fujionclinical.fhir.api.common.core.NarrativeService;
 import org.fujionclinical.fhir.subscription.common.BaseSubscriptionWrapper;
-import org.fujionclinical.fhir.subscription.common.ISubscriptionCallback;
+import org.fujionclinical.fhir.subscription.common.ISubscriptionBatchCallback;
 import org.fujionclinical.fhir.subscription.common.ResourceSubscriptionManager;
 import org.fujionclinical.sharedforms.controller.AbstractResourceListView;
 import org.hl7.fhir.instance.model.api.IBaseResource;
@@ -55,7 +55,7 @@ public abstract class BaseResourceListView<R extends IBaseResource, M, S extends
 
     private final List<BaseSubscriptionWrapper> subscriptions = new ArrayList<>();
 
-    private final ISubscriptionCallback subscriptionListener = (eventName, resource) -> refresh();
+    private final ISubscriptionBatchCallback subscriptionListener = (eventName, batch) -> refresh();
 
     private NarrativeService narrativeService;
 
@@ -27,6 +27,7 @@ package org.fujionclinical.fhir.plugin.scenario.controller;
 
 import org.fujion.annotation.EventHandler;
 import org.fujion.annotation.WiredComponent;
+import org.fujion.client.ExecutionContext;
 import org.fujion.common.MiscUtil;
 import org.fujion.common.StrUtil;
 import org.fujion.component.*;
@@ -40,10 +41,18 @@ import org.fujion.model.ListModel;
 import org.fujionclinical.api.context.ISurveyResponse;
 import org.fujionclinical.fhir.scenario.common.ScenarioBase;
 import org.fujionclinical.fhir.scenario.common.ScenarioContext;
+import org.fujionclinical.fhir.scenario.common.ScenarioFactory;
+import org.fujionclinical.fhir.scenario.common.ScenarioJob;
+import org.fujionclinical.fhir.scenario.common.ScenarioJobService;
 import org.fujionclinical.fhir.scenario.common.ScenarioRegistry;
 import org.fujionclinical.shell.plugins.PluginController;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * This controller is only intended to be used for demo purposes in order to stage and unstage data.
@@ -67,11 +76,19 @@ public class ScenarioManagerController extends PluginController implements Scena
         }
     }
 
-    private static final Comparator<ScenarioBase> scenarioComparator = (s1, s2) -> s1.getName().compareToIgnoreCase(s2.getName());
+    private static final Comparator<ScenarioFactory> scenarioComparator = (s1, s2) -> s1.getName().compareToIgnoreCase(s2.getName());
 
     private final ScenarioRegistry scenarioRegistry;
 
-    private final ListModel<ScenarioBase> model = new ListModel<>();
+    private final ScenarioJobService jobService;
+
+    /**
+     * Set while a job update is pending, so that progress notifications arriving in rapid
+     * succession produce a single UI update.
+     */
+    private final AtomicBoolean updatePending = new AtomicBoolean();
+
+    private final ListModel<ScenarioFactory> model = new ListModel<>();
 
     @WiredComponent
     private Combobox cboScenarios;
@@ -85,10 +102,31 @@ public class ScenarioManagerController extends PluginController implements Scena
     @WiredComponent
     private Toolbar toolbar;
 
+    @WiredComponent
+    private BaseComponent progress;
+
+    @WiredComponent
+    private Progressbar progressBar;
+
     private ScenarioBase activeScenario;
 
-    private final IComponentRenderer<Comboitem, ScenarioBase> scenarioRenderer = (scenario) -> {
-        boolean active = activeScenario == scenario;
+    private ScenarioJob job;
+
+    private Action jobAction;
+
+    /**
+     * The scenarios affected by the job in progress, whose patient list changes are applied when
+     * the job is done.
+     */
+    private Collection<ScenarioBase<?>> jobScenarios = Collections.emptyList();
+
+    /**
+     * Id of the page, used to return job updates from worker threads to the desktop thread.
+     */
+    private String pid;
+
+    private final IComponentRenderer<Comboitem, ScenarioFactory> scenarioRenderer = (scenario) -> {
+        boolean active = activeScenario != null && activeScenario.getName().equals(scenario.getName());
         Comboitem item = new Comboitem();
         item.setLabel(scenario.getName() + (active ? " (active)" : ""));
         item.setData(scenario);
@@ -102,7 +140,7 @@ public class ScenarioManagerController extends PluginController implements Scena
 
     };
 
-    private IModelAndView<Comboitem, ScenarioBase> mv;
+    private IModelAndView<Comboitem, ScenarioFactory> mv;
 
     /**
      * Demonstration Configuration Helper Class.
@@ -111,15 +149,19 @@ public class ScenarioManagerController extends PluginController implements Scena
         DialogUtil.popup("web/org/fujionclinical/fhir/plugin/scenario/scenarioManagerWin.fsp", true, true, true);
     }
 
-    public ScenarioManagerController(ScenarioRegistry scenarioRegistry) {
+    public ScenarioManagerController(
+            ScenarioRegistry scenarioRegistry,
+            ScenarioJobService jobService) {
         super();
         this.scenarioRegistry = scenarioRegistry;
+        this.jobService = jobService;
     }
 
     @Override
     public void afterInitialized(BaseComponent comp) {
         super.afterInitialized(comp);
-        mv = cboScenarios.getModelAndView(ScenarioBase.class);
+        pid = ExecutionContext.getPage().getId();
+        mv = cboScenarios.getModelAndView(ScenarioFactory.class);
         activeScenario = ScenarioContext.getActiveScenario();
         mv.setRenderer(scenarioRenderer);
         mv.setModel(model);
@@ -130,7 +172,7 @@ public class ScenarioManagerController extends PluginController implements Scena
     private void refreshScenarios() {
         cboScenarios.setSelectedItem(null);
         model.clear();
-        model.addAll(scenarioRegistry.getAll());
+        model.addAll(scenarioRegistry.getFactories());
         cboScenarios.setPlaceholder(
                 StrUtil.getLabel(model.isEmpty() ? "fcf.scenario.cbox.placeholder.none" : "fcf.scenario.cbox.placeholder"));
         model.sort(scenarioComparator);
@@ -219,6 +261,14 @@ public class ScenarioManagerController extends PluginController implements Scena
         ScenarioContext.changeScenario(getSelectedScenario());
     }
 
+    @EventHandler(value = "click", target = "btnCancel")
+    private void onClick$btnCancel() {
+        if (job != null) {
+            job.cancel();
+            setMessage("Cancelling...");
+        }
+    }
+
     /**
      * Queues an action to be performed.
      *
@@ -232,69 +282,161 @@ public class ScenarioManagerController extends PluginController implements Scena
     }
 
     /**
-     * Invokes the action specified in the event data.
+     * Starts a background job for the action specified in the event data.
      *
      * @param event The event containing the action to invoke.
      */
     @EventHandler("action")
+    @SuppressWarnings("unchecked")
     private void onAction(Event event) {
         root.removeMask();
         ScenarioBase scenario = getSelectedScenario();
         Action action = (Action) event.getData();
+
+        if (job != null || (action != Action.DELETEALL && scenario == null)) {
+            return;
+        }
+
+        if (action == Action.LOAD && scenario.isLoaded()) {
+            setMessage("Scenario contains " + scenario.getResourceCount() + " resource(s)");
+            return;
+        }
+
         setMessage(action.label + "...");
-        String result = null;
         disableButtons(true, true);
+        jobAction = action;
+        jobScenarios = action == Action.DELETEALL ? getScenariosWithResources() : Collections.singletonList(scenario);
+
+        try {
+            switch (action) {
+                case LOAD:
+                case RELOAD:
+                    job = jobService.load(scenario, this::onJobUpdate);
+                    break;
+
+                case RESET:
+                    job = jobService.initialize(scenario, this::onJobUpdate);
+                    break;
+
+                case DELETE:
+                    job = jobService.destroy(scenario, this::onJobUpdate);
+                    break;
+
+                case DELETEALL:
+                    job = jobService.destroyAll(jobScenarios, this::onJobUpdate);
+                    break;
+            }
+        } catch (Exception e) {
+            jobScenarios = Collections.emptyList();
+            setMessage(MiscUtil.formatExceptionForDisplay(e));
+            disableButtons(false, true);
+            return;
+        }
 
-        if (action == Action.DELETEALL || scenario != null) {
-            try {
-
-                switch (action) {
-                    case LOAD:
-                        if (scenario.isLoaded()) {
-                            result = "Scenario contains " + scenario.getResourceCount() + " resource(s)";
-                            break;
-                        }
+        progressBar.setValue(0);
+        progressBar.setMaxValue(1);
+        progress.setVisible(true);
+    }
 
-                        // Fall through intended here.
+    /**
+     * Returns the scenarios that define resources, creating any that have not yet been requested.
+     *
+     * @return The scenarios that define resources.
+     */
+    @SuppressWarnings("unchecked")
+    private List<ScenarioBase<?>> getScenariosWithResources() {
+        List<ScenarioBase<?>> scenarios = new ArrayList<>();
 
-                    case RELOAD:
-                        result = "Loaded " + scenario.load() + " resource(s)";
-                        break;
+        for (ScenarioFactory factory : (Collection<ScenarioFactory>) scenarioRegistry.getFactories()) {
+            if (factory.hasResources()) {
+                scenarios.add(scenarioRegistry.get(factory.getName()));
+            }
+        }
 
-                    case RESET:
-                        result = "Created " + scenario.initialize() + " resource(s)";
-                        break;
+        return scenarios;
+    }
 
-                    case DELETE:
-                        result = "Deleted " + scenario.destroy() + " resource(s)";
-                        break;
+    /**
+     * Called on the job's worker thread when the job's state changes. Queues an update to be
+     * processed on the desktop thread, unless one is already pending.
+     *
+     * @param job The job.
+     */
+    private void onJobUpdate(ScenarioJob job) {
+        if (job.isDone() || updatePending.compareAndSet(false, true)) {
+            ExecutionContext.invoke(pid, () -> updateJob(job));
+        }
+    }
 
-                    case DELETEALL:
-                        int count = 0;
+    /**
+     * Updates the display to reflect the job's progress or, if the job is done, its outcome, and
+     * applies the patient list changes made by the job. Called on the desktop thread.
+     *
+     * @param job The job.
+     */
+    private void updateJob(ScenarioJob job) {
+        updatePending.set(false);
 
-                        for (ScenarioBase ascenario : model) {
-                            count += ascenario.destroy();
-                        }
+        if (job != this.job) {
+            return;
+        }
 
-                        result = "Deleted " + count + " resource(s) across " + model.size() + " scenario(s)";
-                }
-            } catch (Exception e) {
-                result = MiscUtil.formatExceptionForDisplay(e);
-            }
+        if (!job.isDone()) {
+            progressBar.setMaxValue(Math.max(1, job.getTotal()));
+            progressBar.setValue(job.getCompleted());
+            setMessage(job.getMessage() == null ? jobAction.label + "..." : job.getMessage());
+            return;
         }
 
-        setMessage(result);
+        this.job = null;
+        jobScenarios.forEach(ScenarioBase::updatePatientList);
+        progress.setVisible(false);
+        setMessage(getResult(job));
+        jobScenarios = Collections.emptyList();
         disableButtons(false, true);
     }
 
     /**
-     * Returns the currently selected scenario, or null if none.
+     * Returns a message describing the outcome of a finished job.
+     *
+     * @param job The finished job.
+     * @return Message describing the outcome.
+     */
+    private String getResult(ScenarioJob job) {
+        switch (job.getStatus()) {
+            case CANCELLED:
+                return jobAction.label + " cancelled after " + job.getCompleted() + " resource(s)";
+
+            case FAILED:
+                return MiscUtil.formatExceptionForDisplay(job.getException());
+        }
+
+        int count = job.getResult();
+
+        switch (jobAction) {
+            case RESET:
+                return "Created " + count + " resource(s)";
+
+            case DELETE:
+                return "Deleted " + count + " resource(s)";
+
+            case DELETEALL:
+                return "Deleted " + count + " resource(s) across " + jobScenarios.size() + " scenario(s)";
+
+            default:
+                return "Loaded " + count + " resource(s)";
+        }
+    }
+
+    /**
+     * Returns the currently selected scenario, or null if none. The scenario is created on first
+     * selection.
      *
      * @return The currently selected scenario.
      */
     private ScenarioBase getSelectedScenario() {
         Comboitem item = cboScenarios.getSelectedItem();
-        return item == null ? null : (ScenarioBase) item.getData();
+        return item == null ? null : scenarioRegistry.get(((ScenarioFactory) item.getData()).getName());
     }
 
     /**
@@ -29,7 +29,6 @@ import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.parser.IParser;
 import org.coolmodel.mediator.datasource.DataSources;
 import org.coolmodel.mediator.fhir.common.AbstractFhirDataSource;
-import org.coolmodel.mediator.fhir.common.FhirUtils;
 import org.fujion.ancillary.IResponseCallback;
 import org.fujion.annotation.EventHandler;
 import org.fujion.annotation.WiredComponent;
@@ -41,6 +40,7 @@ import org.fujion.model.IModelAndView;
 import org.fujion.model.ListModel;
 import org.fujion.page.PageUtil;
 import org.fujionclinical.fhir.scenario.common.ScenarioBase;
+import org.fujionclinical.fhir.scenario.common.ScenarioResourceRef;
 import org.fujionclinical.ui.controller.FrameworkController;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 
@@ -51,18 +51,18 @@ import java.util.Map;
 @SuppressWarnings("rawtypes")
 public class ViewResourcesController extends FrameworkController {
 
-    private static final Comparator<IBaseResource> resourceComparator = (r1, r2) -> r1.getIdElement().getValue().compareToIgnoreCase(r2.getIdElement().getValue());
+    private static final Comparator<ScenarioResourceRef> resourceComparator = (r1, r2) -> r1.getId().compareToIgnoreCase(r2.getId());
 
-    private static final IComponentRenderer<Row, IBaseResource> resourceRenderer = (resource) -> {
+    private static final IComponentRenderer<Row, ScenarioResourceRef> resourceRenderer = (ref) -> {
         Row row = new Row();
-        row.addChild(new Cell(FhirUtils.getResourceIdPath(resource)));
-        row.setData(resource);
+        row.addChild(new Cell(ref.getId()));
+        row.setData(ref);
         return row;
     };
 
     private final AbstractFhirDataSource data;
 
-    private final ListModel<IBaseResource> model = new ListModel<>();
+    private final ListModel<ScenarioResourceRef> model = new ListModel<>();
 
     @WiredComponent
     private Grid grdResources;
@@ -122,10 +122,10 @@ public class ViewResourcesController extends FrameworkController {
         window = (Window) comp;
         title = window.getTitle();
         scenario = (ScenarioBase) comp.getAttribute("scenario");
-        model.addAll(scenario.getResources());
+        model.addAll(scenario.getResourceRefs());
         model.sort(resourceComparator, true);
         colResource.setSortComparator(resourceComparator);
-        IModelAndView<Row, IBaseResource> mv = grdResources.getRows().getModelAndView(IBaseResource.class);
+        IModelAndView<Row, ScenarioResourceRef> mv = grdResources.getRows().getModelAndView(ScenarioResourceRef.class);
         mv.setRenderer(resourceRenderer);
         mv.setModel(model);
         updateCaption();
@@ -143,17 +143,17 @@ public class ViewResourcesController extends FrameworkController {
 
     @EventHandler(value = "click", target = "@btnDelete")
     private void onClick$btnDelete() {
-        IBaseResource resource = getSelectedResource();
+        ScenarioResourceRef ref = getSelectedResource();
 
-        if (resource == null) {
+        if (ref == null) {
             return;
         }
 
-        DialogUtil.confirm("Delete " + FhirUtils.getResourceIdPath(resource, true) + "?", "Delete Resource", (confirm) -> {
+        DialogUtil.confirm("Delete " + ref.getId() + "?", "Delete Resource", (confirm) -> {
             if (confirm) {
                 try {
-                    data.deleteResource(resource);
-                    model.remove(resource);
+                    data.deleteResource(scenario.getResource(ref));
+                    model.remove(ref);
                     root.setAttribute("modified", true);
                     updateCaption();
                     displayResource();
@@ -169,24 +169,31 @@ public class ViewResourcesController extends FrameworkController {
                 title + " - " + scenario.getName() + " (" + model.size() + " resource" + (model.size() == 1 ? ")" : "s)"));
     }
 
-    private IBaseResource getSelectedResource() {
+    private ScenarioResourceRef getSelectedResource() {
         Row row = grdResources.getRows().getSelectedRow();
-        return row == null ? null : (IBaseResource) row.getData();
+        return row == null ? null : (ScenarioResourceRef) row.getData();
     }
 
     private void displayResource() {
-        IBaseResource resource = getSelectedResource();
+        ScenarioResourceRef ref = getSelectedResource();
 
-        if (resource == null) {
+        if (ref == null) {
             txtResource.setValue(null);
             btnDelete.setDisabled(true);
         } else {
-            FhirContext ctx = data.getClient().getFhirContext();
-            IParser parser = rbJSON.isChecked() ? ctx.newJsonParser() : ctx.newXmlParser();
-            parser.setPrettyPrint(true);
-            txtResource.setValue(parser.encodeResourceToString(resource));
-            txtResource.selectRange(0, 0);
-            btnDelete.setDisabled(false);
+            try {
+                IBaseResource resource = scenario.getResource(ref);
+                FhirContext ctx = data.getClient().getFhirContext();
+                IParser parser = rbJSON.isChecked() ? ctx.newJsonParser() : ctx.newXmlParser();
+                parser.setPrettyPrint(true);
+                txtResource.setValue(parser.encodeResourceToString(resource));
+                txtResource.selectRange(0, 0);
+                btnDelete.setDisabled(false);
+            } catch (Exception e) {
+                txtResource.setValue(null);
+                btnDelete.setDisabled(true);
+                DialogUtil.showError("Error retrieving resource:\n\n" + MiscUtil.formatExceptionForDisplay(e));
+            }
         }
     }
 
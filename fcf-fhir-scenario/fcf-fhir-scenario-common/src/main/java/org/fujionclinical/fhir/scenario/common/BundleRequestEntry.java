@@ -0,0 +1,217 @@
+/*
+ * #%L
+ * Fujion Clinical Framework
+ * %%
+ * Copyright (C) 2020 fujionclinical.org
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.fujionclinical.org/licensing/disclaimer
+ *
+ * #L%
+ */
+package org.fujionclinical.fhir.scenario.common;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.util.FhirTerser;
+import org.hl7.fhir.instance.model.api.IBaseReference;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A single entry in a batch or transaction bundle, independent of FHIR version. Upon execution, the
+ * response status and the resulting resource are recorded in the entry.
+ */
+public class BundleRequestEntry {
+
+    public enum Method {
+        POST, PUT, DELETE
+    }
+
+    private final Method method;
+
+    private final String url;
+
+    private final String fullUrl;
+
+    private final IBaseResource resource;
+
+    private String status;
+
+    private IBaseResource result;
+
+    private boolean returned;
+
+    /**
+     * Creates an entry that creates a resource on the server, assigning it a temporary full url
+     * that may be used by other entries in the same transaction to reference it.
+     *
+     * @param fullUrl  The temporary full url (usually a urn:uuid).
+     * @param resource The resource to create.
+     * @return The new entry.
+     */
+    public static BundleRequestEntry create(
+            String fullUrl,
+            IBaseResource resource) {
+        return new BundleRequestEntry(Method.POST, resource.fhirType(), fullUrl, resource);
+    }
+
+    /**
+     * Creates an entry that creates or updates a resource with a known id.
+     *
+     * @param resource The resource to create or update.
+     * @return The new entry.
+     */
+    public static BundleRequestEntry update(IBaseResource resource) {
+        String url = resource.fhirType() + "/" + resource.getIdElement().getIdPart();
+        return new BundleRequestEntry(Method.PUT, url, null, resource);
+    }
+
+    /**
+     * Creates an entry that deletes a resource or, if the url contains search parameters, all
+     * resources matching those parameters.
+     *
+     * @param url The url of the resource(s) to delete.
+     * @return The new entry.
+     */
+    public static BundleRequestEntry delete(String url) {
+        return new BundleRequestEntry(Method.DELETE, url, null, null);
+    }
+
+    /**
+     * Resolves the temporary full urls by which the resources in an executed transaction refer to
+     * one another. Where the server returned no resource body, the result of an entry is the
+     * submitted resource, whose references to other resources created by the same transaction
+     * still hold their temporary full urls. Each such reference is replaced by the id of the
+     * resource the server created.
+     *
+     * @param fhirContext The FHIR context.
+     * @param entries     The executed entries.
+     */
+    public static void resolveReferences(
+            FhirContext fhirContext,
+            List<BundleRequestEntry> entries) {
+        Map<String, String> ids = new HashMap<>();
+
+        for (BundleRequestEntry entry : entries) {
+            if (entry.fullUrl != null && entry.result != null && entry.result.getIdElement().hasIdPart()) {
+                ids.put(entry.fullUrl, entry.result.fhirType() + "/" + entry.result.getIdElement().getIdPart());
+            }
+        }
+
+        if (ids.isEmpty()) {
+            return;
+        }
+
+        FhirTerser terser = fhirContext.newTerser();
+
+        for (BundleRequestEntry entry : entries) {
+            if (entry.result != null && !entry.returned) {
+                for (IBaseReference reference : terser.getAllPopulatedChildElementsOfType(entry.result, IBaseReference.class)) {
+                    String id = ids.get(reference.getReferenceElement().getValue());
+
+                    if (id != null) {
+                        reference.setReference(id);
+                    }
+                }
+            }
+        }
+    }
+
+    private BundleRequestEntry(
+            Method method,
+            String url,
+            String fullUrl,
+            IBaseResource resource) {
+        this.method = method;
+        this.url = url;
+        this.fullUrl = fullUrl;
+        this.resource = resource;
+    }
+
+    public Method getMethod() {
+        return method;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public String getFullUrl() {
+        return fullUrl;
+    }
+
+    public IBaseResource getResource() {
+        return resource;
+    }
+
+    /**
+     * Returns the HTTP status returned by the server for this entry.
+     *
+     * @return The HTTP status (e.g., "201 Created"), or null if the entry has not been executed.
+     */
+    public String getStatus() {
+        return status;
+    }
+
+    /**
+     * Returns true if the server reported success (a 2xx status) for this entry.
+     *
+     * @return True if the entry was successfully executed.
+     */
+    public boolean isSuccess() {
+        return status != null && status.startsWith("2");
+    }
+
+    /**
+     * Returns the resource as it exists on the server after execution. If the server did not return
+     * the resource body, this will be the submitted resource with its id updated from the response
+     * location.
+     *
+     * @return The resulting resource (null for deletes or if not executed).
+     */
+    public IBaseResource getResult() {
+        return result;
+    }
+
+    /**
+     * Records the server's response for this entry.
+     *
+     * @param status   The HTTP status.
+     * @param location The location of the created or updated resource (may be null).
+     * @param response The resource body returned by the server (may be null).
+     */
+    public void setResponse(
+            String status,
+            String location,
+            IBaseResource response) {
+        this.status = status;
+        this.returned = response != null;
+
+        if (response != null) {
+            result = response;
+        } else if (resource != null && location != null) {
+            resource.setId(location);
+            result = resource;
+        } else {
+            result = resource;
+        }
+    }
+
+}
@@ -0,0 +1,84 @@
+/*
+ * #%L
+ * Fujion Clinical Framework
+ * %%
+ * Copyright (C) 2020 fujionclinical.org
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.fujionclinical.org/licensing/disclaimer
+ *
+ * #L%
+ */
+package org.fujionclinical.fhir.scenario.common;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+/**
+ * Receives progress notifications from a scenario operation and allows the operation to be
+ * cancelled. Notifications may arrive concurrently from multiple threads.
+ */
+public interface IScenarioMonitor {
+
+    /**
+     * A monitor that ignores notifications and never requests cancellation.
+     */
+    IScenarioMonitor NONE = new IScenarioMonitor() {
+
+        @Override
+        public void addTotal(int count) {
+        }
+
+        @Override
+        public void progress(
+                String action,
+                IBaseResource resource) {
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+    };
+
+    /**
+     * Adds to the expected number of resources to be processed.
+     *
+     * @param count The number of additional resources.
+     */
+    void addTotal(int count);
+
+    /**
+     * Called when a resource has been processed.
+     *
+     * @param action   The action performed on the resource (e.g., "Created").
+     * @param resource The resource.
+     */
+    void progress(
+            String action,
+            IBaseResource resource);
+
+    /**
+     * Returns true if cancellation has been requested. Operations check this before each request
+     * to the server and, if true, abandon the operation with a
+     * {@link java.util.concurrent.CancellationException}.
+     *
+     * @return True if cancellation has been requested.
+     */
+    boolean isCancelled();
+
+}
@@ -0,0 +1,301 @@
+/*
+ * #%L
+ * Fujion Clinical Framework
+ * %%
+ * Copyright (C) 2020 fujionclinical.org
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.fujionclinical.org/licensing/disclaimer
+ *
+ * #L%
+ */
+package org.fujionclinical.fhir.scenario.common;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.IOUtils;
+import org.fujion.common.Logger;
+import org.fujion.common.MiscUtil;
+import org.springframework.core.io.Resource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * A bounded cache for the files used by scenarios (templates, snippets and images), shared by all
+ * scenarios. Entries are keyed by the file's location and last modification time, so a modified
+ * file is never served stale. Each entry holds the raw content along with its text and Base64
+ * forms, which are computed on first request. When the total size of cached content exceeds the
+ * limit, the least recently used entries are evicted.
+ */
+public class ScenarioAssetCache {
+
+    private static final Logger log = Logger.create(ScenarioAssetCache.class);
+
+    /**
+     * Default maximum size of cached content, in bytes.
+     */
+    public static final long DEFAULT_MAX_SIZE = 64L * 1024 * 1024;
+
+    private static final ScenarioAssetCache instance = new ScenarioAssetCache(DEFAULT_MAX_SIZE);
+
+    private static class Asset {
+
+        private final String key;
+
+        private final byte[] bytes;
+
+        private String text;
+
+        private String base64;
+
+        private long size;
+
+        private Asset(
+                String key,
+                byte[] bytes) {
+            this.key = key;
+            this.bytes = bytes;
+            this.size = bytes.length;
+        }
+
+    }
+
+    private final Map<String, Asset> assets = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final long maxSize;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private long size;
+
+    /**
+     * Returns the shared instance of the cache.
+     *
+     * @return The shared instance.
+     */
+    public static ScenarioAssetCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * @param maxSize Maximum size of cached content, in bytes.
+     */
+    public ScenarioAssetCache(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the raw content of a file.
+     *
+     * @param resource The file.
+     * @return The raw content. This must not be modified.
+     */
+    public byte[] getBytes(Resource resource) {
+        return getAsset(resource).bytes;
+    }
+
+    /**
+     * Returns the content of a file as UTF-8 text.
+     *
+     * @param resource The file.
+     * @return The content as text.
+     */
+    public String getText(Resource resource) {
+        return getDerived(getAsset(resource), asset -> asset.text,
+                asset -> new String(asset.bytes, StandardCharsets.UTF_8), (asset, text) -> asset.text = text);
+    }
+
+    /**
+     * Returns the content of a file as a Base64-encoded string.
+     *
+     * @param resource The file.
+     * @return The Base64-encoded content.
+     */
+    public String getBase64(Resource resource) {
+        return getDerived(getAsset(resource), asset -> asset.base64,
+                asset -> Base64.encodeBase64String(asset.bytes), (asset, base64) -> asset.base64 = base64);
+    }
+
+    /**
+     * Returns the number of requests satisfied from the cache.
+     *
+     * @return The hit count.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of requests that required the file to be read.
+     *
+     * @return The miss count.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the total size of cached content, in bytes (text counted at two bytes per character).
+     *
+     * @return The size of cached content.
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Removes all entries from the cache.
+     */
+    public synchronized void clear() {
+        assets.clear();
+        size = 0;
+    }
+
+    private Asset getAsset(Resource resource) {
+        String key = getKey(resource);
+        Asset asset;
+
+        synchronized (this) {
+            asset = assets.get(key);
+        }
+
+        if (asset != null) {
+            hits.incrementAndGet();
+            return asset;
+        }
+
+        misses.incrementAndGet();
+
+        try (InputStream is = resource.getInputStream()) {
+            asset = new Asset(key, IOUtils.toByteArray(is));
+        } catch (Exception e) {
+            throw MiscUtil.toUnchecked(e);
+        }
+
+        synchronized (this) {
+            Asset existing = assets.get(key);
+
+            if (existing != null) {
+                return existing;
+            }
+
+            if (asset.size <= maxSize) {
+                assets.put(key, asset);
+                size += asset.size;
+                evict();
+            }
+        }
+
+        return asset;
+    }
+
+    /**
+     * Returns a derived form of an asset's content, computing it (outside the lock) if not already
+     * present.
+     *
+     * @param asset   The asset.
+     * @param getter  Returns the derived form, or null if not yet computed.
+     * @param deriver Computes the derived form.
+     * @param setter  Stores the derived form.
+     * @return The derived form.
+     */
+    private String getDerived(
+            Asset asset,
+            Function<Asset, String> getter,
+            Function<Asset, String> deriver,
+            BiConsumer<Asset, String> setter) {
+        String value;
+
+        synchronized (this) {
+            value = getter.apply(asset);
+        }
+
+        if (value != null) {
+            return value;
+        }
+
+        value = deriver.apply(asset);
+
+        synchronized (this) {
+            String existing = getter.apply(asset);
+
+            if (existing != null) {
+                return existing;
+            }
+
+            setter.accept(asset, value);
+            long delta = value.length() * 2L;
+            asset.size += delta;
+
+            if (assets.get(asset.key) == asset) {
+                size += delta;
+                evict();
+            }
+        }
+
+        return value;
+    }
+
+    /**
+     * Evicts least recently used entries until the cache is within its size limit.
+     */
+    private void evict() {
+        Iterator<Asset> iterator = assets.values().iterator();
+
+        while (size > maxSize && iterator.hasNext()) {
+            Asset asset = iterator.next();
+            iterator.remove();
+            size -= asset.size;
+            log.debug(() -> "Evicted scenario asset: " + asset.key);
+        }
+    }
+
+    /**
+     * Returns the cache key for a file, consisting of its location and last modification time.
+     *
+     * @param resource The file.
+     * @return The cache key.
+     */
+    private String getKey(Resource resource) {
+        long lastModified;
+        String location;
+
+        try {
+            lastModified = resource.lastModified();
+        } catch (IOException e) {
+            lastModified = -1;
+        }
+
+        try {
+            location = resource.getURL().toString();
+        } catch (IOException e) {
+            location = resource.getDescription();
+        }
+
+        return location + "@" + lastModified;
+    }
+
+}
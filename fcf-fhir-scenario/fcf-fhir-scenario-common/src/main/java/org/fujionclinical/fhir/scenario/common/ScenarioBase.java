@@ -30,33 +30,46 @@ import ca.uhn.fhir.model.primitive.BaseDateTimeDt;
 import ca.uhn.fhir.model.primitive.DateDt;
 import ca.uhn.fhir.model.primitive.DateTimeDt;
 import ca.uhn.fhir.parser.IParser;
-import org.apache.commons.codec.binary.Base64;
-import org.apache.commons.io.IOUtils;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.util.BundleBuilder;
+import ca.uhn.fhir.util.FhirTerser;
 import org.coolmodel.clinical.encounter.Encounter;
 import org.coolmodel.foundation.core.Identifiable;
 import org.coolmodel.foundation.entity.Person;
-import org.coolmodel.mediator.fhir.common.FhirUtils;
 import org.fujion.common.Assert;
 import org.fujion.common.DateUtil;
 import org.fujion.common.Logger;
 import org.fujion.common.MiscUtil;
 import org.fujionclinical.api.cool.encounter.EncounterContext;
 import org.fujionclinical.api.cool.patient.PatientContext;
+import org.fujionclinical.fhir.scenario.common.ScenarioTemplate.RenderedTemplate;
 import org.fujionclinical.fhir.api.common.core.FhirUtil;
 import org.fujionclinical.patientlist.*;
+import org.hl7.fhir.instance.model.api.IBase;
 import org.hl7.fhir.instance.model.api.IBaseBundle;
 import org.hl7.fhir.instance.model.api.IBaseCoding;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IIdType;
 import org.springframework.core.io.Resource;
 
-import java.io.InputStream;
-import java.nio.charset.StandardCharsets;
+import java.io.Reader;
+import java.io.Writer;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 /**
- * Abstract base class for FHIR-specific scenarios.
+ * Abstract base class for FHIR-specific scenarios. Operations that modify a scenario (load,
+ * initialize and destroy) are serialized, so a scenario may be shared across sessions.
  *
  * @param <LIST> The List resource class.
  */
@@ -66,6 +79,8 @@ public abstract class ScenarioBase<LIST extends IBaseResource> {
 
     private final Map<String, Map<String, String>> scenarioConfig;
 
+    private final Map<String, ScenarioTemplate> templates;
+
     private final String scenarioName;
 
     private final String activationResource;
@@ -74,8 +89,45 @@ public abstract class ScenarioBase<LIST extends IBaseResource> {
 
     private final IIdType scenarioId;
 
+    /**
+     * The working set of resources, populated only while an operation is in progress.
+     */
     private final List<IBaseResource> resources = new ArrayList<>();
 
+    /**
+     * Indexes the working set of resources by resource name.
+     */
+    private final Map<String, IBaseResource> resourcesByName = new HashMap<>();
+
+    /**
+     * Indexes the working set of resources by relative, unversioned id (e.g., Patient/123).
+     */
+    private final Map<String, IBaseResource> resourcesById = new HashMap<>();
+
+    /**
+     * Indexes the working set of resources by resource type, in the order added.
+     */
+    private final Map<String, Set<IBaseResource>> resourcesByType = new LinkedHashMap<>();
+
+    /**
+     * Immutable references to the resources, published at the successful completion of each
+     * operation. Only these references are retained between operations; full resources are
+     * retrieved on demand through the shared resource cache.
+     */
+    private volatile ScenarioPublishedResources published = ScenarioPublishedResources.EMPTY;
+
+    private final ScenarioOperationGate gate = new ScenarioOperationGate();
+
+    /**
+     * Monitor for the operation in progress.
+     */
+    private volatile IScenarioMonitor monitor = IScenarioMonitor.NONE;
+
+    /**
+     * Name of the operation in progress (reported in flight recorder events).
+     */
+    private volatile String operation;
+
     private final FhirContext fhirContext;
 
     private final Resource root;
@@ -86,21 +138,98 @@ public abstract class ScenarioBase<LIST extends IBaseResource> {
 
     private final String patientListFilterName;
 
-    private boolean isLoaded;
+    /**
+     * Patients to be added to the patient list by the next call to {@link #updatePatientList()},
+     * indexed by id. Access is synchronized on this map.
+     */
+    private final Map<String, Person> pendingPatients = new LinkedHashMap<>();
+
+    /**
+     * If true, the next call to {@link #updatePatientList()} first removes the scenario's patient
+     * list filter. Guarded by {@link #pendingPatients}.
+     */
+    private boolean pendingFilterReset;
+
+    private final int transactionSize;
+
+    private final int parallelism;
+
+    private final int copies;
+
+    /**
+     * The original copy of the resource graph.
+     */
+    private final ScenarioCopy original;
+
+    /**
+     * Existing resources belonging to copies of the resource graph other than the original, indexed
+     * by resource name and copy index. Only a summary of each resource is retained.
+     */
+    private final Map<String, CopyRecord> copyRecords = new HashMap<>();
+
+    private final ScenarioResourceLoader resourceLoader;
+
+    private final IGenericClient client;
+
+    private ServerCapabilities serverCapabilities;
+
+    /**
+     * Maps resource names to temporary references for resources pending creation in a transaction.
+     */
+    private final Map<String, String> pendingReferences = new HashMap<>();
+
+    /**
+     * During initialization, maps resource names to the resources that existed beforehand.
+     */
+    private Map<String, IBaseResource> baseline = Collections.emptyMap();
+
+    /**
+     * During initialization, the time the scenario was last packaged. Baseline resources modified
+     * after this time are considered changed, regardless of their content hash.
+     */
+    private Date baselineTimestamp;
+
+    private volatile boolean isLoaded;
 
     private LIST scenarioResources;
 
+    /**
+     * Summary of an existing resource belonging to a copy of the resource graph.
+     */
+    private static class CopyRecord {
+
+        private final IIdType id;
+
+        private final String hash;
+
+        private final Date lastUpdated;
+
+        private CopyRecord(IBaseResource resource) {
+            this.id = resource.getIdElement().toUnqualifiedVersionless();
+            this.hash = ScenarioUtil.getContentHash(resource);
+            this.lastUpdated = resource.getMeta().getLastUpdated();
+        }
+
+    }
+
     protected ScenarioBase(ScenarioFactory<?> scenarioFactory) {
         this.fhirContext = scenarioFactory.dataSource.getClient().getFhirContext();
         this.scenarioName = scenarioFactory.scenarioName;
         this.scenarioTag = scenarioFactory.scenarioTag;
         this.scenarioId = scenarioFactory.scenarioId;
         this.scenarioConfig = scenarioFactory.scenarioConfig;
+        this.templates = scenarioFactory.getTemplates();
         this.activationResource = scenarioFactory.activationResource;
         this.root = scenarioFactory.scenarioYaml;
         this.patientList = PatientListRegistry.getInstance().findByName("Personal Lists");
         this.patientListFilterManager = this.patientList.getFilterManager();
         this.patientListFilterName = "scenario: " + getName();
+        this.transactionSize = scenarioFactory.transactionSize;
+        this.parallelism = scenarioFactory.parallelism;
+        this.copies = scenarioFactory.copies;
+        this.original = new ScenarioCopy(scenarioId.getIdPart(), 1);
+        this.client = scenarioFactory.dataSource.getClient();
+        this.resourceLoader = new ScenarioResourceLoader(client);
     }
 
     /**
@@ -134,15 +263,6 @@ public abstract class ScenarioBase<LIST extends IBaseResource> {
      */
     protected abstract void _deleteResource(IBaseResource resource);
 
-    /**
-     * Returns resources related to the reference resource (using $everything operation).
-     *
-     * @param resource The reference resource.
-     * @param <T> The resource type.
-     * @return All resources related to the reference resource.
-     */
-    protected abstract <T extends IBaseResource> List<T> _relatedResources(T resource);
-
     /**
      * Extracts entries from a bundle resource.
      *
@@ -172,7 +292,8 @@ public abstract class ScenarioBase<LIST extends IBaseResource> {
      * Called when the scenario is activated into the current context.
      */
     public final void activate() {
-        IBaseResource resource = getNamedResource(activationResource);
+        ScenarioResourceRef ref = published.getRef(activationResource);
+        IBaseResource resource = ref == null ? null : getResource(ref);
         Identifiable target = resource == null ? null : _toDomainObject(resource);
 
         if (target instanceof Encounter) {
@@ -200,6 +321,33 @@ public abstract class ScenarioBase<LIST extends IBaseResource> {
         return scenarioId;
     }
 
+    /**
+     * Loads the scenario's resources using a paged search on the scenario tag. If the server does not
+     * support searching by tag, falls back to batched searches by id.
+     *
+     * @param ids      The ids of the scenario's resources, used only if the server does not support
+     *                 searching by tag.
+     * @param consumer Consumer for the loaded resources.
+     */
+    protected final void loadResources(
+            Collection<IIdType> ids,
+            Consumer<IBaseResource> consumer) {
+        if (!resourceLoader.loadByTag(scenarioTag, this::isScenarioList, consumer)) {
+            resourceLoader.loadById(ids, consumer);
+        }
+    }
+
+    /**
+     * Returns true if the resource is the List resource used to store scenario resources.
+     *
+     * @param resource The resource.
+     * @return True if the resource is the scenario's List resource.
+     */
+    private boolean isScenarioList(IBaseResource resource) {
+        return scenarioId.getResourceType().equals(resource.fhirType())
+                && scenarioId.getIdPart().equals(resource.getIdElement().getIdPart());
+    }
+
     /**
      * Adds the general demo tag and a scenario tag to the resource.
      *
@@ -210,21 +358,67 @@ public abstract class ScenarioBase<LIST extends IBaseResource> {
         FhirUtil.addTag(scenarioTag, resource);
     }
 
+    /**
+     * Returns a resource in the working set by resource name.
+     *
+     * @param name The resource name.
+     * @return The resource, or null if not found.
+     */
     private IBaseResource getNamedResource(String name) {
-        IBaseCoding tag = name == null ? null : ScenarioUtil.createNamedResourceTag(name);
-        return tag == null ? null : resources.stream()
-                .filter(resource -> FhirUtil.hasTag(tag, resource))
-                .findFirst()
-                .orElse(null);
+        return name == null ? null : resourcesByName.get(name);
     }
 
     /**
-     * Returns a read-only list of loaded resources.
+     * Returns a read-only list of loaded resources. Each resource is retrieved from the shared
+     * resource cache if present or from the server otherwise, so callers that need only to
+     * enumerate the resources should use {@link #getResourceRefs()} instead.
      *
      * @return List of loaded resources.
      */
     public final Collection<IBaseResource> getResources() {
-        return Collections.unmodifiableCollection(resources);
+        List<ScenarioResourceRef> refs = published.getRefs();
+        List<IBaseResource> resources = new ArrayList<>(refs.size());
+
+        for (ScenarioResourceRef ref : refs) {
+            resources.add(getResource(ref));
+        }
+
+        return Collections.unmodifiableList(resources);
+    }
+
+    /**
+     * Returns a read-only list of references to loaded resources. This is a snapshot as of the
+     * successful completion of the most recent operation and is unaffected by any operation in
+     * progress or by one that failed.
+     *
+     * @return List of references to loaded resources.
+     * @see #getResource(ScenarioResourceRef)
+     */
+    public final Collection<ScenarioResourceRef> getResourceRefs() {
+        return published.getRefs();
+    }
+
+    /**
+     * Returns a loaded resource, from the shared resource cache if present or from the server
+     * otherwise. A reference without a version always reads from the server, since a cached copy
+     * could not be known to be current.
+     *
+     * @param ref Reference to the resource.
+     * @return The resource.
+     */
+    public final IBaseResource getResource(ScenarioResourceRef ref) {
+        Supplier<IBaseResource> reader = () -> serverCall(ref.getType(), "read", 1, () -> resourceLoader.read(ref));
+        return ref.getVersion() == null ? reader.get() : ScenarioResourceCache.getInstance().get(getCacheKey(ref), reader);
+    }
+
+    /**
+     * Returns the key under which a resource is stored in the shared resource cache.
+     *
+     * @param ref Reference to the resource.
+     * @return The cache key.
+     */
+    private String getCacheKey(ScenarioResourceRef ref) {
+        return client.getServerBase() + "/" + ref.getVersionedId();
     }
 
     /**
@@ -233,324 +427,1487 @@ public abstract class ScenarioBase<LIST extends IBaseResource> {
      * @return Count of loaded resources.
      */
     public final int getResourceCount() {
-        return resources.size();
+        return published.size();
     }
 
     /**
-     * Returns true if the scenario has been loaded.
+     * Performs an operation on the scenario. Operations are serialized, and a request for an
+     * operation that is the last one waiting to run joins it, unless it takes arguments. If the
+     * operation completes normally, references to its resources are published; if it fails or is
+     * cancelled, the previously published references are retained.
      *
-     * @return True if the scenario has been loaded.
+     * @param operation The operation name.
+     * @param coalesce  If true, the request may join an identical operation waiting to run.
+     * @param monitor   Monitor for the operation. If the request joins an operation, it receives all
+     *                  of the operation's notifications, and the operation is cancelled only if
+     *                  all requests sharing it request cancellation.
+     * @param task      The task that performs the operation.
+     * @return The result of the operation.
      */
-    public final boolean isLoaded() {
-        return isLoaded;
+    private int execute(
+            String operation,
+            boolean coalesce,
+            IScenarioMonitor monitor,
+            Supplier<Integer> task) {
+        return gate.execute(operation, coalesce, monitor, shared -> {
+            this.monitor = shared;
+            this.operation = operation;
+
+            try {
+                int result = task.get();
+                publish();
+                return result;
+            } finally {
+                this.monitor = IScenarioMonitor.NONE;
+                this.operation = null;
+                clearResources();
+                copyRecords.clear();
+            }
+        });
     }
 
     /**
-     * Initialize the scenario. Any existing resources belonging to the scenario will first be
-     * deleted. Then creates all resources as defined in the scenario configuration.
-     *
-     * @return Count of resources in scenario.
+     * Publishes references to the working set of resources, offering the resources themselves to
+     * the shared resource cache.
      */
-    public final int initialize() {
-        destroy();
+    private void publish() {
+        List<ScenarioResourceRef> refs = new ArrayList<>(resources.size());
+        ScenarioResourceCache cache = ScenarioResourceCache.getInstance();
 
-        for (String name : scenarioConfig.keySet()) {
-            Map<String, String> params = scenarioConfig.get(name);
-            String source = ScenarioUtil.getParam(params, "source");
-            IBaseResource resource = parseResource(source, params);
-            initialize(name, resource);
+        for (IBaseResource resource : resources) {
+            ScenarioResourceRef ref = ScenarioResourceRef.create(resource);
+            refs.add(ref);
+
+            if (ref.getVersion() != null) {
+                cache.put(getCacheKey(ref), resource);
+            }
         }
 
-        scenarioResources = _packageResources(resources);
-        scenarioResources.setId(getId());
-        addTags(scenarioResources);
-        _createOrUpdateResource(scenarioResources);
-        return resources.size();
+        published = new ScenarioPublishedResources(refs);
     }
 
     /**
-     * Tags and creates a resource.
+     * Abandons the operation in progress if cancellation has been requested. This is called before
+     * each request to the server.
      *
-     * @param name     The unique name associated with the resource.
-     * @param resource The resource to create
+     * @throws CancellationException If cancellation has been requested.
      */
-    private void initialize(
-            String name,
-            IBaseResource resource) {
-        FhirUtil.addTag(ScenarioUtil.createNamedResourceTag(name), resource);
-        resource = createOrUpdateResource(resource);
-        logAction(resource, "Created");
+    private void checkCancelled() {
+        if (monitor.isCancelled()) {
+            throw new CancellationException("Scenario operation cancelled: " + getName());
+        }
     }
 
     /**
-     * Load all resources for this scenario.
+     * Submits bundle entries to the server, first checking for cancellation.
      *
-     * @return Count of resources loaded for this scenario.
+     * @param entries     The entries to submit.
+     * @param transaction If true, submit as a transaction; otherwise, as a batch.
      */
-    public final int load() {
-        isLoaded = true;
-        resources.clear();
-        deletePatientListFilter();
-        scenarioResources = _loadResources(this::addResource);
-        return resources.size();
+    private void executeBundle(
+            List<BundleRequestEntry> entries,
+            boolean transaction) {
+        checkCancelled();
+        serverCall("Bundle", transaction ? "transaction" : "batch", entries.size(), () -> {
+            submitBundle(entries, transaction);
+            return null;
+        });
     }
 
     /**
-     * Destroy all resources belonging to this scenario.
+     * Submits the entries to the server as a single batch or transaction bundle, recording the
+     * server's response in each entry. The bundle is built and its response read without reference
+     * to version-specific classes, so this serves all FHIR versions.
      *
-     * @return The number of resources successfully deleted.
+     * @param entries     The entries to submit.
+     * @param transaction If true, submit as a transaction; otherwise, as a batch.
      */
-    public final int destroy() {
-        load();
-        int count = 0;
-        boolean stop = false;
-
-        while (!stop) {
-            stop = true;
-            Iterator<IBaseResource> iterator = resources.iterator();
-
-            while (iterator.hasNext()) {
-                IBaseResource resource = iterator.next();
-                int deleted = deleteResources(resource);
+    private void submitBundle(
+            List<BundleRequestEntry> entries,
+            boolean transaction) {
+        FhirTerser terser = fhirContext.newTerser();
+        BundleBuilder builder = new BundleBuilder(fhirContext);
+        builder.setBundleField("type", transaction ? "transaction" : "batch");
+
+        for (BundleRequestEntry entry : entries) {
+            IBase component = builder.addEntry();
+
+            if (entry.getFullUrl() != null) {
+                terser.setElement(component, "fullUrl", entry.getFullUrl());
+            }
 
-                if (deleted > 0) {
-                    count++;
-                    stop = false;
-                    iterator.remove();
-                    logAction(resource, "Deleted");
-                }
+            if (entry.getResource() != null) {
+                builder.addToEntry(component, "resource", entry.getResource());
             }
-        }
 
-        if (scenarioResources != null) {
-            deleteResource(scenarioResources);
-            scenarioResources = null;
+            terser.setElement(component, "request.method", entry.getMethod().name());
+            terser.setElement(component, "request.url", entry.getUrl());
         }
 
-        for (IBaseResource resource : resources) {
-            logAction(resource, "Failed to delete");
-        }
+        IBaseBundle response = client.transaction().withBundle(builder.getBundle()).execute();
+        List<IBase> results = terser.getValues(response, "Bundle.entry");
 
-        return count;
+        for (int i = 0; i < entries.size(); i++) {
+            IBase result = i < results.size() ? results.get(i) : null;
+
+            if (result == null) {
+                entries.get(i).setResponse(null, null, null);
+            } else {
+                entries.get(i).setResponse(terser.getSinglePrimitiveValueOrNull(result, "response.status"),
+                        terser.getSinglePrimitiveValueOrNull(result, "response.location"),
+                        terser.getSingleValueOrNull(result, "resource", IBaseResource.class));
+            }
+        }
     }
 
     /**
-     * Deletes a resource and any related resources, returning a count of those successfully deleted.
+     * Makes a call to the server, emitting a flight recorder event if enabled.
      *
-     * @param resource Resource to delete.
-     * @return Count of resources actually deleted.
+     * @param resourceType The type of resource involved.
+     * @param operation    The operation performed.
+     * @param count        The number of entries submitted (for bundles; otherwise, 1).
+     * @param call         Makes the call.
+     * @return The result of the call.
      */
-    private int deleteResources(IBaseResource resource) {
-        int count = 0;
+    private <T> T serverCall(
+            String resourceType,
+            String operation,
+            int count,
+            Supplier<T> call) {
+        ScenarioEvents.ServerCall event = new ScenarioEvents.ServerCall();
+        String status = ScenarioEvents.STATUS_OK;
+        event.begin();
 
-        for (IBaseResource res : relatedResources(resource)) {
-            if (deleteResource(res)) {
-                count++;
+        try {
+            return call.get();
+        } catch (RuntimeException e) {
+            status = ScenarioEvents.getStatus(e);
+            throw e;
+        } finally {
+            event.end();
+
+            if (event.shouldCommit()) {
+                event.scenario = scenarioName;
+                event.resourceType = resourceType;
+                event.operation = operation;
+                event.status = status;
+                event.count = count;
+                event.commit();
             }
         }
-
-        return count;
     }
 
-    private boolean deleteResource(IBaseResource resource) {
-        try {
-            _deleteResource(resource);
-            return true;
-        } catch (Exception e) {
-            return false;
-        }
+    /**
+     * Creates or updates a resource on the server.
+     *
+     * @param resource The resource.
+     * @return The created or updated resource.
+     */
+    private IBaseResource serverCreateOrUpdate(IBaseResource resource) {
+        String operation = resource.getIdElement().hasIdPart() ? "update" : "create";
+        return serverCall(resource.fhirType(), operation, 1, () -> _createOrUpdateResource(resource));
     }
 
     /**
-     * Returns a list of all resources related to the reference resource.
+     * Performs one phase of the operation in progress, emitting a flight recorder event if enabled.
      *
-     * @param resource The reference resource.
-     * @return A list of all resources related to the reference resource.
+     * @param phase The phase name.
+     * @param task  Performs the phase.
+     * @return The result of the phase.
      */
-    private <T extends IBaseResource> List<T> relatedResources(T resource) {
-        List<T> resources;
+    private <T> T phase(
+            String phase,
+            Supplier<T> task) {
+        ScenarioEvents.Phase event = new ScenarioEvents.Phase();
+        event.begin();
 
         try {
-            resources = _relatedResources(resource);
-        } catch (Exception e) {
-            resources = new ArrayList<>();
+            return task.get();
+        } finally {
+            event.end();
+
+            if (event.shouldCommit()) {
+                event.scenario = scenarioName;
+                event.operation = operation;
+                event.phase = phase;
+                event.commit();
+            }
         }
+    }
 
-        resources.add(resource);
-        return resources;
+    private void phase(
+            String phase,
+            Runnable task) {
+        phase(phase, () -> {
+            task.run();
+            return null;
+        });
     }
 
     /**
-     * Creates or updates the specified resource, first tagging it as belonging to this scenario.
+     * Returns true if the scenario has been loaded.
      *
-     * @param resource The resource to create or update.
-     * @return The resource, possibly modified.
+     * @return True if the scenario has been loaded.
      */
-    private IBaseResource createOrUpdateResource(IBaseResource resource) {
-        if (resource instanceof IBaseBundle) {
-            List<? extends IBaseResource> resources = _getEntries((IBaseBundle) resource);
-
-            for (IBaseResource res : resources) {
-                createOrUpdateResource(res);
-            }
+    public final boolean isLoaded() {
+        return isLoaded;
+    }
 
-            return resource;
+    /**
+     * Initialize the scenario, bringing its resources into agreement with the scenario
+     * configuration. Resources are processed either in dependency order or, if the scenario
+     * specifies a transaction size, in transaction bundles. Each rendered resource is stamped with a
+     * hash of its content. An existing resource is left untouched if its hash matches and it has
+     * not been modified since the scenario was last packaged, updated in place if not, and created
+     * if it does not exist. Existing resources no longer defined by the scenario are deleted.
+     *
+     * <p>
+     * This runs on the calling thread and then updates the patient list, so the caller must be on
+     * the desktop thread.
+     *
+     * @return Count of resources in scenario.
+     */
+    public final int initialize() {
+        try {
+            return initialize(IScenarioMonitor.NONE);
+        } finally {
+            updatePatientList();
         }
-
-        addTags(resource);
-        resource = _createOrUpdateResource(resource);
-        addResource(resource);
-        return resource;
     }
 
     /**
-     * Adds a resource to the list of resources for this scenario.
+     * Initialize the scenario, reporting progress to a monitor. The patient list is not updated;
+     * see {@link #updatePatientList()}.
      *
-     * @param resource Scenario to add.
+     * @param monitor Receives progress notifications and may request cancellation.
+     * @return Count of resources in scenario.
+     * @see #initialize()
      */
-    private void addResource(IBaseResource resource) {
-        resources.add(resource);
-        addToPatientList(resource);
+    public final int initialize(IScenarioMonitor monitor) {
+        return execute("initialize", true, monitor, this::doInitialize);
     }
 
-    private InputStream getResourceAsStream(String name) {
+    private int doInitialize() {
+        List<List<String>> waves = createDependencyGraph().getWaves();
+        monitor.addTotal(scenarioConfig.size() * copies);
+        phase("load", this::doLoad);
+        Date packaged = baselineTimestamp = scenarioResources == null ? null : scenarioResources.getMeta().getLastUpdated();
+        List<IBaseResource> loaded = new ArrayList<>(resources);
+        baseline = new HashMap<>(resourcesByName);
+        clearResources();
+
         try {
-            return root.createRelative(name).getInputStream();
-        } catch (Exception e) {
-            throw MiscUtil.toUnchecked(e);
+            phase("create", () -> {
+                if (transactionSize > 0) {
+                    initializeByTransaction(waves);
+                } else {
+                    initializeByWaves(waves);
+                }
+            });
+        } finally {
+            baseline = Collections.emptyMap();
+            baselineTimestamp = null;
         }
+
+        phase("destroy", () -> deleteStaleResources(loaded));
+        phase("package", () -> {
+            scenarioResources = _packageResources(resources);
+            scenarioResources.setId(getId());
+            addTags(scenarioResources);
+            serverCreateOrUpdate(scenarioResources);
+        });
+        int count = resources.size() + phase("copy", () -> createCopies(waves, packaged));
+        phase("destroy", () -> deleteCopies(waves, copies + 1));
+        return count;
     }
 
-    private IBaseResource parseResource(
-            String source,
-            Map<String, String> params) {
-        source = addExtension(source);
-        IParser parser = source.endsWith(".xml") ? fhirContext.newXmlParser() : fhirContext.newJsonParser();
-        StringBuilder sb = new StringBuilder();
-
-        try (InputStream is = getResourceAsStream(source)) {
-            List<String> json = IOUtils.readLines(is, "UTF-8");
-
-            for (String s : json) {
-                int p1;
-
-                while ((p1 = s.indexOf("${")) > -1) {
-                    int p2 = s.indexOf("}", p1);
-                    Assert.isTrue(p2 > -1, "No closing bracket for placeholder");
-                    String key = s.substring(p1 + 2, p2);
-                    int p3 = key.indexOf(":");
-                    String dflt = "";
-
-                    if (p3 > 0) {
-                        dflt = key.substring(p3 + 1);
-                        key = key.substring(0, p3);
-                    }
+    /**
+     * Creates or updates the copies of the resource graph other than the original. Copies are
+     * streamed to the server: up to the configured parallelism, copies are created concurrently,
+     * each issuing one request at a time, and no further copy is rendered until one of these
+     * completes. Created resources are not retained, other than as references within their copy.
+     *
+     * @param waves     The dependency graph waves, which determine the order of creation within a
+     *                  copy.
+     * @param packaged  The time the scenario was last packaged. Existing resources modified after
+     *                  this time are considered changed.
+     * @return The number of resources in the copies.
+     */
+    private int createCopies(
+            List<List<String>> waves,
+            Date packaged) {
+        if (copies <= 1) {
+            return 0;
+        }
 
-                    String value = params.get(key);
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        Semaphore inFlight = new Semaphore(parallelism);
+        AtomicInteger count = new AtomicInteger();
+        AtomicReference<RuntimeException> failure = new AtomicReference<>();
 
-                    if (value == null && !dflt.isEmpty()) {
-                        value = dflt;
+        try {
+            for (int i = 2; i <= copies && failure.get() == null && !monitor.isCancelled(); i++) {
+                ScenarioCopy copy = new ScenarioCopy(scenarioId.getIdPart(), i);
+                inFlight.acquireUninterruptibly();
+                executor.execute(() -> {
+                    try {
+                        count.addAndGet(createCopy(copy, waves, packaged));
+                    } catch (RuntimeException e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        inFlight.release();
                     }
+                });
+            }
 
-                    Assert.notNull(value, "Reference not found: " + key);
-                    String r = eval(value);
-                    s = s.substring(0, p1) + r + s.substring(p2 + 1);
-                }
+            inFlight.acquireUninterruptibly(parallelism);
+        } finally {
+            executor.shutdown();
+        }
 
-                sb.append(s).append('\n');
-            }
-        } catch (Exception e) {
-            throw MiscUtil.toUnchecked(e);
+        if (failure.get() != null) {
+            throw failure.get();
         }
 
-        return parser.parseResource(sb.toString());
+        checkCancelled();
+        return count.get();
     }
 
     /**
-     * Add default extension if one is not present.
+     * Creates or updates the resources in one copy of the resource graph, in dependency order.
      *
-     * @param source File resource path.
-     * @return File resource path with extension.
+     * @param copy     The copy.
+     * @param waves    The dependency graph waves.
+     * @param packaged The time the scenario was last packaged.
+     * @return The number of resources in the copy.
      */
-    private String addExtension(String source) {
-        return source.contains(".") ? source : source + ".json";
+    private int createCopy(
+            ScenarioCopy copy,
+            List<List<String>> waves,
+            Date packaged) {
+        int count = 0;
+
+        for (List<String> wave : waves) {
+            for (String name : wave) {
+                Map<String, String> params = scenarioConfig.get(name);
+                IBaseResource resource = parseResource(ScenarioUtil.getParam(params, "source"), params, copy);
+                Assert.isTrue(!(resource instanceof IBaseBundle), () -> "A bundle cannot be copied: " + name);
+                CopyRecord record = copyRecords.get(getCopyKey(name, copy.getIndex()));
+                IBaseResource result;
+                String action;
+
+                if (record != null && record.hash != null && record.hash.equals(ScenarioUtil.getContentHash(resource))
+                        && record.lastUpdated != null && packaged != null && !record.lastUpdated.after(packaged)) {
+                    result = createStub(record.id);
+                    action = "Unchanged";
+                } else {
+                    resource.setId(record == null ? null : record.id);
+                    FhirUtil.addTag(ScenarioUtil.createNamedResourceTag(name), resource);
+                    FhirUtil.addTag(ScenarioUtil.createCopyTag(copy.getIndex()), resource);
+                    addTags(resource);
+                    checkCancelled();
+                    result = serverCreateOrUpdate(resource);
+                    action = record == null ? "Created" : "Updated";
+                }
+
+                copy.addReference(name, result.fhirType() + "/" + result.getIdElement().getIdPart());
+                logAction(result, action);
+                count++;
+            }
+        }
+
+        return count;
     }
 
     /**
-     * Evaluate an expression.
+     * Deletes existing resources belonging to copies of the resource graph with an index at or
+     * above the specified value, or whose names are no longer defined by the scenario. Resources are
+     * deleted in batches, in reverse dependency order.
      *
-     * @param exp The expression. The general format is
-     *            <p>
-     *            <code>type/value</code>
-     *            </p>
-     *            If <code>type</code> is omitted, it is assumed to be a placeholder for a resource
-     *            previously defined. Possible values for <code>type</code> are:
-     *            <ul>
-     *            <li>value - A literal value; inserted as is</li>
-     *            <li>date - A date value; can be a relative date (LIST+n, for example)</li>
-     *            <li>image - A file containing an image</li>
-     *            <li>snippet - A file containing a snippet to be inserted</li>
-     *            </ul>
-     * @return The result of the evaluation.
+     * @param waves     The dependency graph waves.
+     * @param fromIndex The lowest copy index to delete.
+     * @return The number of resources deleted.
      */
-    private String eval(String exp) {
-        int i = exp.indexOf('/');
-
-        if (i == -1) {
-            IBaseResource resource = getNamedResource(exp);
-            Assert.notNull(resource, () -> "Resource not defined: " + exp);
-            return resource.getIdElement().getResourceType() + "/" + resource.getIdElement().getIdPart();
+    private int deleteCopies(
+            List<List<String>> waves,
+            int fromIndex) {
+        List<String> names = waves.stream().flatMap(List::stream).collect(Collectors.toList());
+        Map<String, List<String>> keysByName = new LinkedHashMap<>();
+        Collections.reverse(names);
+
+        for (String key : copyRecords.keySet()) {
+            int i = key.lastIndexOf('#');
+            String name = key.substring(0, i);
+
+            if (!scenarioConfig.containsKey(name) || Integer.parseInt(key.substring(i + 1)) >= fromIndex) {
+                keysByName.computeIfAbsent(name, k -> new ArrayList<>()).add(key);
+            }
         }
 
-        String type = exp.substring(0, i);
-        String value = exp.substring(i + 1);
+        List<String> keys = new ArrayList<>();
+        keysByName.keySet().stream().filter(name -> !names.contains(name)).forEach(name -> keys.addAll(keysByName.get(name)));
+        names.stream().filter(keysByName::containsKey).forEach(name -> keys.addAll(keysByName.get(name)));
+        monitor.addTotal(keys.size());
+        int count = 0;
 
-        if ("value".equals(type)) {
-            return value;
-        }
+        int batchSize = getBatchSize();
 
-        if ("date".equals(type)) {
-            return doDate(value, true);
+        for (int i = 0; i < keys.size(); i += batchSize) {
+            count += deleteCopyBatch(keys.subList(i, Math.min(i + batchSize, keys.size())));
         }
 
-        if ("datetime".equals(type)) {
-            return doDate(value, false);
-        }
+        return count;
+    }
 
-        if ("image".equals(type)) {
-            return doBinary(exp);
+    private int deleteCopyBatch(List<String> keys) {
+        List<BundleRequestEntry> entries = new ArrayList<>(keys.size());
+        int count = 0;
+
+        for (String key : keys) {
+            IIdType id = copyRecords.get(key).id;
+            entries.add(BundleRequestEntry.delete(id.getResourceType() + "/" + id.getIdPart()));
         }
 
-        if ("snippet".equals(type)) {
-            return doSnippet(exp);
+        try {
+            executeBundle(entries, false);
+        } catch (CancellationException e) {
+            throw e;
+        } catch (Exception e) {
+            log.warn(() -> "Error deleting scenario copies: " + e.getMessage());
         }
 
-        throw new RuntimeException("Unknown type: " + type);
+        for (int i = 0; i < keys.size(); i++) {
+            IBaseResource stub = createStub(copyRecords.get(keys.get(i)).id);
+
+            if (entries.get(i).isSuccess()) {
+                count++;
+                copyRecords.remove(keys.get(i));
+                logAction(stub, "Deleted");
+            } else {
+                logAction(stub, "Failed to delete");
+            }
+        }
+
+        return count;
     }
 
-    private String doBinary(String value) {
-        try (InputStream is = getResourceAsStream(value)) {
-            return Base64.encodeBase64String(IOUtils.toByteArray(is));
+    /**
+     * Returns the key under which an existing resource belonging to a copy is recorded.
+     *
+     * @param name  The resource name.
+     * @param index The copy index.
+     * @return The key.
+     */
+    private String getCopyKey(
+            String name,
+            int index) {
+        return name + "#" + index;
+    }
+
+    /**
+     * Creates an empty resource with the specified id, used to report on resources that are not
+     * retained in full.
+     *
+     * @param id The resource id.
+     * @return An empty resource with the specified id.
+     */
+    private IBaseResource createStub(IIdType id) {
+        IBaseResource stub = fhirContext.getResourceDefinition(id.getResourceType()).newInstance();
+        stub.setId(id);
+        return stub;
+    }
+
+    /**
+     * Compares a newly rendered resource with the existing resource of the same name, if any.
+     *
+     * @param name     The resource name.
+     * @param resource The newly rendered resource. If it differs from the existing resource, it
+     *                 receives the existing resource's id so that it replaces it.
+     * @return The existing resource if it is unchanged; otherwise, null.
+     */
+    private IBaseResource reconcile(
+            String name,
+            IBaseResource resource) {
+        IBaseResource current = resource instanceof IBaseBundle ? null : baseline.get(name);
+
+        if (current == null) {
+            return null;
+        }
+
+        if (ScenarioUtil.isUnchanged(current, resource, baselineTimestamp)) {
+            return current;
+        }
+
+        resource.setId(current.getIdElement().toUnqualifiedVersionless());
+        return null;
+    }
+
+    /**
+     * Deletes previously existing resources that are no longer part of the scenario.
+     *
+     * @param loaded The resources that existed before initialization.
+     */
+    private void deleteStaleResources(List<IBaseResource> loaded) {
+        List<IBaseResource> stale = loaded.stream()
+                .filter(resource -> !resourcesById.containsKey(getKey(resource)))
+                .collect(Collectors.toList());
+
+        if (stale.isEmpty()) {
+            return;
+        }
+
+        List<IBaseResource> failed = createTeardown().delete(stale, null, getServerCapabilities());
+
+        for (IBaseResource resource : stale) {
+            logAction(resource, failed.contains(resource) ? "Failed to delete" : "Deleted");
+        }
+    }
+
+    private String getKey(IBaseResource resource) {
+        return resource.fhirType() + "/" + resource.getIdElement().getIdPart();
+    }
+
+    /**
+     * Builds the dependency graph for the scenario's named resources from the placeholders in their
+     * templates.
+     *
+     * @return The dependency graph.
+     */
+    private ScenarioDependencyGraph createDependencyGraph() {
+        ScenarioDependencyGraph graph = new ScenarioDependencyGraph();
+
+        for (String name : scenarioConfig.keySet()) {
+            graph.add(name, getDependencies(name));
+        }
+
+        return graph;
+    }
+
+    /**
+     * Creates all resources, one wave of the dependency graph at a time. Resources within a wave
+     * have no dependencies on one another and are created concurrently, up to the configured
+     * parallelism. Created resources are added to the scenario only after the entire wave has
+     * completed, so that rendering never observes a partially updated resource list.
+     *
+     * @param waves The dependency graph waves.
+     */
+    private void initializeByWaves(List<List<String>> waves) {
+        int threads = Math.min(parallelism, ScenarioDependencyGraph.getWidth(waves));
+        ExecutorService executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+
+        try {
+            for (List<String> wave : waves) {
+                if (executor == null || wave.size() == 1) {
+                    for (String name : wave) {
+                        createResource(name).forEach(this::addResource);
+                    }
+                } else {
+                    initializeWave(wave, executor);
+                }
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Concurrently creates all resources in a wave. No created resource is added to the scenario
+     * until every creation in the wave has completed, since the resources being created may read
+     * the scenario state while rendering. If any creation fails, the successfully created resources
+     * are still recorded before the first exception is rethrown.
+     *
+     * @param wave     Names of the resources to create.
+     * @param executor The executor.
+     */
+    private void initializeWave(
+            List<String> wave,
+            ExecutorService executor) {
+        List<CompletableFuture<List<IBaseResource>>> futures = new ArrayList<>(wave.size());
+        RuntimeException exception = null;
+
+        for (String name : wave) {
+            futures.add(CompletableFuture.supplyAsync(() -> createResource(name), executor));
+        }
+
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+        } catch (CompletionException e) {
+            // Failures are reported below, in wave order.
+        }
+
+        for (CompletableFuture<List<IBaseResource>> future : futures) {
+            try {
+                future.join().forEach(this::addResource);
+            } catch (CompletionException e) {
+                exception = exception != null ? exception : MiscUtil.toUnchecked(e.getCause());
+            }
+        }
+
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
+    /**
+     * Renders, tags and creates or updates a named resource, unless it is unchanged from the
+     * existing resource. This may be called concurrently for resources that do not depend on one
+     * another, so it must not modify scenario state.
+     *
+     * @param name The unique name associated with the resource.
+     * @return The created, updated or unchanged resources (more than one if the template is a
+     *         bundle).
+     */
+    private List<IBaseResource> createResource(String name) {
+        checkCancelled();
+        Map<String, String> params = scenarioConfig.get(name);
+        String source = ScenarioUtil.getParam(params, "source");
+        IBaseResource resource = parseResource(source, params, original);
+        IBaseResource current = reconcile(name, resource);
+
+        if (current != null) {
+            logAction(current, "Unchanged");
+            return Collections.singletonList(current);
+        }
+
+        String action = baseline.containsKey(name) && !(resource instanceof IBaseBundle) ? "Updated" : "Created";
+        FhirUtil.addTag(ScenarioUtil.createNamedResourceTag(name), resource);
+        List<IBaseResource> created = new ArrayList<>();
+        createOrUpdateResource(resource, created);
+        created.forEach(res -> logAction(res, action));
+        return created;
+    }
+
+    /**
+     * Creates all resources using transaction bundles of no more than the configured size. Within a
+     * transaction, references to resources created by the same transaction are expressed as
+     * temporary urn:uuid references to be resolved by the server. A bundle is committed only
+     * between resources, so references to resources in earlier bundles resolve to server ids.
+     *
+     * @param waves The dependency graph waves, which determine the order of creation.
+     */
+    private void initializeByTransaction(List<List<String>> waves) {
+        List<BundleRequestEntry> entries = new ArrayList<>();
+        List<String> names = waves.stream().flatMap(List::stream).collect(Collectors.toList());
+
+        try {
+            for (String name : names) {
+                checkCancelled();
+                Map<String, String> params = scenarioConfig.get(name);
+                String source = ScenarioUtil.getParam(params, "source");
+                IBaseResource resource = parseResource(source, params, original);
+                IBaseResource current = reconcile(name, resource);
+
+                if (current != null) {
+                    addResource(current);
+                    logAction(current, "Unchanged");
+                    continue;
+                }
+
+                FhirUtil.addTag(ScenarioUtil.createNamedResourceTag(name), resource);
+                String reference = addTransactionEntries(resource, entries);
+
+                if (reference != null) {
+                    pendingReferences.put(name, reference);
+                }
+
+                if (entries.size() >= transactionSize) {
+                    commitTransaction(entries);
+                }
+            }
+
+            commitTransaction(entries);
+        } finally {
+            pendingReferences.clear();
+        }
+    }
+
+    /**
+     * Adds transaction entries for a resource. If the resource is a bundle, an entry is added for
+     * each bundled resource.
+     *
+     * @param resource The resource.
+     * @param entries  The list of transaction entries.
+     * @return The reference by which other resources in the transaction may refer to this one, or
+     *         null if the resource is a bundle.
+     */
+    private String addTransactionEntries(
+            IBaseResource resource,
+            List<BundleRequestEntry> entries) {
+        if (resource instanceof IBaseBundle) {
+            for (IBaseResource res : _getEntries((IBaseBundle) resource)) {
+                addTransactionEntries(res, entries);
+            }
+
+            return null;
+        }
+
+        addTags(resource);
+        IIdType id = resource.getIdElement();
+
+        if (id.hasIdPart()) {
+            entries.add(BundleRequestEntry.update(resource));
+            return resource.fhirType() + "/" + id.getIdPart();
+        }
+
+        String fullUrl = "urn:uuid:" + UUID.randomUUID();
+        entries.add(BundleRequestEntry.create(fullUrl, resource));
+        return fullUrl;
+    }
+
+    /**
+     * Submits pending transaction entries to the server and adds the resulting resources to the
+     * scenario. A transaction is atomic, so if any entry failed, nothing was committed and no
+     * resource is added. Where the server returned no resource body, references among the created
+     * resources are resolved from the response locations before the resources are added.
+     *
+     * @param entries The transaction entries. This list is cleared upon successful completion.
+     * @throws RuntimeException If the transaction failed, or if a resource's id could not be
+     *                          determined from the response.
+     */
+    private void commitTransaction(List<BundleRequestEntry> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+
+        executeBundle(entries, true);
+        List<BundleRequestEntry> failed = entries.stream()
+                .filter(entry -> !entry.isSuccess())
+                .collect(Collectors.toList());
+
+        if (!failed.isEmpty()) {
+            failed.forEach(entry -> log.warn(() -> "Failed to create resource: " + entry.getUrl() + " (status: " + entry.getStatus() + ")"));
+            throw new RuntimeException("Transaction failed for scenario " + getName() + ": " + failed.size() + " of "
+                    + entries.size() + " entries were rejected and no resources were created");
+        }
+
+        BundleRequestEntry.resolveReferences(fhirContext, entries);
+        int unidentified = 0;
+
+        for (BundleRequestEntry entry : entries) {
+            IBaseResource resource = entry.getResult();
+
+            if (resource == null || !resource.getIdElement().hasIdPart()) {
+                unidentified++;
+                log.warn(() -> "No id returned for resource: " + entry.getUrl() + " (status: " + entry.getStatus() + ")");
+                continue;
+            }
+
+            addResource(resource);
+            logAction(resource, entry.getStatus().startsWith("201") ? "Created" : "Updated");
+        }
+
+        if (unidentified > 0) {
+            throw new RuntimeException(unidentified + " of " + entries.size() + " resources created by a transaction for scenario "
+                    + getName() + " could not be identified");
+        }
+
+        entries.clear();
+        pendingReferences.clear();
+    }
+
+    /**
+     * Load all resources for this scenario. This runs on the calling thread and then updates the
+     * patient list, so the caller must be on the desktop thread.
+     *
+     * @return Count of resources loaded for this scenario.
+     */
+    public final int load() {
+        try {
+            return load(IScenarioMonitor.NONE);
+        } finally {
+            updatePatientList();
+        }
+    }
+
+    /**
+     * Load all resources for this scenario, allowing the operation to be cancelled. The patient
+     * list is not updated; see {@link #updatePatientList()}.
+     *
+     * @param monitor May request cancellation.
+     * @return Count of resources loaded for this scenario.
+     */
+    public final int load(IScenarioMonitor monitor) {
+        return execute("load", true, monitor, this::doLoad);
+    }
+
+    private int doLoad() {
+        isLoaded = true;
+        clearResources();
+        copyRecords.clear();
+
+        synchronized (pendingPatients) {
+            pendingPatients.clear();
+            pendingFilterReset = true;
+        }
+
+        scenarioResources = _loadResources(this::addLoadedResource);
+        return resources.size() + copyRecords.size();
+    }
+
+    /**
+     * Adds a loaded resource to the scenario. Resources belonging to copies of the resource graph
+     * other than the original are only recorded in summary.
+     *
+     * @param resource The loaded resource.
+     */
+    private void addLoadedResource(IBaseResource resource) {
+        int index = ScenarioUtil.getCopyIndex(resource);
+        IBaseCoding tag = index == 1 ? null : FhirUtil.getTagBySystem(resource, ScenarioUtil.RESOURCE_URN);
+
+        if (tag == null) {
+            addResource(resource);
+        } else {
+            copyRecords.put(getCopyKey(tag.getCode(), index), new CopyRecord(resource));
+        }
+    }
+
+    /**
+     * Exports all resources belonging to this scenario as an NDJSON snapshot. The scenario is first
+     * loaded. Resources are written in an order in which no resource precedes a resource it
+     * references. Resources belonging to copies of the resource graph are retrieved from the server
+     * in batches as they are written.
+     *
+     * @param writer Receives the snapshot.
+     * @return The number of resources exported.
+     * @see #importSnapshot(Reader)
+     */
+    public final int exportSnapshot(Writer writer) {
+        return execute("export", false, IScenarioMonitor.NONE, () -> doExport(writer));
+    }
+
+    private int doExport(Writer writer) {
+        phase("load", this::doLoad);
+
+        return phase("export", () -> {
+            AtomicInteger count = new AtomicInteger();
+            Consumer<IBaseResource> out = createSnapshot().writer(writer).andThen(resource -> count.incrementAndGet());
+            List<List<IBaseResource>> waves = createTeardown().getWaves(resources);
+            Collections.reverse(waves);
+            waves.forEach(wave -> wave.forEach(out));
+
+            if (scenarioResources != null) {
+                out.accept(scenarioResources);
+            }
+
+            int expected = count.get() + copyRecords.size();
+            Map<String, List<IIdType>> copyIds = new HashMap<>();
+
+            copyRecords.forEach((key, record) -> copyIds
+                    .computeIfAbsent(key.substring(0, key.lastIndexOf('#')), k -> new ArrayList<>())
+                    .add(record.id));
+
+            for (List<String> wave : createDependencyGraph().getWaves()) {
+                for (String name : wave) {
+                    List<IIdType> ids = copyIds.get(name);
+
+                    if (ids != null) {
+                        checkCancelled();
+                        resourceLoader.loadById(ids, out);
+                    }
+                }
+            }
+
+            if (count.get() < expected) {
+                log.warn(() -> "Exported " + count.get() + " of " + expected + " resources for scenario " + getName());
+            }
+
+            return count.get();
+        });
+    }
+
+    /**
+     * Restores a snapshot previously produced by {@link #exportSnapshot(Writer)}, then loads the
+     * scenario. This runs on the calling thread and then updates the patient list, so the caller
+     * must be on the desktop thread.
+     *
+     * @param reader Supplies the snapshot.
+     * @return The number of resources restored.
+     */
+    public final int importSnapshot(Reader reader) {
+        try {
+            return importSnapshot(reader, IScenarioMonitor.NONE);
+        } finally {
+            updatePatientList();
+        }
+    }
+
+    /**
+     * Restores a snapshot, reporting progress to a monitor. The snapshot is read a line at a time
+     * and written to the server in transactions as it is read, so it is never held in memory in
+     * its entirety. Every resource in the snapshot must bear this scenario's tag.
+     *
+     * @param reader  Supplies the snapshot.
+     * @param monitor Receives progress notifications and may request cancellation.
+     * @return The number of resources restored.
+     * @see #importSnapshot(Reader)
+     */
+    public final int importSnapshot(
+            Reader reader,
+            IScenarioMonitor monitor) {
+        return execute("import", false, monitor, () -> doImport(reader));
+    }
+
+    private int doImport(Reader reader) {
+        int count = phase("import", () -> createSnapshot()
+                .read(reader, this::checkSnapshotResource, resource -> logAction(resource, "Restored")));
+        phase("load", this::doLoad);
+        return count;
+    }
+
+    private void checkSnapshotResource(IBaseResource resource) {
+        Assert.isTrue(FhirUtil.hasTag(scenarioTag, resource),
+                () -> "Resource does not belong to scenario " + getName() + ": " + getKey(resource));
+        monitor.addTotal(1);
+    }
+
+    private ScenarioSnapshot createSnapshot() {
+        return new ScenarioSnapshot(fhirContext, this::executeBundle, getBatchSize(), parallelism);
+    }
+
+    /**
+     * Returns the maximum number of entries in a batch or transaction bundle: the scenario's
+     * transaction size if it specifies one, or the default otherwise.
+     *
+     * @return The maximum number of entries in a bundle.
+     */
+    private int getBatchSize() {
+        return transactionSize > 0 ? transactionSize : ScenarioFactory.DEFAULT_TRANSACTION_SIZE;
+    }
+
+    /**
+     * Creates a helper for deleting resources in batches of the configured size.
+     *
+     * @return The teardown helper.
+     */
+    private ScenarioTeardown createTeardown() {
+        return new ScenarioTeardown(fhirContext, this::executeBundle, getBatchSize());
+    }
+
+    /**
+     * Destroy all resources belonging to this scenario. Resources are first deleted in batches, in
+     * an order determined by the references among them. Any that cannot be deleted this way
+     * (usually because resources outside the scenario refer to them) are then deleted individually,
+     * after the resources that refer to them.
+     *
+     * <p>
+     * This runs on the calling thread and then updates the patient list, so the caller must be on
+     * the desktop thread.
+     *
+     * @return The number of resources successfully deleted.
+     */
+    public final int destroy() {
+        try {
+            return destroy(IScenarioMonitor.NONE);
+        } finally {
+            updatePatientList();
+        }
+    }
+
+    /**
+     * Destroy all resources belonging to this scenario, reporting progress to a monitor. The
+     * patient list is not updated; see {@link #updatePatientList()}.
+     *
+     * @param monitor Receives progress notifications and may request cancellation.
+     * @return The number of resources successfully deleted.
+     * @see #destroy()
+     */
+    public final int destroy(IScenarioMonitor monitor) {
+        return execute("destroy", true, monitor, this::doDestroy);
+    }
+
+    private int doDestroy() {
+        phase("load", this::doLoad);
+        monitor.addTotal(resources.size());
+        return phase("destroy", () -> {
+            int copyCount = copyRecords.isEmpty() ? 0 : deleteCopies(createDependencyGraph().getWaves(), 2);
+            return deleteAll() + copyCount;
+        });
+    }
+
+    /**
+     * Deletes all loaded resources belonging to this scenario, excluding copies.
+     *
+     * @return The number of resources successfully deleted.
+     */
+    private int deleteAll() {
+        List<IBaseResource> targets = new ArrayList<>(resources);
+
+        if (scenarioResources != null) {
+            targets.add(0, scenarioResources);
+        }
+
+        Set<IBaseResource> failed = Collections.newSetFromMap(new IdentityHashMap<>());
+        failed.addAll(createTeardown().delete(targets, scenarioTag, getServerCapabilities()));
+        int count = 0;
+        Iterator<IBaseResource> iterator = resources.iterator();
+
+        while (iterator.hasNext()) {
+            IBaseResource resource = iterator.next();
+
+            if (!failed.contains(resource)) {
+                count++;
+                iterator.remove();
+                unindexResource(resource);
+                logAction(resource, "Deleted");
+            }
+        }
+
+        if (scenarioResources != null && failed.contains(scenarioResources)) {
+            deleteResource(scenarioResources);
+        }
+
+        scenarioResources = null;
+        count += deleteRemaining();
+
+        for (IBaseResource resource : resources) {
+            logAction(resource, "Failed to delete");
+        }
+
+        return count;
+    }
+
+    /**
+     * Returns the capabilities of the server, retrieving them on first use.
+     *
+     * @return The server capabilities.
+     */
+    private ServerCapabilities getServerCapabilities() {
+        if (serverCapabilities == null) {
+            serverCapabilities = ServerCapabilities.fetch(client);
+        }
+
+        return serverCapabilities;
+    }
+
+    /**
+     * Repeatedly attempts to delete each remaining resource, along with any resources that refer to
+     * it, until no further progress is made.
+     *
+     * @return The number of remaining resources successfully deleted.
+     */
+    private int deleteRemaining() {
+        if (resources.isEmpty()) {
+            return 0;
+        }
+
+        ScenarioReferenceIndex index = createReferenceIndex();
+        Set<String> deleted = new HashSet<>();
+        int count = 0;
+        boolean stop = false;
+
+        while (!stop) {
+            stop = true;
+            Iterator<IBaseResource> iterator = resources.iterator();
+
+            while (iterator.hasNext()) {
+                IBaseResource resource = iterator.next();
+
+                if (deleteWithReferrers(resource, index, deleted, Collections.newSetFromMap(new IdentityHashMap<>()))) {
+                    count++;
+                    stop = false;
+                    iterator.remove();
+                    unindexResource(resource);
+                    logAction(resource, "Deleted");
+                }
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Builds an index of the references to the remaining resources. References among the remaining
+     * resources are found locally. References from resources outside the scenario are found using
+     * one reverse include search for each resource type. If that search is not supported, only local
+     * references are indexed.
+     *
+     * @return The reference index.
+     */
+    private ScenarioReferenceIndex createReferenceIndex() {
+        ScenarioReferenceIndex index = new ScenarioReferenceIndex(fhirContext);
+        resources.forEach(index::add);
+
+        resourcesByType.forEach((type, resourcesOfType) -> {
+            checkCancelled();
+            List<String> ids = resourcesOfType.stream()
+                    .map(resource -> resource.getIdElement().getIdPart())
+                    .collect(Collectors.toList());
+
+            try {
+                serverCall(type, "_revinclude", ids.size(), () -> {
+                    resourceLoader.loadWithReferrers(type, ids, index::add);
+                    return null;
+                });
+            } catch (Exception e) {
+                log.debug(() -> "Unable to find resources referring to " + type + " resources: " + e.getMessage());
+            }
+        });
+
+        return index;
+    }
+
+    /**
+     * Deletes a resource after first deleting, recursively, the resources that refer to it.
+     *
+     * @param resource The resource to delete.
+     * @param index    The reference index.
+     * @param deleted  Keys of resources already deleted.
+     * @param visited  Resources visited during this attempt (used to break reference cycles).
+     * @return True if the resource was deleted.
+     */
+    private boolean deleteWithReferrers(
+            IBaseResource resource,
+            ScenarioReferenceIndex index,
+            Set<String> deleted,
+            Set<IBaseResource> visited) {
+        String key = getKey(resource);
+
+        if (deleted.contains(key)) {
+            return true;
+        }
+
+        if (!visited.add(resource)) {
+            return false;
+        }
+
+        for (IBaseResource referrer : index.getReferrers(resource)) {
+            deleteWithReferrers(referrer, index, deleted, visited);
+        }
+
+        if (deleteResource(resource)) {
+            deleted.add(key);
+            return true;
+        }
+
+        return false;
+    }
+
+    private boolean deleteResource(IBaseResource resource) {
+        checkCancelled();
+
+        try {
+            serverCall(resource.fhirType(), "delete", 1, () -> {
+                _deleteResource(resource);
+                return null;
+            });
+            return true;
         } catch (Exception e) {
-            throw MiscUtil.toUnchecked(e);
+            return false;
         }
     }
 
-    private String doSnippet(String value) {
-        value = addExtension(value);
+    /**
+     * Creates or updates the specified resource, first tagging it as belonging to this scenario. If
+     * the resource is a bundle, each bundled resource is created or updated instead.
+     *
+     * @param resource The resource to create or update.
+     * @param created  Receives the created or updated resources.
+     */
+    private void createOrUpdateResource(
+            IBaseResource resource,
+            List<IBaseResource> created) {
+        if (resource instanceof IBaseBundle) {
+            List<? extends IBaseResource> resources = _getEntries((IBaseBundle) resource);
+
+            for (IBaseResource res : resources) {
+                createOrUpdateResource(res, created);
+            }
+
+            return;
+        }
+
+        addTags(resource);
+        checkCancelled();
+        created.add(serverCreateOrUpdate(resource));
+    }
+
+    /**
+     * Adds a resource to the list of resources for this scenario, updating the indexes.
+     *
+     * @param resource Scenario to add.
+     */
+    private void addResource(IBaseResource resource) {
+        resources.add(resource);
+        IBaseCoding tag = FhirUtil.getTagBySystem(resource, ScenarioUtil.RESOURCE_URN);
+
+        if (tag != null) {
+            resourcesByName.putIfAbsent(tag.getCode(), resource);
+        }
 
-        try (InputStream is = getResourceAsStream(value)) {
-            return IOUtils.toString(is, StandardCharsets.UTF_8);
+        resourcesById.put(getKey(resource), resource);
+        resourcesByType.computeIfAbsent(resource.fhirType(), k -> new LinkedHashSet<>()).add(resource);
+        addToPatientList(resource);
+    }
+
+    /**
+     * Removes a resource from the indexes after it has been removed from the list of resources.
+     *
+     * @param resource The removed resource.
+     */
+    private void unindexResource(IBaseResource resource) {
+        IBaseCoding tag = FhirUtil.getTagBySystem(resource, ScenarioUtil.RESOURCE_URN);
+
+        if (tag != null) {
+            resourcesByName.remove(tag.getCode(), resource);
+        }
+
+        resourcesById.remove(getKey(resource), resource);
+        Set<IBaseResource> resourcesOfType = resourcesByType.get(resource.fhirType());
+
+        if (resourcesOfType != null) {
+            resourcesOfType.remove(resource);
+
+            if (resourcesOfType.isEmpty()) {
+                resourcesByType.remove(resource.fhirType());
+            }
+        }
+    }
+
+    /**
+     * Clears the list of resources and its indexes.
+     */
+    private void clearResources() {
+        resources.clear();
+        resourcesByName.clear();
+        resourcesById.clear();
+        resourcesByType.clear();
+    }
+
+    private Resource getRelative(String name) {
+        try {
+            return root.createRelative(name);
         } catch (Exception e) {
             throw MiscUtil.toUnchecked(e);
         }
     }
 
+    /**
+     * Returns the names of all resources referenced by placeholders in a named resource's template,
+     * including placeholders within snippets and literal values, which are resolved recursively
+     * when the template is rendered.
+     *
+     * @param name The resource name.
+     * @return The names of the referenced resources.
+     */
+    private Set<String> getDependencies(String name) {
+        Map<String, String> params = scenarioConfig.get(name);
+        Set<String> dependencies = new LinkedHashSet<>();
+        List<String> placeholders = getTemplate(ScenarioUtil.getParam(params, "source")).getPlaceholders();
+        addDependencies(placeholders, params, dependencies, new HashSet<>());
+        return dependencies;
+    }
+
+    /**
+     * Adds the names of the resources referenced by placeholders, descending into any placeholders
+     * within the values substituted for them.
+     *
+     * @param placeholders The placeholders.
+     * @param params       The resource's parameters.
+     * @param dependencies Receives the names of the referenced resources.
+     * @param visited      Placeholders already examined (used to break cycles).
+     */
+    private void addDependencies(
+            List<String> placeholders,
+            Map<String, String> params,
+            Set<String> dependencies,
+            Set<String> visited) {
+        for (String placeholder : placeholders) {
+            if (!visited.add(placeholder)) {
+                continue;
+            }
+
+            String exp = getExpression(placeholder, params);
+            int i = exp.indexOf('/');
+
+            if (i == -1) {
+                dependencies.add(exp);
+                continue;
+            }
+
+            String type = exp.substring(0, i);
+            String value = "snippet".equals(type) ? doSnippet(exp) : "value".equals(type) ? exp.substring(i + 1) : null;
+
+            if (value != null && value.contains("${")) {
+                addDependencies(ScenarioTemplate.compile(placeholder, value).getPlaceholders(), params, dependencies, visited);
+            }
+        }
+    }
+
+    /**
+     * Returns the compiled template for a source.
+     *
+     * @param source File resource path.
+     * @return The compiled template.
+     */
+    private ScenarioTemplate getTemplate(String source) {
+        ScenarioTemplate template = templates.get(ScenarioUtil.addExtension(source));
+        Assert.notNull(template, () -> "Template not found: " + source);
+        return template;
+    }
+
+    /**
+     * Returns the expression to be evaluated for a placeholder.
+     *
+     * @param placeholder The placeholder, in the form <code>key[:default]</code>.
+     * @param params      The resource's parameters.
+     * @return The parameter value for the placeholder key, or the default value if none.
+     */
+    private String getExpression(
+            String placeholder,
+            Map<String, String> params) {
+        int p = placeholder.indexOf(":");
+        String key = p > 0 ? placeholder.substring(0, p) : placeholder;
+        String dflt = p > 0 ? placeholder.substring(p + 1) : "";
+        String value = params.get(key);
+
+        if (value == null && !dflt.isEmpty()) {
+            value = dflt;
+        }
+
+        Assert.notNull(value, "Reference not found: " + key);
+        return value;
+    }
+
+    /**
+     * Renders a resource from its compiled template, streaming the output directly to the parser.
+     * The parsed resource is stamped with a hash of the rendered content.
+     *
+     * @param source File resource path of the template.
+     * @param params The resource's parameters.
+     * @param copy   The copy of the resource graph being rendered.
+     * @return The parsed resource.
+     */
+    private IBaseResource parseResource(
+            String source,
+            Map<String, String> params,
+            ScenarioCopy copy) {
+        ScenarioEvents.TemplateRender event = new ScenarioEvents.TemplateRender();
+        event.begin();
+
+        try {
+            ScenarioTemplate template = getTemplate(source);
+            IParser parser = template.isXml() ? fhirContext.newXmlParser() : fhirContext.newJsonParser();
+            RenderedTemplate rendered = template.render(placeholder -> resolve(placeholder, params, copy));
+            IBaseResource resource = parser.parseResource(rendered);
+            ScenarioUtil.setContentHash(fhirContext, resource, rendered.getHash());
+            return resource;
+        } finally {
+            event.end();
+
+            if (event.shouldCommit()) {
+                event.scenario = scenarioName;
+                event.source = source;
+                event.copy = copy.getIndex();
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Returns the value to be substituted for a placeholder. Placeholders within the value itself
+     * (as may occur in a snippet) are resolved recursively.
+     *
+     * @param placeholder The placeholder, in the form <code>key[:default]</code>.
+     * @param params      The resource's parameters.
+     * @param copy        The copy of the resource graph being rendered.
+     * @return The value to be substituted.
+     */
+    private String resolve(
+            String placeholder,
+            Map<String, String> params,
+            ScenarioCopy copy) {
+        String value = eval(getExpression(placeholder, params), copy);
+        return !value.contains("${") ? value
+                : ScenarioTemplate.compile(placeholder, value).renderToString(p -> resolve(p, params, copy));
+    }
+
+    /**
+     * Evaluate an expression.
+     *
+     * @param exp The expression. The general format is
+     *            <p>
+     *            <code>type/value</code>
+     *            </p>
+     *            If <code>type</code> is omitted, it is assumed to be a placeholder for a resource
+     *            previously defined. Possible values for <code>type</code> are:
+     *            <ul>
+     *            <li>value - A literal value; inserted as is</li>
+     *            <li>date - A date value; can be a relative date (LIST+n, for example)</li>
+     *            <li>image - A file containing an image</li>
+     *            <li>snippet - A file containing a snippet to be inserted</li>
+     *            <li>copy - A property of the copy being rendered (see {@link ScenarioCopy})</li>
+     *            </ul>
+     * @param copy The copy of the resource graph being rendered.
+     * @return The result of the evaluation.
+     */
+    private String eval(
+            String exp,
+            ScenarioCopy copy) {
+        int i = exp.indexOf('/');
+
+        if (i == -1 && !copy.isOriginal()) {
+            return copy.getReference(exp);
+        }
+
+        if (i == -1) {
+            IBaseResource resource = getNamedResource(exp);
+            String pendingReference = resource == null ? pendingReferences.get(exp) : null;
+
+            if (pendingReference != null) {
+                return pendingReference;
+            }
+
+            Assert.notNull(resource, () -> "Resource not defined: " + exp);
+            return resource.getIdElement().getResourceType() + "/" + resource.getIdElement().getIdPart();
+        }
+
+        String type = exp.substring(0, i);
+        String value = exp.substring(i + 1);
+
+        if ("value".equals(type)) {
+            return value;
+        }
+
+        if ("date".equals(type)) {
+            return doDate(value, true, copy);
+        }
+
+        if ("datetime".equals(type)) {
+            return doDate(value, false, copy);
+        }
+
+        if ("copy".equals(type)) {
+            return copy.eval(value);
+        }
+
+        if ("image".equals(type)) {
+            return doBinary(exp);
+        }
+
+        if ("snippet".equals(type)) {
+            return doSnippet(exp);
+        }
+
+        throw new RuntimeException("Unknown type: " + type);
+    }
+
+    private String doBinary(String value) {
+        return ScenarioAssetCache.getInstance().getBase64(getRelative(value));
+    }
+
+    private String doSnippet(String value) {
+        return ScenarioAssetCache.getInstance().getText(getRelative(ScenarioUtil.addExtension(value)));
+    }
+
     private String doDate(
             final String value,
-            boolean dateOnly) {
+            boolean dateOnly,
+            ScenarioCopy copy) {
         Date date = DateUtil.parseDate(value);
         Assert.notNull(date, () -> "Bad date specification: " + value);
+        date = copy.shift(date);
         BaseDateTimeDt dtt = dateOnly ? new DateDt(date) : new DateTimeDt(date);
         return dtt.getValueAsString();
     }
@@ -573,26 +1930,85 @@ public abstract class ScenarioBase<LIST extends IBaseResource> {
         }
     }
 
+    /**
+     * Queues a resource for addition to the patient list if it is a patient.
+     *
+     * @param resource The resource.
+     * @see #updatePatientList()
+     */
     private void addToPatientList(IBaseResource resource) {
         Person patient = _toPatient(resource);
 
         if (patient != null) {
-            activatePatientListFilter();
-            IPatientListItem item = PatientListUtil.findListItem(patient, patientList.getListItems());
+            synchronized (pendingPatients) {
+                pendingPatients.putIfAbsent(patient.getId(), patient);
+            }
+        }
+    }
 
-            if (item == null) {
-                item = new PatientListItem(patient);
-                patientList.getItemManager().addItem(item);
-                patientList.getItemManager().save();
+    /**
+     * Applies the patient list changes queued by completed operations: removes the scenario's
+     * filter if the scenario has been reloaded, then adds any queued patients not already present,
+     * saving the list once. The ids of the patients already present are collected once per call,
+     * so the cost is linear in the sizes of the list and the queue. Operations may run on any
+     * thread, but the patient list belongs to the user's session, so this must be called on the
+     * desktop thread once an operation completes.
+     */
+    public final void updatePatientList() {
+        List<Person> patients;
+        boolean reset;
+
+        synchronized (pendingPatients) {
+            patients = new ArrayList<>(pendingPatients.values());
+            reset = pendingFilterReset;
+            pendingPatients.clear();
+            pendingFilterReset = false;
+        }
+
+        if (reset) {
+            deletePatientListFilter();
+        }
+
+        if (patients.isEmpty()) {
+            return;
+        }
+
+        activatePatientListFilter();
+        IPatientListItemManager itemManager = patientList.getItemManager();
+        Set<String> listed = new HashSet<>();
+        boolean modified = false;
+
+        for (IPatientListItem item : patientList.getListItems()) {
+            if (item.getPatient() != null) {
+                listed.add(item.getPatient().getId());
             }
         }
+
+        for (Person patient : patients) {
+            if (listed.add(patient.getId())) {
+                itemManager.addItem(new PatientListItem(patient));
+                modified = true;
+            }
+        }
+
+        if (modified) {
+            itemManager.save();
+        }
     }
 
+    /**
+     * Logs an action performed on a resource and reports it to the monitor. The resource is not
+     * modified: its version is retained, since the published reference to it must identify the
+     * version held in the shared resource cache.
+     *
+     * @param resource  The resource.
+     * @param operation The action performed.
+     */
     private void logAction(
             IBaseResource resource,
             String operation) {
-        FhirUtils.stripVersion(resource);
-        log.info(operation + " resource: " + resource.getIdElement().getValue());
+        log.info(operation + " resource: " + resource.getIdElement().toUnqualifiedVersionless().getValue());
+        monitor.progress(operation, resource);
     }
 
 }
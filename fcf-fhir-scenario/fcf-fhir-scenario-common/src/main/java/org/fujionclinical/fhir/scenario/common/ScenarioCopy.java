@@ -0,0 +1,187 @@
+/*
+ * #%L
+ * Fujion Clinical Framework
+ * %%
+ * Copyright (C) 2020 fujionclinical.org
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.fujionclinical.org/licensing/disclaimer
+ *
+ * #L%
+ */
+package org.fujionclinical.fhir.scenario.common;
+
+import org.fujion.common.Assert;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One copy of a scenario's resource graph, for scenarios that are replicated to form a cohort.
+ * Each copy has its own identifier, a name and a random shift applied to its dates. These are
+ * derived from the scenario id and copy index, so a given copy renders identically each time the
+ * scenario is initialized. Names are assigned by stepping through the combinations of given and
+ * family names in a scenario-specific order, so no two of the first 576 copies share a name. Later
+ * copies receive double-barrelled family names, and beyond 14,400 copies a numeric suffix is added
+ * to the family name, so that every copy has a distinct name. Copy properties are referenced from
+ * templates using expressions of the form <code>copy/property</code>, where property is one of:
+ * <ul>
+ * <li>index - The copy index (the original is copy 1)</li>
+ * <li>id - An identifier unique to the copy</li>
+ * <li>given - A given name</li>
+ * <li>family - A family name</li>
+ * </ul>
+ */
+public class ScenarioCopy {
+
+    /**
+     * Maximum number of days by which relative dates in a copy may be shifted into the past.
+     */
+    public static final int MAX_DATE_SHIFT = 365;
+
+    /**
+     * Step between the name combinations assigned to consecutive copies. This is coprime with the
+     * number of combinations, so every combination is visited before any repeats.
+     */
+    private static final int NAME_STRIDE = 173;
+
+    private static final String[] GIVEN_NAMES = {
+            "Alex", "Avery", "Blake", "Casey", "Dana", "Devon", "Elliot", "Emerson", "Finley", "Harper",
+            "Hayden", "Jamie", "Jordan", "Kendall", "Logan", "Morgan", "Parker", "Quinn", "Reese", "Riley",
+            "Rowan", "Sawyer", "Skyler", "Taylor"};
+
+    private static final String[] FAMILY_NAMES = {
+            "Anderson", "Bennett", "Carter", "Dawson", "Ellis", "Fischer", "Garcia", "Hughes", "Ibarra",
+            "Jensen", "Kowalski", "Larsen", "Martinez", "Nguyen", "Okafor", "Patel", "Quintero", "Reyes",
+            "Schmidt", "Tanaka", "Underwood", "Vasquez", "Walker", "Yamamoto"};
+
+    private final int index;
+
+    private final String id;
+
+    private final String given;
+
+    private final String family;
+
+    private final int dateShift;
+
+    private final Map<String, String> references = new ConcurrentHashMap<>();
+
+    /**
+     * @param scenarioId The scenario id.
+     * @param index      The copy index (the original is copy 1).
+     */
+    public ScenarioCopy(
+            String scenarioId,
+            int index) {
+        Random random = new Random(Objects.hash(scenarioId, index));
+        int combinations = GIVEN_NAMES.length * FAMILY_NAMES.length;
+        int offset = new Random(Objects.hashCode(scenarioId)).nextInt(combinations);
+        int name = (int) ((offset + (long) ((index - 1) % combinations) * NAME_STRIDE) % combinations);
+        int cycle = (index - 1) / combinations;
+        int generation = cycle == 0 ? 0 : (cycle - 1) / FAMILY_NAMES.length;
+        this.index = index;
+        this.id = scenarioId + "-" + index;
+        this.given = GIVEN_NAMES[name % GIVEN_NAMES.length];
+        this.family = FAMILY_NAMES[name / GIVEN_NAMES.length]
+                + (cycle == 0 ? "" : "-" + FAMILY_NAMES[(cycle - 1) % FAMILY_NAMES.length])
+                + (generation == 0 ? "" : " " + (generation + 1));
+        this.dateShift = isOriginal() ? 0 : random.nextInt(MAX_DATE_SHIFT + 1);
+    }
+
+    /**
+     * Returns the copy index.
+     *
+     * @return The copy index (the original is copy 1).
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Returns true if this is the original copy of the resource graph.
+     *
+     * @return True if this is the original copy.
+     */
+    public boolean isOriginal() {
+        return index == 1;
+    }
+
+    /**
+     * Returns the value of a copy property.
+     *
+     * @param property The property name.
+     * @return The property value.
+     */
+    public String eval(String property) {
+        switch (property) {
+            case "index":
+                return Integer.toString(index);
+
+            case "id":
+                return id;
+
+            case "given":
+                return given;
+
+            case "family":
+                return family;
+
+            default:
+                throw new IllegalArgumentException("Unknown copy property: " + property);
+        }
+    }
+
+    /**
+     * Shifts a date by the copy's date offset.
+     *
+     * @param date The date.
+     * @return The shifted date.
+     */
+    public Date shift(Date date) {
+        return dateShift == 0 ? date : new Date(date.getTime() - TimeUnit.DAYS.toMillis(dateShift));
+    }
+
+    /**
+     * Records the reference to a resource created for this copy.
+     *
+     * @param name      The resource name.
+     * @param reference The reference (e.g., Patient/123).
+     */
+    public void addReference(
+            String name,
+            String reference) {
+        references.put(name, reference);
+    }
+
+    /**
+     * Returns the reference to a resource created for this copy.
+     *
+     * @param name The resource name.
+     * @return The reference.
+     */
+    public String getReference(String name) {
+        String reference = references.get(name);
+        Assert.notNull(reference, () -> "Resource not defined: " + name);
+        return reference;
+    }
+
+}
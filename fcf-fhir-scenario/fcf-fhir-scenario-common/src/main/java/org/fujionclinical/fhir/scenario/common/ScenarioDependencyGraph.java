@@ -0,0 +1,100 @@
+/*
+ * #%L
+ * Fujion Clinical Framework
+ * %%
+ * Copyright (C) 2020 fujionclinical.org
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.fujionclinical.org/licensing/disclaimer
+ *
+ * #L%
+ */
+package org.fujionclinical.fhir.scenario.common;
+
+import org.fujion.common.Assert;
+
+import java.util.*;
+
+/**
+ * Dependency graph of named scenario resources, where a resource depends on every named resource
+ * referenced by a placeholder in its template.
+ */
+public class ScenarioDependencyGraph {
+
+    private final Map<String, Set<String>> dependencies = new LinkedHashMap<>();
+
+    /**
+     * Adds a resource to the graph.
+     *
+     * @param name      The resource name.
+     * @param dependsOn Names of the resources upon which this resource depends.
+     */
+    public void add(
+            String name,
+            Set<String> dependsOn) {
+        dependencies.put(name, dependsOn);
+    }
+
+    /**
+     * Partitions the resources into waves, where every resource in a wave depends only on resources
+     * in earlier waves. Within a wave, resources retain the order in which they were added.
+     *
+     * @return The waves, in creation order.
+     * @throws IllegalArgumentException If a resource references an undefined resource or if the
+     *                                  graph contains a cycle.
+     */
+    public List<List<String>> getWaves() {
+        List<String> errors = new ArrayList<>();
+
+        dependencies.forEach((name, dependsOn) -> dependsOn.stream()
+                .filter(dependency -> !dependencies.containsKey(dependency))
+                .forEach(dependency -> errors.add("Resource '" + name + "' references undefined resource '" + dependency + "'")));
+
+        Assert.isTrue(errors.isEmpty(), () -> String.join("\n", errors));
+        List<List<String>> waves = new ArrayList<>();
+        Set<String> created = new HashSet<>();
+        Set<String> pending = new LinkedHashSet<>(dependencies.keySet());
+
+        while (!pending.isEmpty()) {
+            List<String> wave = new ArrayList<>();
+
+            for (String name : pending) {
+                if (created.containsAll(dependencies.get(name))) {
+                    wave.add(name);
+                }
+            }
+
+            Assert.isTrue(!wave.isEmpty(), () -> "Circular reference among resources: " + pending);
+            wave.forEach(pending::remove);
+            created.addAll(wave);
+            waves.add(wave);
+        }
+
+        return waves;
+    }
+
+    /**
+     * Returns the maximum number of resources in any wave.
+     *
+     * @param waves The waves.
+     * @return The maximum wave width.
+     */
+    public static int getWidth(List<List<String>> waves) {
+        return waves.stream().mapToInt(List::size).max().orElse(0);
+    }
+
+}
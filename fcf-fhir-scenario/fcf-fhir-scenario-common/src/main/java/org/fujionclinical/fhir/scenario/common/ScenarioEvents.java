@@ -0,0 +1,132 @@
+/*
+ * #%L
+ * Fujion Clinical Framework
+ * %%
+ * Copyright (C) 2020 fujionclinical.org
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.fujionclinical.org/licensing/disclaimer
+ *
+ * #L%
+ */
+package org.fujionclinical.fhir.scenario.common;
+
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import jdk.jfr.*;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * Java Flight Recorder events emitted by scenario operations. Events are only populated and
+ * committed when a recording has enabled them, so the cost when not recording is negligible.
+ */
+public final class ScenarioEvents {
+
+    private static final String CATEGORY = "Fujion Clinical";
+
+    private static final String SUBCATEGORY = "Scenario";
+
+    /**
+     * Status reported for a server call that completed normally.
+     */
+    public static final String STATUS_OK = "OK";
+
+    /**
+     * Emitted for each resource rendered from a template, including parsing of the rendered
+     * content.
+     */
+    @Name("org.fujionclinical.scenario.TemplateRender")
+    @Label("Scenario Template Render")
+    @Category({CATEGORY, SUBCATEGORY})
+    @StackTrace(false)
+    public static class TemplateRender extends Event {
+
+        @Label("Scenario")
+        String scenario;
+
+        @Label("Source")
+        String source;
+
+        @Label("Copy")
+        int copy;
+
+    }
+
+    /**
+     * Emitted for each call to the server.
+     */
+    @Name("org.fujionclinical.scenario.ServerCall")
+    @Label("Scenario Server Call")
+    @Category({CATEGORY, SUBCATEGORY})
+    @StackTrace(false)
+    public static class ServerCall extends Event {
+
+        @Label("Scenario")
+        String scenario;
+
+        @Label("Resource Type")
+        String resourceType;
+
+        @Label("Operation")
+        String operation;
+
+        @Label("Status")
+        String status;
+
+        @Label("Entry Count")
+        int count;
+
+    }
+
+    /**
+     * Emitted for each phase of a scenario operation.
+     */
+    @Name("org.fujionclinical.scenario.Phase")
+    @Label("Scenario Phase")
+    @Category({CATEGORY, SUBCATEGORY})
+    @StackTrace(false)
+    public static class Phase extends Event {
+
+        @Label("Scenario")
+        String scenario;
+
+        @Label("Operation")
+        String operation;
+
+        @Label("Phase")
+        String phase;
+
+    }
+
+    /**
+     * Returns the status to report for a server call that failed.
+     *
+     * @param e The exception thrown by the call.
+     * @return The HTTP status code if known; otherwise, the exception type.
+     */
+    static String getStatus(Throwable e) {
+        if (e instanceof BaseServerResponseException) {
+            return Integer.toString(((BaseServerResponseException) e).getStatusCode());
+        }
+
+        return e instanceof CancellationException ? "Cancelled" : e.getClass().getSimpleName();
+    }
+
+    private ScenarioEvents() {
+    }
+
+}
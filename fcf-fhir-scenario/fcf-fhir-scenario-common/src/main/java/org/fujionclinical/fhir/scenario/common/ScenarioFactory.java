@@ -28,6 +28,7 @@ package org.fujionclinical.fhir.scenario.common;
 import ca.uhn.fhir.model.primitive.IdDt;
 import org.apache.commons.lang3.reflect.ConstructorUtils;
 import org.coolmodel.mediator.fhir.common.AbstractFhirDataSource;
+import org.fujion.common.Assert;
 import org.fujion.common.Logger;
 import org.fujion.common.MiscUtil;
 import org.hl7.fhir.instance.model.api.IBaseCoding;
@@ -36,6 +37,8 @@ import org.springframework.core.io.Resource;
 import org.yaml.snakeyaml.Yaml;
 
 import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -43,6 +46,16 @@ import java.util.Map;
  */
 public class ScenarioFactory<SCENARIO extends ScenarioBase> {
 
+    /**
+     * Maximum number of entries in a transaction bundle if not explicitly specified.
+     */
+    public static final int DEFAULT_TRANSACTION_SIZE = 500;
+
+    /**
+     * Maximum number of concurrent resource creations if not explicitly specified.
+     */
+    public static final int DEFAULT_PARALLELISM = 4;
+
     private static final Logger log = Logger.create(ScenarioFactory.class);
 
     public final Map<String, Map<String, String>> scenarioConfig;
@@ -59,8 +72,27 @@ public class ScenarioFactory<SCENARIO extends ScenarioBase> {
 
     public final Resource scenarioYaml;
 
+    /**
+     * If greater than zero, resources are created using transaction bundles of at most this many
+     * entries. If zero, resources are created one at a time.
+     */
+    public final int transactionSize;
+
+    /**
+     * Maximum number of resources that may be created concurrently. A value of one causes resources
+     * to be created sequentially.
+     */
+    public final int parallelism;
+
+    /**
+     * Number of copies of the scenario's resource graph to create (at least one).
+     */
+    public final int copies;
+
     private final Class<SCENARIO> scenarioClass;
 
+    private volatile Map<String, ScenarioTemplate> templates;
+
     public ScenarioFactory(
             Class<SCENARIO> scenarioClass,
             Resource scenarioYaml,
@@ -71,11 +103,14 @@ public class ScenarioFactory<SCENARIO extends ScenarioBase> {
 
         try (InputStream in = scenarioYaml.getInputStream()) {
             Map<String, ?> config = new Yaml().load(in);
-            Map<String, String> meta = (Map<String, String>) ScenarioUtil.getParam(config, "scenario");
+            Map<String, Object> meta = (Map<String, Object>) ScenarioUtil.getParam(config, "scenario");
             this.scenarioConfig = (Map<String, Map<String, String>>) ScenarioUtil.getParam(config, "resources");
-            this.scenarioId = createScenarioId(ScenarioUtil.getParam(meta, "id"));
-            this.activationResource = ScenarioUtil.getParam(meta, "activation", false);
-            this.scenarioName = ScenarioUtil.getParam(meta, "name");
+            this.scenarioId = createScenarioId(ScenarioUtil.getParam(meta, "id").toString());
+            this.activationResource = (String) ScenarioUtil.getParam(meta, "activation", false);
+            this.scenarioName = ScenarioUtil.getParam(meta, "name").toString();
+            this.transactionSize = getTransactionSize(ScenarioUtil.getParam(meta, "transaction", false));
+            this.parallelism = getPositiveInt(meta, "parallelism", DEFAULT_PARALLELISM);
+            this.copies = getPositiveInt(meta, "copies", 1);
             this.scenarioTag = ScenarioUtil.createScenarioTag(scenarioId.getIdPart(), scenarioName);
         } catch (Exception e) {
             log.error(() -> "Failed to load scenario configuration: " + scenarioYaml, e);
@@ -93,6 +128,54 @@ public class ScenarioFactory<SCENARIO extends ScenarioBase> {
         }
     }
 
+    /**
+     * Returns the compiled resource templates, indexed by source path. Templates are compiled when
+     * first requested, so that a registered scenario that is never used incurs no compilation cost.
+     *
+     * @return Compiled templates, indexed by source path.
+     */
+    public Map<String, ScenarioTemplate> getTemplates() {
+        Map<String, ScenarioTemplate> result = templates;
+
+        if (result == null) {
+            synchronized (this) {
+                result = templates;
+
+                if (result == null) {
+                    try {
+                        result = templates = compileTemplates();
+                    } catch (Exception e) {
+                        log.error(() -> "Failed to compile templates for scenario: " + scenarioName, e);
+                        throw MiscUtil.toUnchecked(e);
+                    }
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Compiles the template for each resource in the scenario. Templates shared by more than one
+     * resource are compiled only once.
+     *
+     * @return Compiled templates, indexed by source path.
+     */
+    private Map<String, ScenarioTemplate> compileTemplates() throws Exception {
+        Map<String, ScenarioTemplate> templates = new HashMap<>();
+
+        for (Map<String, String> params : scenarioConfig.values()) {
+            String source = ScenarioUtil.addExtension(ScenarioUtil.getParam(params, "source"));
+
+            if (!templates.containsKey(source)) {
+                String text = ScenarioAssetCache.getInstance().getText(scenarioYaml.createRelative(source));
+                templates.put(source, ScenarioTemplate.compile(source, text));
+            }
+        }
+
+        return Collections.unmodifiableMap(templates);
+    }
+
     /**
      * Creates the id to be used to store scenario resources.
      *
@@ -103,6 +186,64 @@ public class ScenarioFactory<SCENARIO extends ScenarioBase> {
         return new IdDt("List", id);
     }
 
+    /**
+     * Determines the transaction size from the scenario's "transaction" setting.
+     *
+     * @param value The setting value. May be a boolean (true to use the default size), a number (the
+     *              maximum entries per transaction), or null (do not use transactions).
+     * @return The transaction size, or zero if transactions are not to be used.
+     */
+    private int getTransactionSize(Object value) {
+        if (value == null || Boolean.FALSE.equals(value)) {
+            return 0;
+        }
+
+        if (Boolean.TRUE.equals(value)) {
+            return DEFAULT_TRANSACTION_SIZE;
+        }
+
+        String text = value.toString();
+
+        if ("true".equalsIgnoreCase(text)) {
+            return DEFAULT_TRANSACTION_SIZE;
+        }
+
+        return "false".equalsIgnoreCase(text) ? 0 : Math.max(0, Integer.parseInt(text));
+    }
+
+    /**
+     * Returns the value of an optional setting that, if present, must be a positive integer.
+     *
+     * @param meta The scenario settings.
+     * @param name The setting name.
+     * @param dflt The value to use if the setting is absent.
+     * @return The setting value.
+     * @throws IllegalArgumentException If the setting is not a positive integer.
+     */
+    private int getPositiveInt(
+            Map<String, Object> meta,
+            String name,
+            int dflt) {
+        Object value = ScenarioUtil.getParam(meta, name, false);
+
+        if (value == null) {
+            return dflt;
+        }
+
+        int result = Integer.parseInt(value.toString());
+        Assert.isTrue(result > 0, () -> "Scenario setting \"" + name + "\" must be greater than zero: " + value);
+        return result;
+    }
+
+    /**
+     * Returns true if the scenario defines any resources.
+     *
+     * @return True if the scenario defines any resources.
+     */
+    public boolean hasResources() {
+        return !scenarioConfig.isEmpty();
+    }
+
     /**
      * Returns the name of this scenario.
      *
@@ -28,14 +28,14 @@ package org.fujionclinical.fhir.scenario.common;
 import org.coolmodel.mediator.datasource.DataSources;
 import org.coolmodel.mediator.fhir.common.AbstractFhirDataSource;
 import org.fujion.common.Logger;
+import org.fujionclinical.fhir.api.common.core.ResourceIndex;
 import org.springframework.beans.BeansException;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.ApplicationContextAware;
 import org.springframework.core.io.Resource;
 
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
+import java.util.*;
+import java.util.stream.Collectors;
 
 /**
  * Registry that detects and automatically registers scenario definitions.
@@ -66,13 +66,22 @@ public class ScenarioFinder<SCENARIO extends ScenarioBase>
         return scenarioFactories.get(name);
     }
 
+    /**
+     * Discovers scenario definitions, parsing them in parallel.
+     */
     @Override
     public void setApplicationContext(ApplicationContext applicationContext) throws BeansException {
         try {
             AbstractFhirDataSource dataSource = (AbstractFhirDataSource) DataSources.get(dataSourceId);
 
-            for (Resource yaml : applicationContext.getResources(scenarioBase + "/*.yaml")) {
-                ScenarioFactory<SCENARIO> factory = new ScenarioFactory(scenarioClass, yaml, dataSource);
+            Resource[] yamls = ResourceIndex.getResources(applicationContext, scenarioBase + "/*.yaml");
+            List<ScenarioFactory<SCENARIO>> factories = Arrays.stream(yamls)
+                    .parallel()
+                    .map(yaml -> createFactory(yaml, dataSource))
+                    .filter(Objects::nonNull)
+                    .collect(Collectors.toList());
+
+            for (ScenarioFactory<SCENARIO> factory : factories) {
                 scenarioFactories.put(factory.getName(), factory);
             }
         } catch (Exception e) {
@@ -80,6 +89,25 @@ public class ScenarioFinder<SCENARIO extends ScenarioBase>
         }
     }
 
+    /**
+     * Creates a scenario factory from a scenario definition. Errors are logged (by the factory) and
+     * do not prevent other scenarios from loading.
+     *
+     * @param yaml       The scenario definition.
+     * @param dataSource The data source.
+     * @return The scenario factory, or null if the definition could not be loaded.
+     */
+    @SuppressWarnings("unchecked")
+    private ScenarioFactory<SCENARIO> createFactory(
+            Resource yaml,
+            AbstractFhirDataSource dataSource) {
+        try {
+            return new ScenarioFactory(scenarioClass, yaml, dataSource);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
     @Override
     public Iterator<ScenarioFactory<SCENARIO>> iterator() {
         return scenarioFactories.values().iterator();
@@ -0,0 +1,210 @@
+/*
+ * #%L
+ * Fujion Clinical Framework
+ * %%
+ * Copyright (C) 2020 fujionclinical.org
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.fujionclinical.org/licensing/disclaimer
+ *
+ * #L%
+ */
+package org.fujionclinical.fhir.scenario.common;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+
+/**
+ * A scenario operation running in the background. The job's listener is notified when the job
+ * starts, as each resource is processed, and when the job finishes. Notifications are delivered on
+ * the job's worker threads.
+ */
+public class ScenarioJob implements IScenarioMonitor {
+
+    public enum Status {
+        PENDING, RUNNING, COMPLETED, CANCELLED, FAILED
+    }
+
+    private final String name;
+
+    private final Consumer<ScenarioJob> listener;
+
+    private final AtomicInteger completed = new AtomicInteger();
+
+    private final AtomicInteger total = new AtomicInteger();
+
+    private volatile Status status = Status.PENDING;
+
+    private volatile boolean cancelled;
+
+    private volatile String message;
+
+    private volatile int result;
+
+    private volatile Throwable exception;
+
+    /**
+     * @param name     The job name.
+     * @param listener Notified of changes in the job's state (may be null).
+     */
+    public ScenarioJob(
+            String name,
+            Consumer<ScenarioJob> listener) {
+        this.name = name;
+        this.listener = listener;
+    }
+
+    /**
+     * Runs the job's task on the current thread.
+     *
+     * @param task The task, which returns a count of resources processed.
+     */
+    protected void run(ToIntFunction<ScenarioJob> task) {
+        if (cancelled) {
+            status = Status.CANCELLED;
+            notifyListener();
+            return;
+        }
+
+        status = Status.RUNNING;
+        notifyListener();
+
+        try {
+            result = task.applyAsInt(this);
+            status = Status.COMPLETED;
+        } catch (CancellationException e) {
+            status = Status.CANCELLED;
+        } catch (Throwable e) {
+            exception = e;
+            status = Status.FAILED;
+        }
+
+        notifyListener();
+    }
+
+    private void notifyListener() {
+        if (listener != null) {
+            listener.accept(this);
+        }
+    }
+
+    /**
+     * Requests cancellation of the job. The job stops at the next opportunity, which is before its
+     * next request to the server.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public void addTotal(int count) {
+        total.addAndGet(count);
+    }
+
+    @Override
+    public void progress(
+            String action,
+            IBaseResource resource) {
+        completed.incrementAndGet();
+        message = action + " resource: " + resource.getIdElement().toUnqualifiedVersionless().getValue();
+        notifyListener();
+    }
+
+    /**
+     * Returns the job name.
+     *
+     * @return The job name.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the job status.
+     *
+     * @return The job status.
+     */
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * Returns true if the job has finished, whether successfully or not.
+     *
+     * @return True if the job has finished.
+     */
+    public boolean isDone() {
+        Status status = this.status;
+        return status != Status.PENDING && status != Status.RUNNING;
+    }
+
+    /**
+     * Returns the number of resources processed so far.
+     *
+     * @return The number of resources processed.
+     */
+    public int getCompleted() {
+        return completed.get();
+    }
+
+    /**
+     * Returns the expected number of resources to be processed. This is an estimate and may
+     * increase as the job progresses. It is never less than the number already processed.
+     *
+     * @return The expected number of resources to be processed.
+     */
+    public int getTotal() {
+        return Math.max(total.get(), completed.get());
+    }
+
+    /**
+     * Returns a description of the most recently processed resource.
+     *
+     * @return Description of the most recently processed resource (may be null).
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * Returns the result of a completed job.
+     *
+     * @return The count of resources processed by the job.
+     */
+    public int getResult() {
+        return result;
+    }
+
+    /**
+     * Returns the exception that caused the job to fail.
+     *
+     * @return The exception, or null if the job did not fail.
+     */
+    public Throwable getException() {
+        return exception;
+    }
+
+}
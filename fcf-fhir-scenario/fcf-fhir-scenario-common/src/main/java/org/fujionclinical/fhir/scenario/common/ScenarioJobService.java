@@ -0,0 +1,180 @@
+/*
+ * #%L
+ * Fujion Clinical Framework
+ * %%
+ * Copyright (C) 2020 fujionclinical.org
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.fujionclinical.org/licensing/disclaimer
+ *
+ * #L%
+ */
+package org.fujionclinical.fhir.scenario.common;
+
+import org.fujion.common.Logger;
+import org.fujion.common.MiscUtil;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+
+/**
+ * Runs scenario operations in the background, reporting progress to a listener and supporting
+ * cooperative cancellation.
+ */
+public class ScenarioJobService {
+
+    private static final Logger log = Logger.create(ScenarioJobService.class);
+
+    /**
+     * Maximum number of scenarios processed concurrently by a job that spans scenarios, if not
+     * explicitly specified.
+     */
+    public static final int DEFAULT_PARALLELISM = 4;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    private final int parallelism;
+
+    public ScenarioJobService() {
+        this(DEFAULT_PARALLELISM);
+    }
+
+    /**
+     * @param parallelism Maximum number of scenarios processed concurrently by a job that spans
+     *                    scenarios.
+     */
+    public ScenarioJobService(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Loads a scenario's resources.
+     *
+     * @param scenario The scenario.
+     * @param listener Notified of changes in the job's state.
+     * @return The job.
+     */
+    public ScenarioJob load(
+            ScenarioBase<?> scenario,
+            Consumer<ScenarioJob> listener) {
+        return submit("Load " + scenario.getName(), listener, scenario::load);
+    }
+
+    /**
+     * Initializes a scenario.
+     *
+     * @param scenario The scenario.
+     * @param listener Notified of changes in the job's state.
+     * @return The job.
+     */
+    public ScenarioJob initialize(
+            ScenarioBase<?> scenario,
+            Consumer<ScenarioJob> listener) {
+        return submit("Initialize " + scenario.getName(), listener, scenario::initialize);
+    }
+
+    /**
+     * Destroys a scenario's resources.
+     *
+     * @param scenario The scenario.
+     * @param listener Notified of changes in the job's state.
+     * @return The job.
+     */
+    public ScenarioJob destroy(
+            ScenarioBase<?> scenario,
+            Consumer<ScenarioJob> listener) {
+        return submit("Destroy " + scenario.getName(), listener, scenario::destroy);
+    }
+
+    /**
+     * Destroys the resources of multiple scenarios. Scenarios are independent of one another, so
+     * several are processed concurrently.
+     *
+     * @param scenarios The scenarios.
+     * @param listener  Notified of changes in the job's state.
+     * @return The job.
+     */
+    public ScenarioJob destroyAll(
+            Collection<? extends ScenarioBase<?>> scenarios,
+            Consumer<ScenarioJob> listener) {
+        return submit("Destroy all", listener, job -> destroyAll(scenarios, job));
+    }
+
+    private int destroyAll(
+            Collection<? extends ScenarioBase<?>> scenarios,
+            ScenarioJob job) {
+        if (scenarios.isEmpty()) {
+            return 0;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(parallelism, scenarios.size()));
+        List<Future<Integer>> futures = new ArrayList<>(scenarios.size());
+        RuntimeException exception = null;
+        int count = 0;
+
+        try {
+            for (ScenarioBase<?> scenario : scenarios) {
+                futures.add(pool.submit(() -> scenario.destroy(job)));
+            }
+
+            for (Future<Integer> future : futures) {
+                try {
+                    count += future.get();
+                } catch (ExecutionException e) {
+                    exception = exception != null ? exception : MiscUtil.toUnchecked(e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    job.cancel();
+                    exception = exception != null ? exception : MiscUtil.toUnchecked(e);
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        if (exception != null) {
+            throw exception;
+        }
+
+        return count;
+    }
+
+    private ScenarioJob submit(
+            String name,
+            Consumer<ScenarioJob> listener,
+            ToIntFunction<ScenarioJob> task) {
+        ScenarioJob job = new ScenarioJob(name, listener);
+        log.debug(() -> "Submitting scenario job: " + name);
+        executor.execute(() -> job.run(task));
+        return job;
+    }
+
+    /**
+     * Cancels running jobs and releases resources.
+     */
+    public void destroy() {
+        executor.shutdownNow();
+    }
+
+}
@@ -0,0 +1,226 @@
+/*
+ * #%L
+ * Fujion Clinical Framework
+ * %%
+ * Copyright (C) 2020 fujionclinical.org
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.fujionclinical.org/licensing/disclaimer
+ *
+ * #L%
+ */
+package org.fujionclinical.fhir.scenario.common;
+
+import org.fujion.common.MiscUtil;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+
+/**
+ * Serializes the operations performed on a scenario. Operations run one at a time, in the order
+ * requested. A request for a coalescable operation that is waiting to run, and that is the last
+ * operation waiting, does not queue another: it joins the waiting one and receives its result. A
+ * request never joins an operation that has already started (whose result may predate the request)
+ * or one that has other operations queued after it (which would reorder it ahead of them).
+ * Operations that take arguments (such as exporting to a particular writer) must not be coalesced;
+ * they are only serialized.
+ */
+public class ScenarioOperationGate {
+
+    /**
+     * Operations waiting to run, in the order requested.
+     */
+    private final Deque<Operation> waiting = new ArrayDeque<>();
+
+    /**
+     * The thread running the current operation, or null if none is running.
+     */
+    private Thread runner;
+
+    /**
+     * An operation that is waiting to run or running.
+     */
+    private static class Operation {
+
+        private final String name;
+
+        private final CompletableFuture<Object> future = new CompletableFuture<>();
+
+        private final SharedMonitor monitor;
+
+        private Operation(
+                String name,
+                IScenarioMonitor monitor) {
+            this.name = name;
+            this.monitor = new SharedMonitor(monitor);
+        }
+
+    }
+
+    /**
+     * Relays notifications to the monitors of every request sharing an operation. Cancellation is
+     * requested only once every request has requested it.
+     */
+    private static class SharedMonitor implements IScenarioMonitor {
+
+        private final List<IScenarioMonitor> monitors = new ArrayList<>();
+
+        private SharedMonitor(IScenarioMonitor monitor) {
+            monitors.add(monitor);
+        }
+
+        /**
+         * Adds the monitor of a request joining the operation. Because only operations that have
+         * not started may be joined, the new monitor receives every notification.
+         *
+         * @param monitor The monitor.
+         */
+        private synchronized void join(IScenarioMonitor monitor) {
+            monitors.add(monitor);
+        }
+
+        @Override
+        public synchronized void addTotal(int count) {
+            monitors.forEach(monitor -> monitor.addTotal(count));
+        }
+
+        @Override
+        public synchronized void progress(
+                String action,
+                IBaseResource resource) {
+            monitors.forEach(monitor -> monitor.progress(action, resource));
+        }
+
+        @Override
+        public synchronized boolean isCancelled() {
+            return monitors.stream().allMatch(IScenarioMonitor::isCancelled);
+        }
+
+    }
+
+    /**
+     * Executes an operation, or joins an identical operation that is waiting to run.
+     *
+     * @param operation The operation name. If coalescing, requests with the same name are coalesced.
+     * @param coalesce  If true, the request may join an identical operation, provided it has not
+     *                  started and is the last operation waiting.
+     * @param monitor   Monitor for the request.
+     * @param task      The task that performs the operation. It receives a monitor that relays to
+     *                  the monitors of all requests sharing the operation.
+     * @param <T>       The type of result.
+     * @return The result of the operation.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T execute(
+            String operation,
+            boolean coalesce,
+            IScenarioMonitor monitor,
+            Function<IScenarioMonitor, T> task) {
+        Operation op;
+        boolean owner = true;
+
+        synchronized (waiting) {
+            if (runner == Thread.currentThread()) {
+                // An operation invoked by the running operation runs as part of it.
+                return task.apply(monitor);
+            }
+
+            op = waiting.peekLast();
+
+            if (coalesce && op != null && operation.equals(op.name)) {
+                op.monitor.join(monitor);
+                owner = false;
+            } else {
+                op = new Operation(coalesce ? operation : null, monitor);
+                waiting.addLast(op);
+            }
+        }
+
+        return owner ? run(op, task) : (T) join(op.future);
+    }
+
+    private <T> T run(
+            Operation op,
+            Function<IScenarioMonitor, T> task) {
+        start(op);
+
+        try {
+            T result = task.apply(op.monitor);
+            op.future.complete(result);
+            return result;
+        } catch (RuntimeException | Error e) {
+            op.future.completeExceptionally(e);
+            throw e;
+        } finally {
+            synchronized (waiting) {
+                runner = null;
+                waiting.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Waits until the operation is first in line and no other operation is running, then removes
+     * it from the queue so that no further requests may join it.
+     *
+     * @param op The operation.
+     */
+    private void start(Operation op) {
+        synchronized (waiting) {
+            try {
+                while (runner != null || waiting.peekFirst() != op) {
+                    waiting.wait();
+                }
+            } catch (InterruptedException e) {
+                waiting.remove(op);
+                waiting.notifyAll();
+                Thread.currentThread().interrupt();
+                op.future.completeExceptionally(e);
+                throw MiscUtil.toUnchecked(e);
+            }
+
+            waiting.removeFirst();
+            runner = Thread.currentThread();
+        }
+    }
+
+    /**
+     * Returns the number of operations waiting to run.
+     *
+     * @return The number of operations waiting to run.
+     */
+    int getWaitingCount() {
+        synchronized (waiting) {
+            return waiting.size();
+        }
+    }
+
+    private Object join(CompletableFuture<Object> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            throw MiscUtil.toUnchecked(e.getCause());
+        }
+    }
+
+}
@@ -0,0 +1,96 @@
+/*
+ * #%L
+ * Fujion Clinical Framework
+ * %%
+ * Copyright (C) 2020 fujionclinical.org
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.fujionclinical.org/licensing/disclaimer
+ *
+ * #L%
+ */
+package org.fujionclinical.fhir.scenario.common;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The references to a scenario's resources published at the successful completion of an
+ * operation. The references and their name index are immutable and are replaced together, so a
+ * reader never sees the result of one operation indexed by another.
+ */
+final class ScenarioPublishedResources {
+
+    /**
+     * Published resources prior to the first successful operation.
+     */
+    static final ScenarioPublishedResources EMPTY = new ScenarioPublishedResources(Collections.emptyList());
+
+    private final List<ScenarioResourceRef> refs;
+
+    private final Map<String, ScenarioResourceRef> refsByName;
+
+    /**
+     * @param refs References to the resources, in the order loaded. If more than one reference has
+     *             the same name, the first is the one indexed by that name.
+     */
+    ScenarioPublishedResources(Collection<ScenarioResourceRef> refs) {
+        Map<String, ScenarioResourceRef> refsByName = new HashMap<>();
+
+        for (ScenarioResourceRef ref : refs) {
+            if (ref.getName() != null) {
+                refsByName.putIfAbsent(ref.getName(), ref);
+            }
+        }
+
+        this.refs = Collections.unmodifiableList(new ArrayList<>(refs));
+        this.refsByName = Collections.unmodifiableMap(refsByName);
+    }
+
+    /**
+     * Returns the published references.
+     *
+     * @return Read-only list of references, in the order loaded.
+     */
+    List<ScenarioResourceRef> getRefs() {
+        return refs;
+    }
+
+    /**
+     * Returns the published reference to a named resource.
+     *
+     * @param name The resource name.
+     * @return The reference, or null if no resource by that name was published.
+     */
+    ScenarioResourceRef getRef(String name) {
+        return name == null ? null : refsByName.get(name);
+    }
+
+    /**
+     * Returns the number of published references.
+     *
+     * @return The number of published references.
+     */
+    int size() {
+        return refs.size();
+    }
+
+}
@@ -0,0 +1,117 @@
+/*
+ * #%L
+ * Fujion Clinical Framework
+ * %%
+ * Copyright (C) 2020 fujionclinical.org
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.fujionclinical.org/licensing/disclaimer
+ *
+ * #L%
+ */
+package org.fujionclinical.fhir.scenario.common;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.util.FhirTerser;
+import org.hl7.fhir.instance.model.api.IBaseReference;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+
+import java.util.*;
+
+/**
+ * An in-memory index of the references among a set of resources, giving for each resource the
+ * resources that refer to it. References are discovered by walking each resource's populated
+ * reference elements.
+ */
+public class ScenarioReferenceIndex {
+
+    private final FhirTerser terser;
+
+    private final Map<String, Set<IBaseResource>> referrers = new HashMap<>();
+
+    private final Set<String> indexed = new HashSet<>();
+
+    /**
+     * @param fhirContext The FHIR context.
+     */
+    public ScenarioReferenceIndex(FhirContext fhirContext) {
+        this.terser = fhirContext.newTerser();
+    }
+
+    /**
+     * Adds the references made by a resource to the index. A resource that has already been added
+     * is ignored.
+     *
+     * @param resource The resource.
+     */
+    public void add(IBaseResource resource) {
+        String key = getKey(resource);
+
+        if (!indexed.add(key)) {
+            return;
+        }
+
+        for (IBaseReference reference : terser.getAllPopulatedChildElementsOfType(resource, IBaseReference.class)) {
+            IIdType id = reference.getReferenceElement();
+
+            if (id.hasResourceType() && id.hasIdPart()) {
+                String target = getKey(id);
+
+                if (!target.equals(key)) {
+                    referrers.computeIfAbsent(target, k -> Collections.newSetFromMap(new IdentityHashMap<>()))
+                            .add(resource);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns true if the resource has been added to the index.
+     *
+     * @param resource The resource.
+     * @return True if the resource has been added.
+     */
+    public boolean contains(IBaseResource resource) {
+        return indexed.contains(getKey(resource));
+    }
+
+    /**
+     * Returns the indexed resources that refer to a resource.
+     *
+     * @param resource The referenced resource.
+     * @return The referring resources (never null).
+     */
+    public Collection<IBaseResource> getReferrers(IBaseResource resource) {
+        return referrers.getOrDefault(getKey(resource), Collections.emptySet());
+    }
+
+    /**
+     * Returns the relative, unversioned form of a resource's id (e.g., Patient/123).
+     *
+     * @param resource The resource.
+     * @return The relative, unversioned id.
+     */
+    private String getKey(IBaseResource resource) {
+        return resource.fhirType() + "/" + resource.getIdElement().getIdPart();
+    }
+
+    private String getKey(IIdType id) {
+        return id.getResourceType() + "/" + id.getIdPart();
+    }
+
+}
@@ -27,14 +27,23 @@ package org.fujionclinical.fhir.scenario.common;
 
 import org.fujion.common.AbstractRegistry;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 /**
- * Registry of scenarios.
+ * Registry of scenarios. Scenario factories are registered at startup, but a scenario is not
+ * created (and its templates are not compiled) until it is first requested.
  */
 public class ScenarioRegistry<SCENARIO extends ScenarioBase> extends AbstractRegistry<String, SCENARIO> {
 
+    private final Map<String, ScenarioFactory<SCENARIO>> factories = new LinkedHashMap<>();
+
     public ScenarioRegistry(ScenarioFinder<SCENARIO> scenarioFinder) {
         for (ScenarioFactory<SCENARIO> factory : scenarioFinder) {
-            register(factory.create());
+            factories.put(factory.getName(), factory);
         }
     }
 
@@ -43,4 +52,49 @@ public class ScenarioRegistry<SCENARIO extends ScenarioBase> extends AbstractReg
         return scenario.getName();
     }
 
+    /**
+     * Returns the scenario with the specified name, creating and registering it on first request.
+     *
+     * @param name The scenario name.
+     * @return The scenario, or null if no scenario by that name is registered.
+     */
+    @Override
+    public synchronized SCENARIO get(String name) {
+        SCENARIO scenario = super.get(name);
+        ScenarioFactory<SCENARIO> factory = scenario != null || name == null ? null : factories.get(name);
+
+        if (factory != null) {
+            scenario = factory.create();
+            register(scenario);
+        }
+
+        return scenario;
+    }
+
+    /**
+     * Returns all registered scenarios, creating any that have not yet been requested.
+     *
+     * @return All registered scenarios.
+     */
+    @Override
+    public synchronized Collection<SCENARIO> getAll() {
+        factories.keySet().forEach(this::get);
+        return super.getAll();
+    }
+
+    @Override
+    public Iterator<SCENARIO> iterator() {
+        return getAll().iterator();
+    }
+
+    /**
+     * Returns the factories for all registered scenarios. These provide scenario metadata without
+     * requiring the scenarios themselves to be created.
+     *
+     * @return The scenario factories.
+     */
+    public Collection<ScenarioFactory<SCENARIO>> getFactories() {
+        return Collections.unmodifiableCollection(factories.values());
+    }
+
 }
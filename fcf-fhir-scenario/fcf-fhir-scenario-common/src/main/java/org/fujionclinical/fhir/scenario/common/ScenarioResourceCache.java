@@ -0,0 +1,167 @@
+/*
+ * #%L
+ * Fujion Clinical Framework
+ * %%
+ * Copyright (C) 2020 fujionclinical.org
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.fujionclinical.org/licensing/disclaimer
+ *
+ * #L%
+ */
+package org.fujionclinical.fhir.scenario.common;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.lang.ref.SoftReference;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * A bounded cache of fully parsed scenario resources, shared by all scenarios. Entries are held by
+ * soft reference, so they may be reclaimed by the garbage collector under memory pressure, and the
+ * least recently used entries are evicted once the entry limit is reached. Entries are keyed by the
+ * server base URL and the resource's versioned id.
+ */
+public class ScenarioResourceCache {
+
+    /**
+     * Default maximum number of cached resources.
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 2000;
+
+    private static final ScenarioResourceCache instance = new ScenarioResourceCache(DEFAULT_MAX_ENTRIES);
+
+    private final Map<String, SoftReference<IBaseResource>> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Returns the shared instance of the cache.
+     *
+     * @return The shared instance.
+     */
+    public static ScenarioResourceCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * @param maxEntries Maximum number of cached resources.
+     */
+    public ScenarioResourceCache(int maxEntries) {
+        this.entries = new LinkedHashMap<String, SoftReference<IBaseResource>>(16, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SoftReference<IBaseResource>> eldest) {
+                return size() > maxEntries;
+            }
+
+        };
+    }
+
+    /**
+     * Returns a cached resource, retrieving it if it is not cached or has been reclaimed.
+     *
+     * @param key    The cache key.
+     * @param loader Retrieves the resource if not cached.
+     * @return The resource (possibly null if the loader returned null).
+     */
+    public IBaseResource get(
+            String key,
+            Supplier<IBaseResource> loader) {
+        IBaseResource resource;
+
+        synchronized (this) {
+            SoftReference<IBaseResource> ref = entries.get(key);
+            resource = ref == null ? null : ref.get();
+        }
+
+        if (resource != null) {
+            hits.incrementAndGet();
+            return resource;
+        }
+
+        misses.incrementAndGet();
+        resource = loader.get();
+
+        if (resource != null) {
+            put(key, resource);
+        }
+
+        return resource;
+    }
+
+    /**
+     * Adds a resource to the cache, replacing any existing entry.
+     *
+     * @param key      The cache key.
+     * @param resource The resource.
+     */
+    public synchronized void put(
+            String key,
+            IBaseResource resource) {
+        entries.put(key, new SoftReference<>(resource));
+    }
+
+    /**
+     * Removes a resource from the cache.
+     *
+     * @param key The cache key.
+     */
+    public synchronized void remove(String key) {
+        entries.remove(key);
+    }
+
+    /**
+     * Returns the number of requests satisfied from the cache.
+     *
+     * @return The hit count.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of requests that required the resource to be retrieved.
+     *
+     * @return The miss count.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of cache entries, including any whose resources have been reclaimed.
+     *
+     * @return The number of entries.
+     */
+    public synchronized int getSize() {
+        return entries.size();
+    }
+
+    /**
+     * Removes all entries from the cache.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+}
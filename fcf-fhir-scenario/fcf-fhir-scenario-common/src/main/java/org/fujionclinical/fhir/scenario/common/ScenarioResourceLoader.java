@@ -0,0 +1,246 @@
+/*
+ * #%L
+ * Fujion Clinical Framework
+ * %%
+ * Copyright (C) 2020 fujionclinical.org
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.fujionclinical.org/licensing/disclaimer
+ *
+ * #L%
+ */
+package org.fujionclinical.fhir.scenario.common;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.api.Include;
+import ca.uhn.fhir.rest.api.SearchStyleEnum;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.util.BundleUtil;
+import org.fujion.common.Logger;
+import org.fujion.common.MiscUtil;
+import org.fujionclinical.fhir.api.common.core.FhirUtil;
+import org.hl7.fhir.instance.model.api.*;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Loads scenario resources from the server using paged searches. While the resources from one page
+ * are being consumed, the next page is retrieved in the background.
+ */
+public class ScenarioResourceLoader {
+
+    private static final Logger log = Logger.create(ScenarioResourceLoader.class);
+
+    /**
+     * Number of resources to request per page.
+     */
+    public static final int PAGE_SIZE = 500;
+
+    /**
+     * Maximum number of ids to include in a single search by id.
+     */
+    public static final int ID_BATCH_SIZE = 100;
+
+    private final IGenericClient client;
+
+    private final FhirContext fhirContext;
+
+    private final Class<? extends IBaseBundle> bundleClass;
+
+    @SuppressWarnings("unchecked")
+    public ScenarioResourceLoader(IGenericClient client) {
+        this.client = client;
+        this.fhirContext = client.getFhirContext();
+        this.bundleClass = (Class<? extends IBaseBundle>) fhirContext.getResourceDefinition("Bundle").getImplementingClass();
+    }
+
+    /**
+     * Loads all resources bearing the specified tag using a single paged search across all
+     * resource types.
+     *
+     * @param tag      The tag.
+     * @param exclude  Resources matching this predicate are not passed to the consumer.
+     * @param consumer Consumer for the loaded resources.
+     * @return False if the server does not support searching by tag, in which case no resources
+     *         will have been passed to the consumer.
+     */
+    public boolean loadByTag(
+            IBaseCoding tag,
+            Predicate<IBaseResource> exclude,
+            Consumer<IBaseResource> consumer) {
+        IBaseBundle bundle;
+
+        try {
+            bundle = client.search()
+                    .forAllResources()
+                    .withTag(tag.getSystem(), tag.getCode())
+                    .count(PAGE_SIZE)
+                    .returnBundle(bundleClass)
+                    .execute();
+        } catch (Exception e) {
+            log.debug(() -> "Server does not support search by tag: " + e.getMessage());
+            return false;
+        }
+
+        List<IBaseResource> page = getResources(bundle);
+
+        // A server that ignores the _tag parameter may return unrelated resources.
+        if (page.stream().anyMatch(resource -> !FhirUtil.hasTag(tag, resource))) {
+            log.debug("Server ignored the _tag search parameter.");
+            return false;
+        }
+
+        loadPages(bundle, page, resource -> FhirUtil.hasTag(tag, resource) && !exclude.test(resource), consumer);
+        return true;
+    }
+
+    /**
+     * Loads resources by id, issuing one paged search for each resource type and batch of ids.
+     * Resources that cannot be retrieved are ignored.
+     *
+     * @param ids      The ids of the resources to load.
+     * @param consumer Consumer for the loaded resources.
+     */
+    public void loadById(
+            Collection<IIdType> ids,
+            Consumer<IBaseResource> consumer) {
+        Map<String, List<String>> idsByType = new LinkedHashMap<>();
+
+        for (IIdType id : ids) {
+            if (id.hasResourceType() && id.hasIdPart()) {
+                idsByType.computeIfAbsent(id.getResourceType(), k -> new ArrayList<>()).add(id.getIdPart());
+            }
+        }
+
+        idsByType.forEach((type, idParts) -> {
+            for (int i = 0; i < idParts.size(); i += ID_BATCH_SIZE) {
+                List<String> batch = idParts.subList(i, Math.min(i + ID_BATCH_SIZE, idParts.size()));
+
+                try {
+                    IBaseBundle bundle = client.search()
+                            .forResource(type)
+                            .where(IAnyResource.RES_ID.exactly().codes(batch))
+                            .count(PAGE_SIZE)
+                            .returnBundle(bundleClass)
+                            .execute();
+                    loadPages(bundle, getResources(bundle), resource -> true, consumer);
+                } catch (Exception e) {
+                    log.warn(() -> "Error loading " + type + " resources: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Passes resources from each page of a search result to the consumer, prefetching the next page
+     * while the current one is consumed.
+     *
+     * @param bundle   The first page of the search result.
+     * @param page     The resources in the first page.
+     * @param include  Only resources matching this predicate are passed to the consumer.
+     * @param consumer Consumer for the loaded resources.
+     */
+    private void loadPages(
+            IBaseBundle bundle,
+            List<IBaseResource> page,
+            Predicate<IBaseResource> include,
+            Consumer<IBaseResource> consumer) {
+        ExecutorService executor = null;
+
+        try {
+            while (page != null) {
+                Future<IBaseBundle> next = null;
+
+                if (hasNextPage(bundle)) {
+                    executor = executor != null ? executor : Executors.newSingleThreadExecutor();
+                    IBaseBundle current = bundle;
+                    next = executor.submit(() -> client.loadPage().next(current).execute());
+                }
+
+                page.stream().filter(include).forEach(consumer);
+                bundle = next == null ? null : next.get();
+                page = bundle == null ? null : getResources(bundle);
+            }
+        } catch (ExecutionException e) {
+            throw MiscUtil.toUnchecked(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw MiscUtil.toUnchecked(e);
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Loads resources of a single type together with all resources that refer to them, using a
+     * single paged search with a wildcard reverse include. The search is submitted using HTTP POST
+     * so that the number of ids is not limited by the maximum URL length.
+     *
+     * @param type     The resource type.
+     * @param ids      The ids of the resources of that type.
+     * @param consumer Consumer for the loaded resources (both the matches and the referrers).
+     */
+    public void loadWithReferrers(
+            String type,
+            Collection<String> ids,
+            Consumer<IBaseResource> consumer) {
+        IBaseBundle bundle = client.search()
+                .forResource(type)
+                .where(IAnyResource.RES_ID.exactly().codes(ids))
+                .revInclude(new Include("*"))
+                .usingStyle(SearchStyleEnum.POST)
+                .count(PAGE_SIZE)
+                .returnBundle(bundleClass)
+                .execute();
+        loadPages(bundle, getResources(bundle), resource -> true, consumer);
+    }
+
+    /**
+     * Retrieves the current version of a single resource.
+     *
+     * @param ref Reference to the resource.
+     * @return The resource.
+     */
+    public IBaseResource read(ScenarioResourceRef ref) {
+        return client.read().resource(ref.getType()).withId(ref.getIdPart()).execute();
+    }
+
+    private boolean hasNextPage(IBaseBundle bundle) {
+        return BundleUtil.getLinkUrlOfType(fhirContext, bundle, "next") != null;
+    }
+
+    /**
+     * Returns the resources in a search result page, excluding any operation outcomes.
+     *
+     * @param bundle The search result page.
+     * @return The resources in the page.
+     */
+    private List<IBaseResource> getResources(IBaseBundle bundle) {
+        List<IBaseResource> resources = BundleUtil.toListOfResources(fhirContext, bundle);
+        resources.removeIf(resource -> "OperationOutcome".equals(resource.fhirType()));
+        return resources;
+    }
+
+}
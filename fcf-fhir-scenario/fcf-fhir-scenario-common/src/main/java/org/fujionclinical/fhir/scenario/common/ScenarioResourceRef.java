@@ -0,0 +1,132 @@
+/*
+ * #%L
+ * Fujion Clinical Framework
+ * %%
+ * Copyright (C) 2020 fujionclinical.org
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.fujionclinical.org/licensing/disclaimer
+ *
+ * #L%
+ */
+package org.fujionclinical.fhir.scenario.common;
+
+import org.fujionclinical.fhir.api.common.core.FhirUtil;
+import org.hl7.fhir.instance.model.api.IBaseCoding;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+
+/**
+ * A compact reference to a scenario resource, consisting of its name (if a named resource), type,
+ * id and version. This is what a scenario retains between operations; the full resource is
+ * retrieved on demand.
+ */
+public class ScenarioResourceRef {
+
+    private final String name;
+
+    private final String type;
+
+    private final String idPart;
+
+    private final String version;
+
+    /**
+     * Creates a reference to a resource.
+     *
+     * @param resource The resource.
+     * @return A reference to the resource.
+     */
+    public static ScenarioResourceRef create(IBaseResource resource) {
+        IBaseCoding tag = FhirUtil.getTagBySystem(resource, ScenarioUtil.RESOURCE_URN);
+        IIdType id = resource.getIdElement();
+        return new ScenarioResourceRef(tag == null ? null : tag.getCode(), resource.fhirType(), id.getIdPart(),
+                id.getVersionIdPart());
+    }
+
+    private ScenarioResourceRef(
+            String name,
+            String type,
+            String idPart,
+            String version) {
+        this.name = name;
+        this.type = type;
+        this.idPart = idPart;
+        this.version = version;
+    }
+
+    /**
+     * Returns the resource name.
+     *
+     * @return The resource name, or null if not a named resource.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the resource type.
+     *
+     * @return The resource type.
+     */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * Returns the logical id of the resource.
+     *
+     * @return The logical id.
+     */
+    public String getIdPart() {
+        return idPart;
+    }
+
+    /**
+     * Returns the version of the resource.
+     *
+     * @return The version, or null if not known.
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the relative, unversioned id of the resource (e.g., Patient/123).
+     *
+     * @return The relative, unversioned id.
+     */
+    public String getId() {
+        return type + "/" + idPart;
+    }
+
+    /**
+     * Returns the relative id of the resource, including the version if known (e.g.,
+     * Patient/123/_history/2).
+     *
+     * @return The relative, versioned id.
+     */
+    public String getVersionedId() {
+        return version == null ? getId() : getId() + "/_history/" + version;
+    }
+
+    @Override
+    public String toString() {
+        return getId();
+    }
+
+}
@@ -0,0 +1,239 @@
+/*
+ * #%L
+ * Fujion Clinical Framework
+ * %%
+ * Copyright (C) 2020 fujionclinical.org
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.fujionclinical.org/licensing/disclaimer
+ *
+ * #L%
+ */
+package org.fujionclinical.fhir.scenario.common;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.util.FhirTerser;
+import org.fujion.common.Assert;
+import org.fujion.common.MiscUtil;
+import org.hl7.fhir.instance.model.api.IBaseReference;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Writes and reads scenario snapshots in NDJSON format (one JSON-encoded resource per line).
+ * Resources retain their ids and tags, and are expected to appear in an order in which no resource
+ * precedes a resource it references. A snapshot is restored as it is read, using transactions of
+ * no more than a fixed number of resources, a fixed number of which may be in progress at once. A
+ * transaction that contains a resource referencing a resource in a transaction still in progress
+ * is not submitted until all transactions in progress have completed.
+ */
+public class ScenarioSnapshot {
+
+    private final FhirContext fhirContext;
+
+    private final FhirTerser terser;
+
+    private final BiConsumer<List<BundleRequestEntry>, Boolean> bundleExecutor;
+
+    private final int chunkSize;
+
+    private final int maxInFlight;
+
+    /**
+     * @param fhirContext    The FHIR context.
+     * @param bundleExecutor Submits bundle entries to the server (as a transaction if the second
+     *                       argument is true, or as a batch otherwise).
+     * @param chunkSize      Maximum number of resources per transaction.
+     * @param maxInFlight    Maximum number of transactions in progress at once.
+     */
+    public ScenarioSnapshot(
+            FhirContext fhirContext,
+            BiConsumer<List<BundleRequestEntry>, Boolean> bundleExecutor,
+            int chunkSize,
+            int maxInFlight) {
+        this.fhirContext = fhirContext;
+        this.terser = fhirContext.newTerser();
+        this.bundleExecutor = bundleExecutor;
+        this.chunkSize = Math.max(1, chunkSize);
+        this.maxInFlight = Math.max(1, maxInFlight);
+    }
+
+    /**
+     * Returns a consumer that writes each resource it receives to the snapshot as a single line.
+     *
+     * @param writer The snapshot writer.
+     * @return A consumer that writes resources to the snapshot.
+     */
+    public Consumer<IBaseResource> writer(Writer writer) {
+        IParser parser = fhirContext.newJsonParser();
+
+        return resource -> {
+            try {
+                writer.write(parser.encodeResourceToString(resource));
+                writer.write('\n');
+            } catch (IOException e) {
+                throw MiscUtil.toUnchecked(e);
+            }
+        };
+    }
+
+    /**
+     * Restores the resources in a snapshot to the server.
+     *
+     * @param reader    The snapshot reader.
+     * @param validator Called for each resource read, before it is submitted. May throw an
+     *                  exception to reject the resource, which aborts the restore.
+     * @param restored  Called for each resource once restored. This may be called concurrently.
+     * @return The number of resources restored.
+     */
+    public int read(
+            Reader reader,
+            Consumer<IBaseResource> validator,
+            Consumer<IBaseResource> restored) {
+        BufferedReader lines = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+        IParser parser = fhirContext.newJsonParser();
+        ExecutorService executor = Executors.newFixedThreadPool(maxInFlight);
+        Semaphore permits = new Semaphore(maxInFlight);
+        Set<String> pendingKeys = ConcurrentHashMap.newKeySet();
+        AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        AtomicInteger count = new AtomicInteger();
+        List<BundleRequestEntry> chunk = new ArrayList<>();
+        boolean dependent = false;
+        int lineNumber = 0;
+        String line;
+
+        try {
+            while (failure.get() == null && (line = lines.readLine()) != null) {
+                lineNumber++;
+
+                if (line.isBlank()) {
+                    continue;
+                }
+
+                IBaseResource resource = parser.parseResource(line);
+                int number = lineNumber;
+                Assert.isTrue(resource.getIdElement().hasIdPart(), () -> "Resource has no id at line " + number);
+                validator.accept(resource);
+                dependent |= referencesAny(resource, pendingKeys);
+                chunk.add(BundleRequestEntry.update(resource));
+
+                if (chunk.size() >= chunkSize) {
+                    submit(chunk, dependent, executor, permits, pendingKeys, failure, count, restored);
+                    chunk = new ArrayList<>();
+                    dependent = false;
+                }
+            }
+
+            if (!chunk.isEmpty() && failure.get() == null) {
+                submit(chunk, dependent, executor, permits, pendingKeys, failure, count, restored);
+            }
+        } catch (IOException e) {
+            throw MiscUtil.toUnchecked(e);
+        } finally {
+            permits.acquireUninterruptibly(maxInFlight);
+            executor.shutdown();
+        }
+
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+
+        return count.get();
+    }
+
+    /**
+     * Submits a transaction for execution, waiting first for a free slot or, if the transaction
+     * depends on transactions in progress, for all of them to complete.
+     */
+    private void submit(
+            List<BundleRequestEntry> chunk,
+            boolean dependent,
+            ExecutorService executor,
+            Semaphore permits,
+            Set<String> pendingKeys,
+            AtomicReference<RuntimeException> failure,
+            AtomicInteger count,
+            Consumer<IBaseResource> restored) {
+        if (dependent) {
+            permits.acquireUninterruptibly(maxInFlight);
+            permits.release(maxInFlight);
+        }
+
+        List<String> keys = new ArrayList<>(chunk.size());
+        chunk.forEach(entry -> keys.add(entry.getUrl()));
+        permits.acquireUninterruptibly();
+        pendingKeys.addAll(keys);
+
+        executor.execute(() -> {
+            try {
+                bundleExecutor.accept(chunk, true);
+
+                for (BundleRequestEntry entry : chunk) {
+                    Assert.isTrue(entry.isSuccess(), () -> "Failed to restore " + entry.getUrl() + ": " + entry.getStatus());
+                    count.incrementAndGet();
+                    restored.accept(entry.getResult());
+                }
+            } catch (RuntimeException e) {
+                failure.compareAndSet(null, e);
+            } finally {
+                pendingKeys.removeAll(keys);
+                permits.release();
+            }
+        });
+    }
+
+    /**
+     * Returns true if a resource references any of the specified resources.
+     *
+     * @param resource The resource.
+     * @param keys     The relative, unversioned ids of the resources (e.g., Patient/123).
+     * @return True if the resource references any of the resources.
+     */
+    private boolean referencesAny(
+            IBaseResource resource,
+            Set<String> keys) {
+        if (keys.isEmpty()) {
+            return false;
+        }
+
+        for (IBaseReference reference : terser.getAllPopulatedChildElementsOfType(resource, IBaseReference.class)) {
+            IIdType id = reference.getReferenceElement();
+
+            if (id.hasResourceType() && id.hasIdPart() && keys.contains(id.getResourceType() + "/" + id.getIdPart())) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+}
@@ -0,0 +1,260 @@
+/*
+ * #%L
+ * Fujion Clinical Framework
+ * %%
+ * Copyright (C) 2020 fujionclinical.org
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.fujionclinical.org/licensing/disclaimer
+ *
+ * #L%
+ */
+package org.fujionclinical.fhir.scenario.common;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.apache.commons.lang3.StringUtils;
+import org.fujion.common.Logger;
+import org.hl7.fhir.instance.model.api.IBaseCoding;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.function.BiConsumer;
+
+/**
+ * Deletes a set of resources using batched requests. If the server supports cascading conditional
+ * deletes, all resources of a type are deleted with a single conditional delete on the scenario
+ * tag. Otherwise, the order of deletion is determined from the references among the resources, so
+ * that no resource is deleted while another resource in the set still refers to it. Resources are
+ * deleted by id in batches of no more than a maximum size.
+ */
+public class ScenarioTeardown {
+
+    private static final Logger log = Logger.create(ScenarioTeardown.class);
+
+    private final FhirContext fhirContext;
+
+    private final BiConsumer<List<BundleRequestEntry>, Boolean> bundleExecutor;
+
+    private final int batchSize;
+
+    /**
+     * @param fhirContext    The FHIR context.
+     * @param bundleExecutor Submits bundle entries to the server (as a transaction if the second
+     *                       argument is true, or as a batch otherwise).
+     * @param batchSize      The maximum number of entries in a batch.
+     */
+    public ScenarioTeardown(
+            FhirContext fhirContext,
+            BiConsumer<List<BundleRequestEntry>, Boolean> bundleExecutor,
+            int batchSize) {
+        this.fhirContext = fhirContext;
+        this.bundleExecutor = bundleExecutor;
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * Deletes the resources.
+     *
+     * @param resources    The resources to delete.
+     * @param scenarioTag  The tag shared by all the resources. If null, resources are always deleted
+     *                     by id; otherwise, all resources of a type bearing this tag may be deleted
+     *                     by a single conditional delete.
+     * @param capabilities The server capabilities.
+     * @return The resources that could not be deleted.
+     */
+    public List<IBaseResource> delete(
+            Collection<IBaseResource> resources,
+            IBaseCoding scenarioTag,
+            ServerCapabilities capabilities) {
+        Map<String, List<IBaseResource>> resourcesByType = new LinkedHashMap<>();
+
+        for (IBaseResource resource : resources) {
+            resourcesByType.computeIfAbsent(resource.fhirType(), k -> new ArrayList<>()).add(resource);
+        }
+
+        if (scenarioTag != null && !resourcesByType.isEmpty() && capabilities.supportsCascadingDelete(resourcesByType.keySet())) {
+            return deleteByType(resourcesByType, scenarioTag);
+        }
+
+        List<IBaseResource> failed = new ArrayList<>();
+
+        for (List<IBaseResource> wave : getWaves(resources)) {
+            for (int i = 0; i < wave.size(); i += batchSize) {
+                failed.addAll(deleteById(wave.subList(i, Math.min(i + batchSize, wave.size()))));
+            }
+        }
+
+        return failed;
+    }
+
+    /**
+     * Deletes all tagged resources of each type with a single batch of cascading conditional
+     * deletes.
+     *
+     * @param resourcesByType The resources to delete, grouped by type.
+     * @param scenarioTag     The tag shared by all the resources.
+     * @return The resources that could not be deleted.
+     */
+    private List<IBaseResource> deleteByType(
+            Map<String, List<IBaseResource>> resourcesByType,
+            IBaseCoding scenarioTag) {
+        List<BundleRequestEntry> entries = new ArrayList<>();
+        List<IBaseResource> failed = new ArrayList<>();
+        String criteria = "?_tag=" + encode(scenarioTag.getSystem()) + "|" + encode(scenarioTag.getCode()) + "&_cascade=delete";
+
+        for (String type : resourcesByType.keySet()) {
+            entries.add(BundleRequestEntry.delete(type + criteria));
+        }
+
+        if (execute(entries)) {
+            int i = 0;
+
+            for (List<IBaseResource> resources : resourcesByType.values()) {
+                if (!entries.get(i++).isSuccess()) {
+                    failed.addAll(resources);
+                }
+            }
+        } else {
+            resourcesByType.values().forEach(failed::addAll);
+        }
+
+        return failed;
+    }
+
+    /**
+     * Escapes a token parameter value for use in a search url. Characters with special meaning in
+     * FHIR search values are escaped with a backslash, and the result is url-encoded.
+     *
+     * @param value The value.
+     * @return The encoded value.
+     */
+    static String encode(String value) {
+        String escaped = StringUtils.defaultString(value)
+                .replace("\\", "\\\\")
+                .replace("|", "\\|")
+                .replace(",", "\\,")
+                .replace("$", "\\$");
+        return URLEncoder.encode(escaped, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Deletes resources by id in a single batch.
+     *
+     * @param resources The resources to delete.
+     * @return The resources that could not be deleted.
+     */
+    private List<IBaseResource> deleteById(List<IBaseResource> resources) {
+        List<BundleRequestEntry> entries = new ArrayList<>(resources.size());
+        List<IBaseResource> failed = new ArrayList<>();
+
+        for (IBaseResource resource : resources) {
+            entries.add(BundleRequestEntry.delete(getKey(resource)));
+        }
+
+        boolean executed = execute(entries);
+
+        for (int i = 0; i < resources.size(); i++) {
+            if (!executed || !entries.get(i).isSuccess()) {
+                failed.add(resources.get(i));
+            }
+        }
+
+        return failed;
+    }
+
+    private boolean execute(List<BundleRequestEntry> entries) {
+        try {
+            bundleExecutor.accept(entries, false);
+            return true;
+        } catch (CancellationException e) {
+            throw e;
+        } catch (Exception e) {
+            log.warn(() -> "Error executing batch delete: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Partitions resources into waves for deletion, such that no resource in a wave is referenced
+     * by a resource in the same or a later wave. Resources that participate in a reference cycle
+     * are placed together in the final wave. In reverse, the waves give an order of creation in
+     * which no resource precedes a resource it references. References are discovered by a
+     * {@link ScenarioReferenceIndex} of the resources.
+     *
+     * @param resources The resources to delete.
+     * @return The waves, in deletion order.
+     */
+    List<List<IBaseResource>> getWaves(Collection<IBaseResource> resources) {
+        ScenarioReferenceIndex index = new ScenarioReferenceIndex(fhirContext);
+        Map<String, IBaseResource> resourcesByKey = new LinkedHashMap<>();
+
+        for (IBaseResource resource : resources) {
+            resourcesByKey.put(getKey(resource), resource);
+            index.add(resource);
+        }
+
+        Map<String, Set<String>> references = new HashMap<>();
+        Map<String, Integer> referrerCounts = new HashMap<>();
+
+        for (Map.Entry<String, IBaseResource> entry : resourcesByKey.entrySet()) {
+            Collection<IBaseResource> referrers = index.getReferrers(entry.getValue());
+            referrerCounts.put(entry.getKey(), referrers.size());
+
+            for (IBaseResource referrer : referrers) {
+                references.computeIfAbsent(getKey(referrer), k -> new HashSet<>()).add(entry.getKey());
+            }
+        }
+
+        List<List<IBaseResource>> waves = new ArrayList<>();
+        Set<String> pending = new LinkedHashSet<>(resourcesByKey.keySet());
+
+        while (!pending.isEmpty()) {
+            List<String> wave = new ArrayList<>();
+
+            for (String key : pending) {
+                if (referrerCounts.get(key) == 0) {
+                    wave.add(key);
+                }
+            }
+
+            if (wave.isEmpty()) {
+                wave.addAll(pending);
+            }
+
+            List<IBaseResource> resourceWave = new ArrayList<>(wave.size());
+
+            for (String key : wave) {
+                pending.remove(key);
+                resourceWave.add(resourcesByKey.get(key));
+                references.getOrDefault(key, Collections.emptySet())
+                        .forEach(referenced -> referrerCounts.merge(referenced, -1, Integer::sum));
+            }
+
+            waves.add(resourceWave);
+        }
+
+        return waves;
+    }
+
+    private String getKey(IBaseResource resource) {
+        return resource.fhirType() + "/" + resource.getIdElement().getIdPart();
+    }
+
+}
@@ -0,0 +1,256 @@
+/*
+ * #%L
+ * Fujion Clinical Framework
+ * %%
+ * Copyright (C) 2020 fujionclinical.org
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.fujionclinical.org/licensing/disclaimer
+ *
+ * #L%
+ */
+package org.fujionclinical.fhir.scenario.common;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.fujion.common.Assert;
+
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * A resource template compiled into a sequence of literal text spans and placeholders. A
+ * placeholder has the form <code>${key}</code> or <code>${key:default}</code> and may not span
+ * lines.
+ */
+public class ScenarioTemplate {
+
+    private static final String PLACEHOLDER_START = "${";
+
+    private static final String PLACEHOLDER_END = "}";
+
+    /**
+     * A template token: literal text if not a placeholder, or the content between the placeholder
+     * delimiters otherwise.
+     */
+    private static class Token {
+
+        private final String text;
+
+        private final boolean placeholder;
+
+        private Token(
+                String text,
+                boolean placeholder) {
+            this.text = text;
+            this.placeholder = placeholder;
+        }
+
+    }
+
+    /**
+     * A rendering of a template that is produced as it is read. Placeholders are resolved only when
+     * reached, and a hash of the rendered content is accumulated along the way.
+     */
+    public static class RenderedTemplate extends Reader {
+
+        private final Iterator<Token> tokens;
+
+        private final Function<String, String> resolver;
+
+        private final MessageDigest digest = DigestUtils.getSha256Digest();
+
+        private String current = "";
+
+        private int position;
+
+        private RenderedTemplate(
+                Iterator<Token> tokens,
+                Function<String, String> resolver) {
+            this.tokens = tokens;
+            this.resolver = resolver;
+        }
+
+        @Override
+        public int read(
+                char[] buffer,
+                int offset,
+                int length) {
+            if (length == 0) {
+                return 0;
+            }
+
+            while (position >= current.length()) {
+                if (!nextToken()) {
+                    return -1;
+                }
+            }
+
+            int count = Math.min(length, current.length() - position);
+            current.getChars(position, position + count, buffer, offset);
+            position += count;
+            return count;
+        }
+
+        private boolean nextToken() {
+            if (!tokens.hasNext()) {
+                return false;
+            }
+
+            Token token = tokens.next();
+            current = token.placeholder ? resolver.apply(token.text) : token.text;
+            position = 0;
+            digest.update(current.getBytes(StandardCharsets.UTF_8));
+            return true;
+        }
+
+        /**
+         * Returns a SHA-256 hash of the rendered content. Any content not yet read is rendered
+         * first.
+         *
+         * @return The content hash as a hexadecimal string.
+         */
+        public String getHash() {
+            while (nextToken()) {
+                // Render remaining tokens.
+            }
+
+            position = current.length();
+            return Hex.encodeHexString(digest.digest());
+        }
+
+        @Override
+        public void close() {
+        }
+
+    }
+
+    private final String source;
+
+    private final List<Token> tokens = new ArrayList<>();
+
+    private final List<String> placeholders = new ArrayList<>();
+
+    /**
+     * Compiles a template.
+     *
+     * @param source The source of the template (used in error messages).
+     * @param text   The template text.
+     * @return The compiled template.
+     * @throws IllegalArgumentException If a placeholder is not closed.
+     */
+    public static ScenarioTemplate compile(
+            String source,
+            String text) {
+        return new ScenarioTemplate(source, text);
+    }
+
+    private ScenarioTemplate(
+            String source,
+            String text) {
+        this.source = source;
+        int start = 0;
+        int p1;
+
+        while ((p1 = text.indexOf(PLACEHOLDER_START, start)) > -1) {
+            int p2 = text.indexOf(PLACEHOLDER_END, p1);
+            int eol = text.indexOf('\n', p1);
+            int position = p1;
+            Assert.isTrue(p2 > -1 && (eol == -1 || p2 < eol),
+                    () -> "No closing bracket for placeholder at line " + getLineNumber(text, position) + " of " + source);
+            addLiteral(text.substring(start, p1));
+            String placeholder = text.substring(p1 + PLACEHOLDER_START.length(), p2);
+            tokens.add(new Token(placeholder, true));
+            placeholders.add(placeholder);
+            start = p2 + PLACEHOLDER_END.length();
+        }
+
+        addLiteral(text.substring(start));
+    }
+
+    private static int getLineNumber(
+            String text,
+            int position) {
+        return (int) text.substring(0, position).chars().filter(c -> c == '\n').count() + 1;
+    }
+
+    private void addLiteral(String text) {
+        if (!text.isEmpty()) {
+            tokens.add(new Token(text, false));
+        }
+    }
+
+    /**
+     * Returns the source of the template.
+     *
+     * @return The source of the template.
+     */
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * Returns true if the template is in XML format.
+     *
+     * @return True if the template is in XML format.
+     */
+    public boolean isXml() {
+        return source.endsWith(".xml");
+    }
+
+    /**
+     * Returns the content of each placeholder in the template, in order of appearance.
+     *
+     * @return The placeholder content (in the form <code>key[:default]</code>).
+     */
+    public List<String> getPlaceholders() {
+        return Collections.unmodifiableList(placeholders);
+    }
+
+    /**
+     * Renders the template.
+     *
+     * @param resolver Returns the value to be substituted for a placeholder's content.
+     * @return A reader that produces the rendered template.
+     */
+    public RenderedTemplate render(Function<String, String> resolver) {
+        return new RenderedTemplate(tokens.iterator(), resolver);
+    }
+
+    /**
+     * Renders the template to a string.
+     *
+     * @param resolver Returns the value to be substituted for a placeholder's content.
+     * @return The rendered template.
+     */
+    public String renderToString(Function<String, String> resolver) {
+        StringBuilder sb = new StringBuilder();
+
+        for (Token token : tokens) {
+            sb.append(token.placeholder ? resolver.apply(token.text) : token.text);
+        }
+
+        return sb.toString();
+    }
+
+}
@@ -25,20 +25,27 @@
  */
 package org.fujionclinical.fhir.scenario.common;
 
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.api.ISupportsUndeclaredExtensions;
 import ca.uhn.fhir.model.api.Tag;
 import org.fujion.common.Assert;
 import org.fujionclinical.fhir.api.common.core.FhirUtil;
-import org.hl7.fhir.instance.model.api.IBaseCoding;
-import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.*;
 
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
 
 public class ScenarioUtil {
 
     protected static final String SCENARIO_URN = "urn:fujionclinical:scenario";
 
-    private static final String RESOURCE_URN = SCENARIO_URN + ":resource";
+    protected static final String RESOURCE_URN = SCENARIO_URN + ":resource";
+
+    private static final String HASH_URN = SCENARIO_URN + ":hash";
+
+    private static final String COPY_URN = SCENARIO_URN + ":copy";
 
     /**
      * Identifier used to locate scenario resources for bulk deletes.
@@ -134,6 +141,101 @@ public class ScenarioUtil {
         return resourceName == null ? null : new Tag(RESOURCE_URN, resourceName, "Resource: " + resourceName);
     }
 
+    /**
+     * Stamps a resource with a hash of the content from which it was rendered, replacing any
+     * existing hash. The hash is stored as a meta extension (or, for DSTU2, a resource extension)
+     * rather than a tag, since servers retain existing tags when a resource is updated.
+     *
+     * @param fhirContext The FHIR context.
+     * @param resource    The resource.
+     * @param hash        The content hash.
+     */
+    @SuppressWarnings("unchecked")
+    public static void setContentHash(
+            FhirContext fhirContext,
+            IBaseResource resource,
+            String hash) {
+        IPrimitiveType<String> value = (IPrimitiveType<String>) fhirContext.getElementDefinition("string").newInstance();
+        value.setValue(hash);
+
+        if (resource.getMeta() instanceof IBaseHasExtensions) {
+            IBaseHasExtensions meta = (IBaseHasExtensions) resource.getMeta();
+            meta.getExtension().removeIf(extension -> HASH_URN.equals(extension.getUrl()));
+            IBaseExtension<?, ?> extension = meta.addExtension();
+            extension.setUrl(HASH_URN);
+            extension.setValue((IBaseDatatype) value);
+        } else if (resource instanceof ISupportsUndeclaredExtensions) {
+            ISupportsUndeclaredExtensions extensions = (ISupportsUndeclaredExtensions) resource;
+            extensions.getUndeclaredExtensions().removeIf(extension -> HASH_URN.equals(extension.getUrl()));
+            extensions.addUndeclaredExtension(false, HASH_URN, (IBaseDatatype) value);
+        }
+    }
+
+    /**
+     * Returns the content hash with which a resource was stamped.
+     *
+     * @param resource The resource.
+     * @return The content hash, or null if none.
+     */
+    public static String getContentHash(IBaseResource resource) {
+        List<? extends IBaseExtension<?, ?>> extensions = Collections.emptyList();
+
+        if (resource.getMeta() instanceof IBaseHasExtensions) {
+            extensions = ((IBaseHasExtensions) resource.getMeta()).getExtension();
+        } else if (resource instanceof ISupportsUndeclaredExtensions) {
+            extensions = ((ISupportsUndeclaredExtensions) resource).getUndeclaredExtensions();
+        }
+
+        for (IBaseExtension<?, ?> extension : extensions) {
+            if (HASH_URN.equals(extension.getUrl()) && extension.getValue() instanceof IPrimitiveType) {
+                return ((IPrimitiveType<?>) extension.getValue()).getValueAsString();
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns true if a resource on the server is unchanged from a newly rendered resource: both
+     * were stamped with the same content hash, and the resource has not been modified since the
+     * scenario was last packaged.
+     *
+     * @param current           The resource on the server.
+     * @param rendered          The newly rendered resource.
+     * @param baselineTimestamp The time the scenario was last packaged (may be null).
+     * @return True if the resource is unchanged.
+     */
+    public static boolean isUnchanged(
+            IBaseResource current,
+            IBaseResource rendered,
+            Date baselineTimestamp) {
+        String hash = getContentHash(current);
+        Date lastUpdated = current.getMeta().getLastUpdated();
+        return hash != null && hash.equals(getContentHash(rendered)) && lastUpdated != null
+                && baselineTimestamp != null && !lastUpdated.after(baselineTimestamp);
+    }
+
+    /**
+     * Creates a tag to identify the copy of a scenario's resource graph to which a resource belongs.
+     *
+     * @param index The copy index.
+     * @return The newly created tag.
+     */
+    public static IBaseCoding createCopyTag(int index) {
+        return new Tag(COPY_URN, Integer.toString(index), "Copy: " + index);
+    }
+
+    /**
+     * Returns the index of the copy of a scenario's resource graph to which a resource belongs.
+     *
+     * @param resource The resource.
+     * @return The copy index (1 if the resource belongs to the original).
+     */
+    public static int getCopyIndex(IBaseResource resource) {
+        IBaseCoding tag = FhirUtil.getTagBySystem(resource, COPY_URN);
+        return tag == null ? 1 : Integer.parseInt(tag.getCode());
+    }
+
     /**
      * Returns the scenario associated with the resource.
      *
@@ -156,6 +258,16 @@ public class ScenarioUtil {
         return scenario;
     }
 
+    /**
+     * Add default extension if one is not present.
+     *
+     * @param source File resource path.
+     * @return File resource path with extension.
+     */
+    public static String addExtension(String source) {
+        return source.contains(".") ? source : source + ".json";
+    }
+
     public static <T> T getParam(
             Map<String, T> map,
             String param) {
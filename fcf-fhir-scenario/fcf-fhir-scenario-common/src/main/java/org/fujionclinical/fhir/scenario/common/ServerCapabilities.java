@@ -0,0 +1,124 @@
+/*
+ * #%L
+ * Fujion Clinical Framework
+ * %%
+ * Copyright (C) 2020 fujionclinical.org
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.fujionclinical.org/licensing/disclaimer
+ *
+ * #L%
+ */
+package org.fujionclinical.fhir.scenario.common;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.util.FhirTerser;
+import org.fujion.common.Logger;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseConformance;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Server capabilities relevant to scenario management, as advertised by the server's capability
+ * statement.
+ */
+public class ServerCapabilities {
+
+    private static final Logger log = Logger.create(ServerCapabilities.class);
+
+    private static final String CASCADE_PARAM = "_cascade";
+
+    private final Set<String> multipleConditionalDelete = new HashSet<>();
+
+    private boolean cascadingDelete;
+
+    /**
+     * Retrieves the capabilities of the server. If the capability statement cannot be retrieved,
+     * no capabilities are assumed.
+     *
+     * @param client The client for the server.
+     * @return The server capabilities.
+     */
+    @SuppressWarnings("unchecked")
+    public static ServerCapabilities fetch(IGenericClient client) {
+        ServerCapabilities capabilities = new ServerCapabilities();
+        FhirContext fhirContext = client.getFhirContext();
+
+        try {
+            String type = fhirContext.getVersion().getVersion().isOlderThan(FhirVersionEnum.DSTU3)
+                    ? "Conformance" : "CapabilityStatement";
+            Class<? extends IBaseConformance> clazz = (Class<? extends IBaseConformance>) fhirContext
+                    .getResourceDefinition(type).getImplementingClass();
+            capabilities.parse(fhirContext.newTerser(), client.capabilities().ofType(clazz).execute());
+        } catch (Exception e) {
+            log.warn(() -> "Unable to retrieve server capability statement: " + e.getMessage());
+        }
+
+        return capabilities;
+    }
+
+    private ServerCapabilities() {
+    }
+
+    private void parse(
+            FhirTerser terser,
+            IBaseConformance statement) {
+        for (IBase rest : terser.getValues(statement, "rest")) {
+            cascadingDelete |= hasCascadeParam(terser, rest);
+
+            for (IBase resource : terser.getValues(rest, "resource")) {
+                String type = getString(terser, resource, "type");
+                cascadingDelete |= hasCascadeParam(terser, resource);
+
+                if (type != null && "multiple".equals(getString(terser, resource, "conditionalDelete"))) {
+                    multipleConditionalDelete.add(type);
+                }
+            }
+        }
+    }
+
+    private boolean hasCascadeParam(
+            FhirTerser terser,
+            IBase element) {
+        return terser.getValues(element, "searchParam").stream()
+                .anyMatch(param -> CASCADE_PARAM.equals(getString(terser, param, "name")));
+    }
+
+    private String getString(
+            FhirTerser terser,
+            IBase element,
+            String path) {
+        return terser.getSinglePrimitiveValue(element, path).orElse(null);
+    }
+
+    /**
+     * Returns true if the server supports cascading conditional deletes matching multiple resources
+     * for all the specified resource types.
+     *
+     * @param types The resource types.
+     * @return True if cascading conditional deletes are supported for all the types.
+     */
+    public boolean supportsCascadingDelete(Collection<String> types) {
+        return cascadingDelete && multipleConditionalDelete.containsAll(types);
+    }
+
+}
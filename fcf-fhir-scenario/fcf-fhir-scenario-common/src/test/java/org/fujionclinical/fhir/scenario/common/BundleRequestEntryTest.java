@@ -0,0 +1,96 @@
+/*
+ * #%L
+ * Fujion Clinical Framework
+ * %%
+ * Copyright (C) 2020 fujionclinical.org
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.fujionclinical.org/licensing/disclaimer
+ *
+ * #L%
+ */
+package org.fujionclinical.fhir.scenario.common;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BundleRequestEntryTest {
+
+    private static final FhirContext fhirContext = FhirContext.forR4();
+
+    @Test
+    public void testResponseWithBody() {
+        Patient submitted = new Patient();
+        Patient returned = new Patient();
+        returned.setId("Patient/1/_history/1");
+        BundleRequestEntry entry = BundleRequestEntry.create("urn:uuid:p", submitted);
+        entry.setResponse("201 Created", "Patient/1/_history/1", returned);
+        assertTrue(entry.isSuccess());
+        assertSame(returned, entry.getResult());
+    }
+
+    @Test
+    public void testResponseWithoutBody() {
+        Patient submitted = new Patient();
+        BundleRequestEntry entry = BundleRequestEntry.create("urn:uuid:p", submitted);
+        entry.setResponse("201 Created", "Patient/1/_history/1", null);
+        assertSame(submitted, entry.getResult());
+        assertEquals("1", entry.getResult().getIdElement().getIdPart());
+    }
+
+    @Test
+    public void testFailedResponse() {
+        BundleRequestEntry entry = BundleRequestEntry.delete("Patient/1");
+        assertFalse(entry.isSuccess());
+        entry.setResponse("409 Conflict", null, null);
+        assertFalse(entry.isSuccess());
+        assertNull(entry.getResult());
+    }
+
+    @Test
+    public void testResolveReferences() {
+        Patient patient = new Patient();
+        Encounter encounter = new Encounter();
+        encounter.setSubject(new Reference("urn:uuid:p"));
+        Observation observation = new Observation();
+        observation.setSubject(new Reference("urn:uuid:p"));
+        observation.setEncounter(new Reference("urn:uuid:e"));
+        observation.addPerformer(new Reference("Practitioner/9"));
+        List<BundleRequestEntry> entries = Arrays.asList(
+                BundleRequestEntry.create("urn:uuid:p", patient),
+                BundleRequestEntry.create("urn:uuid:e", encounter),
+                BundleRequestEntry.create("urn:uuid:o", observation));
+        entries.get(0).setResponse("201 Created", "Patient/1/_history/1", null);
+        entries.get(1).setResponse("201 Created", "http://server/fhir/Encounter/2/_history/1", null);
+        entries.get(2).setResponse("201 Created", "Observation/3/_history/1", null);
+        BundleRequestEntry.resolveReferences(fhirContext, entries);
+        assertEquals("Patient/1", encounter.getSubject().getReference());
+        assertEquals("Patient/1", observation.getSubject().getReference());
+        assertEquals("Encounter/2", observation.getEncounter().getReference());
+        assertEquals("Practitioner/9", observation.getPerformerFirstRep().getReference());
+    }
+
+}
@@ -0,0 +1,58 @@
+/*
+ * #%L
+ * Fujion Clinical Framework
+ * %%
+ * Copyright (C) 2020 fujionclinical.org
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.fujionclinical.org/licensing/disclaimer
+ *
+ * #L%
+ */
+package org.fujionclinical.fhir.scenario.common;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class ScenarioCopyTest {
+
+    @Test
+    public void testNamesAreUnique() {
+        Set<String> names = new HashSet<>();
+
+        for (int index = 1; index <= 40000; index++) {
+            ScenarioCopy copy = new ScenarioCopy("test", index);
+            String name = copy.eval("given") + " " + copy.eval("family");
+            assertTrue("Duplicate name for copy " + index + ": " + name, names.add(name));
+        }
+    }
+
+    @Test
+    public void testCopiesAreReproducible() {
+        ScenarioCopy copy1 = new ScenarioCopy("test", 15000);
+        ScenarioCopy copy2 = new ScenarioCopy("test", 15000);
+        assertEquals(copy1.eval("given"), copy2.eval("given"));
+        assertEquals(copy1.eval("family"), copy2.eval("family"));
+        assertEquals("test-15000", copy1.eval("id"));
+        assertTrue(new ScenarioCopy("test", 1).isOriginal());
+    }
+
+}
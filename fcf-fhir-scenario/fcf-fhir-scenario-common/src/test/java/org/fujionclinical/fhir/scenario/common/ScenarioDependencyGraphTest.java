@@ -0,0 +1,78 @@
+/*
+ * #%L
+ * Fujion Clinical Framework
+ * %%
+ * Copyright (C) 2020 fujionclinical.org
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.fujionclinical.org/licensing/disclaimer
+ *
+ * #L%
+ */
+package org.fujionclinical.fhir.scenario.common;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+public class ScenarioDependencyGraphTest {
+
+    @Test
+    public void testWaves() {
+        ScenarioDependencyGraph graph = new ScenarioDependencyGraph();
+        graph.add("encounter", Set.of("patient", "practitioner"));
+        graph.add("observation", Set.of("patient", "encounter"));
+        graph.add("patient", Collections.emptySet());
+        graph.add("condition", Set.of("patient"));
+        graph.add("practitioner", Collections.emptySet());
+        List<List<String>> waves = graph.getWaves();
+        assertEquals(Arrays.asList(
+                Arrays.asList("patient", "practitioner"),
+                Arrays.asList("encounter", "condition"),
+                Collections.singletonList("observation")), waves);
+        assertEquals(2, ScenarioDependencyGraph.getWidth(waves));
+    }
+
+    @Test
+    public void testEmpty() {
+        List<List<String>> waves = new ScenarioDependencyGraph().getWaves();
+        assertEquals(Collections.emptyList(), waves);
+        assertEquals(0, ScenarioDependencyGraph.getWidth(waves));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUndefinedReference() {
+        ScenarioDependencyGraph graph = new ScenarioDependencyGraph();
+        graph.add("observation", Set.of("patient"));
+        graph.getWaves();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCycle() {
+        ScenarioDependencyGraph graph = new ScenarioDependencyGraph();
+        graph.add("patient", Collections.emptySet());
+        graph.add("encounter", Set.of("patient", "episode"));
+        graph.add("episode", Set.of("encounter"));
+        graph.getWaves();
+    }
+
+}
@@ -0,0 +1,187 @@
+/*
+ * #%L
+ * Fujion Clinical Framework
+ * %%
+ * Copyright (C) 2020 fujionclinical.org
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.fujionclinical.org/licensing/disclaimer
+ *
+ * #L%
+ */
+package org.fujionclinical.fhir.scenario.common;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ScenarioOperationGateTest {
+
+    private final ScenarioOperationGate gate = new ScenarioOperationGate();
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    private final List<String> executed = Collections.synchronizedList(new ArrayList<>());
+
+    private final AtomicInteger counter = new AtomicInteger();
+
+    private final CountDownLatch started = new CountDownLatch(1);
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        executor.shutdownNow();
+    }
+
+    /**
+     * Submits a request for an operation. The first operation to run blocks until released.
+     */
+    private Future<Integer> submit(
+            String operation,
+            boolean coalesce) {
+        return executor.submit(() -> gate.execute(operation, coalesce, IScenarioMonitor.NONE, monitor -> {
+            executed.add(operation);
+
+            if (started.getCount() > 0) {
+                started.countDown();
+                await(release);
+            }
+
+            return counter.incrementAndGet();
+        }));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Submits a request and waits until it is queued behind the running operation.
+     */
+    private Future<Integer> enqueue(
+            String operation,
+            boolean coalesce,
+            int expectedWaiting) throws Exception {
+        Future<Integer> future = submit(operation, coalesce);
+        awaitWaiting(expectedWaiting);
+        return future;
+    }
+
+    private void awaitWaiting(int expectedWaiting) throws Exception {
+        long timeout = System.currentTimeMillis() + 5000;
+
+        while (gate.getWaitingCount() != expectedWaiting) {
+            assertTrue("Request was not queued", System.currentTimeMillis() < timeout);
+            Thread.sleep(5);
+        }
+    }
+
+    private Future<Integer> startBlocking(String operation) {
+        Future<Integer> future = submit(operation, true);
+        await(started);
+        return future;
+    }
+
+    @Test
+    public void testJoinsWaitingOperation() throws Exception {
+        Future<Integer> running = startBlocking("load");
+        Future<Integer> first = enqueue("load", true, 1);
+        Future<Integer> second = enqueue("load", true, 1);
+        release.countDown();
+        assertEquals(1, (int) running.get(5, TimeUnit.SECONDS));
+        assertEquals(2, (int) first.get(5, TimeUnit.SECONDS));
+        assertEquals(2, (int) second.get(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("load", "load"), executed);
+    }
+
+    @Test
+    public void testDoesNotJoinRunningOperation() throws Exception {
+        Future<Integer> running = startBlocking("load");
+        Future<Integer> request = enqueue("load", true, 1);
+        release.countDown();
+        assertEquals(1, (int) running.get(5, TimeUnit.SECONDS));
+        assertEquals("Request must not receive a result that predates it", 2, (int) request.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testDoesNotJoinAcrossConflictingOperation() throws Exception {
+        Future<Integer> running = startBlocking("initialize");
+        Future<Integer> load1 = enqueue("load", true, 1);
+        Future<Integer> destroy = enqueue("destroy", true, 2);
+        Future<Integer> load2 = enqueue("load", true, 3);
+        release.countDown();
+        assertEquals(1, (int) running.get(5, TimeUnit.SECONDS));
+        assertEquals(2, (int) load1.get(5, TimeUnit.SECONDS));
+        assertEquals(3, (int) destroy.get(5, TimeUnit.SECONDS));
+        assertEquals(4, (int) load2.get(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("initialize", "load", "destroy", "load"), executed);
+    }
+
+    @Test
+    public void testDoesNotCoalesceWithArguments() throws Exception {
+        Future<Integer> running = startBlocking("initialize");
+        Future<Integer> export1 = enqueue("export", false, 1);
+        Future<Integer> export2 = enqueue("export", false, 2);
+        release.countDown();
+        assertEquals(1, (int) running.get(5, TimeUnit.SECONDS));
+        assertEquals(2, (int) export1.get(5, TimeUnit.SECONDS));
+        assertEquals(3, (int) export2.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testJoinedRequestReceivesFailure() throws Exception {
+        Future<Integer> running = startBlocking("initialize");
+        Future<Integer> owner = executor.submit(() -> gate.execute("load", true, IScenarioMonitor.NONE, monitor -> {
+            throw new IllegalStateException("failed");
+        }));
+        awaitWaiting(1);
+        Future<Integer> joined = enqueue("load", true, 1);
+        release.countDown();
+        running.get(5, TimeUnit.SECONDS);
+        assertFailed(owner);
+        assertFailed(joined);
+    }
+
+    private static void assertFailed(Future<Integer> future) throws Exception {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("Expected failure");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+}
@@ -0,0 +1,85 @@
+/*
+ * #%L
+ * Fujion Clinical Framework
+ * %%
+ * Copyright (C) 2020 fujionclinical.org
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.fujionclinical.org/licensing/disclaimer
+ *
+ * #L%
+ */
+package org.fujionclinical.fhir.scenario.common;
+
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ScenarioPublishedResourcesTest {
+
+    private static ScenarioResourceRef createRef(
+            String id,
+            String version,
+            String name) {
+        Patient patient = new Patient();
+        patient.setId(version == null ? "Patient/" + id : "Patient/" + id + "/_history/" + version);
+
+        if (name != null) {
+            patient.getMeta().addTag(ScenarioUtil.RESOURCE_URN, name, null);
+        }
+
+        return ScenarioResourceRef.create(patient);
+    }
+
+    @Test
+    public void testPublish() {
+        ScenarioResourceRef ref1 = createRef("1", "2", "patient");
+        ScenarioResourceRef ref2 = createRef("2", null, null);
+        ScenarioResourceRef ref3 = createRef("3", "1", "patient");
+        List<ScenarioResourceRef> refs = new ArrayList<>(Arrays.asList(ref1, ref2, ref3));
+        ScenarioPublishedResources published = new ScenarioPublishedResources(refs);
+        assertEquals(Arrays.asList(ref1, ref2, ref3), published.getRefs());
+        assertEquals(3, published.size());
+        assertEquals("Patient/1/_history/2", published.getRefs().get(0).getVersionedId());
+        assertEquals("Patient/2", published.getRefs().get(1).getVersionedId());
+        // The first resource with a given name is the one indexed.
+        assertSame(ref1, published.getRef("patient"));
+        assertNull(published.getRef("other"));
+        assertNull(published.getRef(null));
+        // Changes to the source collection are not reflected in what was published.
+        refs.clear();
+        assertEquals(3, published.size());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testPublishedRefsAreReadOnly() {
+        new ScenarioPublishedResources(Arrays.asList(createRef("1", null, null))).getRefs().clear();
+    }
+
+    @Test
+    public void testEmpty() {
+        assertEquals(0, ScenarioPublishedResources.EMPTY.size());
+        assertTrue(ScenarioPublishedResources.EMPTY.getRefs().isEmpty());
+        assertNull(ScenarioPublishedResources.EMPTY.getRef("patient"));
+    }
+
+}
@@ -0,0 +1,191 @@
+/*
+ * #%L
+ * Fujion Clinical Framework
+ * %%
+ * Copyright (C) 2020 fujionclinical.org
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.fujionclinical.org/licensing/disclaimer
+ *
+ * #L%
+ */
+package org.fujionclinical.fhir.scenario.common;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.*;
+
+public class ScenarioSnapshotTest {
+
+    private static final FhirContext fhirContext = FhirContext.forR4();
+
+    private final List<List<String>> submitted = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * Simulates a server that accepts every entry, returning no resource body.
+     */
+    private final BiConsumer<List<BundleRequestEntry>, Boolean> server = (entries, transaction) -> {
+        assertTrue(transaction);
+        List<String> urls = new ArrayList<>();
+
+        for (BundleRequestEntry entry : entries) {
+            assertEquals(BundleRequestEntry.Method.PUT, entry.getMethod());
+            urls.add(entry.getUrl());
+            entry.setResponse("200 OK", entry.getUrl() + "/_history/2", null);
+        }
+
+        submitted.add(urls);
+    };
+
+    private static Patient createPatient(String id) {
+        Patient patient = new Patient();
+        patient.setId(id);
+        patient.addName().setFamily("Family" + id);
+        patient.getMeta().addTag("urn:test", "scenario", null);
+        return patient;
+    }
+
+    private static Observation createObservation(
+            String id,
+            String patientId) {
+        Observation observation = new Observation();
+        observation.setId(id);
+        observation.setSubject(new Reference("Patient/" + patientId));
+        return observation;
+    }
+
+    private String write(IBaseResource... resources) {
+        StringWriter writer = new StringWriter();
+        Consumer<IBaseResource> consumer = new ScenarioSnapshot(fhirContext, server, 10, 1).writer(writer);
+        Arrays.stream(resources).forEach(consumer);
+        return writer.toString();
+    }
+
+    @Test
+    public void testRoundTrip() {
+        String ndjson = write(createPatient("1"), createObservation("2", "1"), createPatient("3"));
+        assertEquals(3, ndjson.split("\n").length);
+        List<IBaseResource> restored = Collections.synchronizedList(new ArrayList<>());
+        List<IBaseResource> validated = new ArrayList<>();
+        ScenarioSnapshot snapshot = new ScenarioSnapshot(fhirContext, server, 10, 1);
+        // Blank lines are ignored.
+        int count = snapshot.read(new StringReader(ndjson + "\n\n"), validated::add, restored::add);
+        assertEquals(3, count);
+        assertEquals(3, validated.size());
+        assertEquals(Collections.singletonList(Arrays.asList("Patient/1", "Observation/2", "Patient/3")), submitted);
+        assertEquals(3, restored.size());
+        Patient patient = (Patient) restored.get(0);
+        assertEquals("1", patient.getIdElement().getIdPart());
+        assertEquals("2", patient.getIdElement().getVersionIdPart());
+        assertEquals("Family1", patient.getNameFirstRep().getFamily());
+        assertEquals("scenario", patient.getMeta().getTag("urn:test", "scenario").getCode());
+        assertEquals("Patient/1", ((Observation) restored.get(1)).getSubject().getReference());
+    }
+
+    @Test
+    public void testChunking() {
+        String ndjson = write(createPatient("1"), createPatient("2"), createPatient("3"), createPatient("4"),
+                createPatient("5"));
+        int count = new ScenarioSnapshot(fhirContext, server, 2, 2).read(new StringReader(ndjson), r -> {
+        }, r -> {
+        });
+        assertEquals(5, count);
+        assertEquals(3, submitted.size());
+        submitted.forEach(chunk -> assertTrue(chunk.size() <= 2));
+    }
+
+    @Test
+    public void testDependentChunkWaits() {
+        AtomicBoolean patientRestored = new AtomicBoolean();
+        AtomicBoolean orderViolated = new AtomicBoolean();
+        BiConsumer<List<BundleRequestEntry>, Boolean> slowServer = (entries, transaction) -> {
+            String url = entries.get(0).getUrl();
+
+            if (url.startsWith("Patient")) {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+
+                patientRestored.set(true);
+            } else if (!patientRestored.get()) {
+                orderViolated.set(true);
+            }
+
+            server.accept(entries, transaction);
+        };
+
+        String ndjson = write(createPatient("1"), createObservation("2", "1"));
+        int count = new ScenarioSnapshot(fhirContext, slowServer, 1, 4).read(new StringReader(ndjson), r -> {
+        }, r -> {
+        });
+        assertEquals(2, count);
+        assertFalse("Referencing resource was restored before the resource it references", orderViolated.get());
+    }
+
+    @Test
+    public void testValidatorRejects() {
+        String ndjson = write(createPatient("1"), createObservation("2", "1"));
+
+        try {
+            new ScenarioSnapshot(fhirContext, server, 10, 1).read(new StringReader(ndjson), resource -> {
+                if (resource instanceof Observation) {
+                    throw new IllegalArgumentException("rejected");
+                }
+            }, r -> {
+            });
+            fail("Expected rejection");
+        } catch (IllegalArgumentException e) {
+            assertEquals("rejected", e.getMessage());
+        }
+
+        assertTrue("Nothing should be submitted", submitted.isEmpty());
+    }
+
+    @Test
+    public void testFailedEntry() {
+        String ndjson = write(createPatient("1"));
+
+        try {
+            new ScenarioSnapshot(fhirContext, (entries, transaction) -> entries
+                    .forEach(entry -> entry.setResponse("400 Bad Request", null, null)), 10, 1)
+                    .read(new StringReader(ndjson), r -> {
+                    }, r -> {
+                    });
+            fail("Expected failure");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage().contains("Patient/1"));
+        }
+    }
+
+}
@@ -0,0 +1,130 @@
+/*
+ * #%L
+ * Fujion Clinical Framework
+ * %%
+ * Copyright (C) 2020 fujionclinical.org
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.fujionclinical.org/licensing/disclaimer
+ *
+ * #L%
+ */
+package org.fujionclinical.fhir.scenario.common;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.*;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+
+public class ScenarioTeardownTest {
+
+    private static final FhirContext fhirContext = FhirContext.forR4();
+
+    private final Patient patient = create(new Patient(), "Patient/p1");
+
+    private final Practitioner practitioner = create(new Practitioner(), "Practitioner/pr1");
+
+    private final Encounter encounter = create(new Encounter(), "Encounter/e1");
+
+    private final Observation observation = create(new Observation(), "Observation/o1");
+
+    public ScenarioTeardownTest() {
+        encounter.setSubject(new Reference("Patient/p1"));
+        encounter.addParticipant().setIndividual(new Reference("Practitioner/pr1"));
+        observation.setSubject(new Reference("Patient/p1"));
+        observation.setEncounter(new Reference("Encounter/e1"));
+        // A reference to a resource outside the set is ignored.
+        observation.addPerformer(new Reference("Practitioner/other"));
+    }
+
+    private static <T extends Resource> T create(
+            T resource,
+            String id) {
+        resource.setId(id);
+        return resource;
+    }
+
+    @Test
+    public void testWaves() {
+        ScenarioTeardown teardown = new ScenarioTeardown(fhirContext, null, 100);
+        List<List<IBaseResource>> waves = teardown.getWaves(Arrays.asList(patient, practitioner, encounter, observation));
+        assertEquals(Arrays.asList(
+                Collections.singletonList(observation),
+                Collections.singletonList(encounter),
+                Arrays.asList(patient, practitioner)), waves);
+    }
+
+    @Test
+    public void testCycle() {
+        Patient linked = create(new Patient(), "Patient/p2");
+        linked.addLink().setOther(new Reference("Patient/p1"));
+        patient.addLink().setOther(new Reference("Patient/p2"));
+        ScenarioTeardown teardown = new ScenarioTeardown(fhirContext, null, 100);
+        List<List<IBaseResource>> waves = teardown.getWaves(Arrays.asList(patient, linked, encounter));
+        assertEquals(Arrays.asList(
+                Collections.singletonList(encounter),
+                Arrays.asList(patient, linked)), waves);
+    }
+
+    @Test
+    public void testDelete() {
+        List<List<String>> batches = new ArrayList<>();
+        ScenarioTeardown teardown = new ScenarioTeardown(fhirContext, (entries, transaction) -> {
+            batches.add(entries.stream().map(BundleRequestEntry::getUrl).collect(Collectors.toList()));
+            entries.forEach(entry -> entry.setResponse(entry.getUrl().equals("Practitioner/pr1") ? "409" : "204", null, null));
+        }, 100);
+        List<IBaseResource> failed = teardown.delete(Arrays.asList(patient, practitioner, encounter, observation), null, null);
+        assertEquals(Arrays.asList(
+                Collections.singletonList("Observation/o1"),
+                Collections.singletonList("Encounter/e1"),
+                Arrays.asList("Patient/p1", "Practitioner/pr1")), batches);
+        assertEquals(Collections.singletonList(practitioner), failed);
+    }
+
+    @Test
+    public void testBatchSize() {
+        List<Patient> patients = new ArrayList<>();
+
+        for (int i = 1; i <= 5; i++) {
+            patients.add(create(new Patient(), "Patient/b" + i));
+        }
+
+        List<Integer> batchSizes = new ArrayList<>();
+        ScenarioTeardown teardown = new ScenarioTeardown(fhirContext, (entries, transaction) -> {
+            batchSizes.add(entries.size());
+            entries.forEach(entry -> entry.setResponse("204", null, null));
+        }, 2);
+        assertEquals(Collections.emptyList(), teardown.delete(new ArrayList<IBaseResource>(patients), null, null));
+        assertEquals(Arrays.asList(2, 2, 1), batchSizes);
+    }
+
+    @Test
+    public void testEncode() {
+        assertEquals("urn%3Afujionclinical%3Ascenario", ScenarioTeardown.encode("urn:fujionclinical:scenario"));
+        assertEquals("a%5C%7Cb%26c%23d", ScenarioTeardown.encode("a|b&c#d"));
+        assertEquals("a%5C%2Cb%5C%24c%5C%5Cd", ScenarioTeardown.encode("a,b$c\\d"));
+    }
+
+}
@@ -0,0 +1,101 @@
+/*
+ * #%L
+ * Fujion Clinical Framework
+ * %%
+ * Copyright (C) 2020 fujionclinical.org
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.fujionclinical.org/licensing/disclaimer
+ *
+ * #L%
+ */
+package org.fujionclinical.fhir.scenario.common;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ScenarioTemplateTest {
+
+    private static final Function<String, String> RESOLVER = placeholder -> "<" + placeholder.toUpperCase() + ">";
+
+    @Test
+    public void testTokenize() {
+        ScenarioTemplate template = ScenarioTemplate.compile("test.json", "{\"a\": \"${x}\", \"b\": \"${y:1}${z}\"}");
+        assertEquals(Arrays.asList("x", "y:1", "z"), template.getPlaceholders());
+        assertEquals("{\"a\": \"<X>\", \"b\": \"<Y:1><Z>\"}", template.renderToString(RESOLVER));
+        assertEquals("test.json", template.getSource());
+        assertFalse(template.isXml());
+    }
+
+    @Test
+    public void testNoPlaceholders() {
+        ScenarioTemplate template = ScenarioTemplate.compile("test.xml", "<Patient/>");
+        assertTrue(template.getPlaceholders().isEmpty());
+        assertEquals("<Patient/>", template.renderToString(RESOLVER));
+        assertTrue(template.isXml());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnclosedPlaceholder() {
+        ScenarioTemplate.compile("test.json", "{\"a\": \"${x\"}");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPlaceholderSpansLines() {
+        ScenarioTemplate.compile("test.json", "{\"a\": \"${x\n}\"}");
+    }
+
+    @Test
+    public void testRender() throws IOException {
+        ScenarioTemplate template = ScenarioTemplate.compile("test.json", "begin ${x} middle ${y} end");
+        String expected = template.renderToString(RESOLVER);
+
+        try (ScenarioTemplate.RenderedTemplate rendered = template.render(RESOLVER)) {
+            assertEquals(expected, IOUtils.toString(rendered));
+            assertEquals(DigestUtils.sha256Hex(expected), rendered.getHash());
+        }
+    }
+
+    @Test
+    public void testHash() throws IOException {
+        ScenarioTemplate template = ScenarioTemplate.compile("test.json", "begin ${x} end");
+        String expected = DigestUtils.sha256Hex(template.renderToString(RESOLVER));
+
+        // The hash covers content not yet read.
+        try (ScenarioTemplate.RenderedTemplate rendered = template.render(RESOLVER)) {
+            rendered.read(new char[3], 0, 3);
+            assertEquals(expected, rendered.getHash());
+            assertEquals(-1, rendered.read());
+        }
+
+        // The hash depends only on the rendered content, not on how it was tokenized.
+        ScenarioTemplate literal = ScenarioTemplate.compile("test.json", "begin <X> end");
+        assertEquals(expected, literal.render(RESOLVER).getHash());
+        assertNotEquals(expected, template.render(placeholder -> "").getHash());
+    }
+
+}
@@ -0,0 +1,87 @@
+/*
+ * #%L
+ * Fujion Clinical Framework
+ * %%
+ * Copyright (C) 2020 fujionclinical.org
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.fujionclinical.org/licensing/disclaimer
+ *
+ * #L%
+ */
+package org.fujionclinical.fhir.scenario.common;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.Test;
+
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+public class ScenarioUtilTest {
+
+    private static final FhirContext fhirContext = FhirContext.forR4();
+
+    private static Patient createPatient(
+            String hash,
+            Date lastUpdated) {
+        Patient patient = new Patient();
+        patient.getMeta().setLastUpdated(lastUpdated);
+
+        if (hash != null) {
+            ScenarioUtil.setContentHash(fhirContext, patient, hash);
+        }
+
+        return patient;
+    }
+
+    @Test
+    public void testContentHash() {
+        Patient patient = new Patient();
+        assertNull(ScenarioUtil.getContentHash(patient));
+        ScenarioUtil.setContentHash(fhirContext, patient, "abc");
+        assertEquals("abc", ScenarioUtil.getContentHash(patient));
+        // A new hash replaces the old one rather than accumulating.
+        ScenarioUtil.setContentHash(fhirContext, patient, "def");
+        assertEquals("def", ScenarioUtil.getContentHash(patient));
+        assertEquals(1, patient.getMeta().getExtension().size());
+        assertTrue(patient.getMeta().getTag().isEmpty());
+    }
+
+    @Test
+    public void testContentHashSurvivesSerialization() {
+        Patient patient = createPatient("abc", null);
+        String json = fhirContext.newJsonParser().encodeResourceToString(patient);
+        Patient parsed = fhirContext.newJsonParser().parseResource(Patient.class, json);
+        assertEquals("abc", ScenarioUtil.getContentHash(parsed));
+    }
+
+    @Test
+    public void testIsUnchanged() {
+        Date packaged = new Date(10000);
+        Patient rendered = createPatient("abc", null);
+        assertTrue(ScenarioUtil.isUnchanged(createPatient("abc", new Date(9000)), rendered, packaged));
+        assertTrue(ScenarioUtil.isUnchanged(createPatient("abc", packaged), rendered, packaged));
+        assertFalse("Content changed", ScenarioUtil.isUnchanged(createPatient("xyz", new Date(9000)), rendered, packaged));
+        assertFalse("No hash", ScenarioUtil.isUnchanged(createPatient(null, new Date(9000)), rendered, packaged));
+        assertFalse("Modified after packaging", ScenarioUtil.isUnchanged(createPatient("abc", new Date(11000)), rendered, packaged));
+        assertFalse("Never packaged", ScenarioUtil.isUnchanged(createPatient("abc", new Date(9000)), rendered, null));
+        assertFalse("No update time", ScenarioUtil.isUnchanged(createPatient("abc", null), rendered, packaged));
+    }
+
+}
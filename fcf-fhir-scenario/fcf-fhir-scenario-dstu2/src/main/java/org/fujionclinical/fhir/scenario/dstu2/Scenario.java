@@ -25,6 +25,7 @@
  */
 package org.fujionclinical.fhir.scenario.dstu2;
 
+import ca.uhn.fhir.model.primitive.IdDt;
 import org.coolmodel.foundation.core.Identifiable;
 import org.coolmodel.foundation.entity.Person;
 import org.coolmodel.mediator.fhir.dstu2.common.Dstu2DataSource;
@@ -39,7 +40,9 @@ import org.hl7.fhir.dstu2.model.Patient;
 import org.hl7.fhir.dstu2.model.Reference;
 import org.hl7.fhir.instance.model.api.IBaseBundle;
 import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.function.Consumer;
@@ -67,23 +70,19 @@ public class Scenario extends ScenarioBase<List_> {
     @Override
     protected List_ _loadResources(Consumer<IBaseResource> resources) {
         List_ list = null;
+        List<IIdType> ids = new ArrayList<>();
 
         try {
             list = (List_) dataSource.getResource(getId());
 
             for (List_.ListEntryComponent entry : list.getEntry()) {
-                try {
-                    IBaseResource resource = dataSource.getResource(entry.getItem());
-                    resources.accept(resource);
-                } catch (Exception e) {
-                    // NOP
-                }
+                ids.add(new IdDt(entry.getItem().getReference()));
             }
-
         } catch (Exception e) {
             // NOP
         }
 
+        loadResources(ids, resources);
         return list;
     }
 
@@ -104,11 +103,6 @@ public class Scenario extends ScenarioBase<List_> {
         return list;
     }
 
-    @Override
-    protected List<? extends IBaseResource> _relatedResources(IBaseResource resource) {
-        return dataSource.everything(resource);
-    }
-
     @Override
     protected List<? extends IBaseResource> _getEntries(IBaseBundle bundle) {
         return dataSource.getEntries(bundle);
@@ -38,7 +38,9 @@ import org.hl7.fhir.dstu3.model.Patient;
 import org.hl7.fhir.dstu3.model.Reference;
 import org.hl7.fhir.instance.model.api.IBaseBundle;
 import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.function.Consumer;
@@ -66,23 +68,19 @@ public class Scenario extends ScenarioBase<ListResource> {
     @Override
     protected ListResource _loadResources(Consumer<IBaseResource> resources) {
         ListResource list = null;
+        List<IIdType> ids = new ArrayList<>();
 
         try {
             list = (ListResource) dataSource.getResource(getId());
 
             for (ListResource.ListEntryComponent entry : list.getEntry()) {
-                try {
-                    IBaseResource resource = dataSource.getResource(entry.getItem());
-                    resources.accept(resource);
-                } catch (Exception e) {
-                    // NOP
-                }
+                ids.add(entry.getItem().getReferenceElement());
             }
-
         } catch (Exception e) {
             // NOP
         }
 
+        loadResources(ids, resources);
         return list;
     }
 
@@ -96,18 +94,13 @@ public class Scenario extends ScenarioBase<ListResource> {
         ListResource list = new ListResource();
 
         for (IBaseResource resource : resources) {
-            Reference ref = new Reference(resource.getIdElement());
+            Reference ref = new Reference(resource.getIdElement().toUnqualifiedVersionless());
             list.addEntry().setItem(ref);
         }
 
         return list;
     }
 
-    @Override
-    protected List<? extends IBaseResource> _relatedResources(IBaseResource resource) {
-        return dataSource.everything(resource);
-    }
-
     @Override
     protected List<? extends IBaseResource> _getEntries(IBaseBundle bundle) {
         return dataSource.getEntries(bundle);
@@ -28,6 +28,7 @@ package org.fujionclinical.fhir.smart.common;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.fujion.common.StrUtil;
+import org.fujionclinical.fhir.api.common.core.ResourceIndex;
 import org.fujionclinical.shell.plugins.PluginDefinition;
 import org.fujionclinical.shell.plugins.PluginRegistry;
 import org.springframework.beans.BeansException;
@@ -67,7 +68,8 @@ public class SmartLocator implements ApplicationContextAware {
 
     /**
      * Search for SMART manifests within the specified path root. Each discovered manifest will
-     * result in the creation of a Fujion plugin definition for the associated SMART app.
+     * result in the creation of a Fujion plugin definition for the associated SMART app. Classpath
+     * roots are searched using the build-time resource index, if present.
      *
      * @param appContext The application context.
      * @param root       Root path for search.
@@ -76,7 +78,7 @@ public class SmartLocator implements ApplicationContextAware {
             ApplicationContext appContext,
             String root) {
         try {
-            Resource[] resources = appContext.getResources(root + SMART_MANIFEST_PATTERN);
+            Resource[] resources = ResourceIndex.getResources(appContext, root + SMART_MANIFEST_PATTERN);
 
             for (Resource resource : resources) {
                 PluginDefinition def = toDefinition(resource);
@@ -0,0 +1,118 @@
+/*
+ * #%L
+ * Fujion Clinical Framework
+ * %%
+ * Copyright (C) 2020 fujionclinical.org
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.fujionclinical.org/licensing/disclaimer
+ *
+ * #L%
+ */
+package org.fujionclinical.fhir.subscription.common;
+
+import org.coolmodel.mediator.fhir.common.AbstractFhirDataSource;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+/**
+ * A subscription that has no FHIR subscription resource of its own. Instead, it shares a broad
+ * FHIR subscription (on the resource type alone) with other subscriptions to the same resource
+ * type, and receives only those notifications whose resource satisfies its criteria when
+ * evaluated in memory.
+ */
+/*package*/ class AggregatedSubscriptionWrapper extends BaseSubscriptionWrapper<IBaseResource> {
+
+    private final SubscriptionCriteria criteria;
+
+    private final BaseSubscriptionWrapper<?> aggregate;
+
+    /**
+     * Create the subscription wrapper.
+     *
+     * @param criteria   The parsed subscription criteria.
+     * @param aggregate  The wrapper for the shared FHIR subscription. The caller must hold a
+     *                   reference to it on behalf of this wrapper.
+     * @param paramIndex The index for looking up by criteria/payload type.
+     * @param dataSource The data source.
+     */
+    /*package*/ AggregatedSubscriptionWrapper(
+            SubscriptionCriteria criteria,
+            BaseSubscriptionWrapper<?> aggregate,
+            String paramIndex,
+            AbstractFhirDataSource<?, ?> dataSource) {
+        super(null, paramIndex, dataSource);
+        this.criteria = criteria;
+        this.aggregate = aggregate;
+    }
+
+    /**
+     * Returns the wrapper for the shared FHIR subscription.
+     *
+     * @return The wrapper for the shared FHIR subscription.
+     */
+    /*package*/ BaseSubscriptionWrapper<?> getAggregate() {
+        return aggregate;
+    }
+
+    /**
+     * Returns true if a resource satisfies the subscription criteria.
+     *
+     * @param resource The resource.
+     * @return True if the resource satisfies the subscription criteria.
+     */
+    /*package*/ boolean matches(IBaseResource resource) {
+        return criteria.matches(resource);
+    }
+
+    @Override
+    protected String getCriteria() {
+        return criteria.getCriteria();
+    }
+
+    /**
+     * There is no FHIR subscription resource to create.
+     */
+    @Override
+    public BaseSubscriptionWrapper<?> initialize() {
+        return this;
+    }
+
+    /**
+     * Returns the state of the shared FHIR subscription.
+     */
+    @Override
+    public State getState() {
+        return aggregate.getState();
+    }
+
+    /**
+     * Returns the shared FHIR subscription resource.
+     */
+    @Override
+    public IBaseResource getWrapped() {
+        return aggregate.getWrapped();
+    }
+
+    /**
+     * There is no FHIR subscription resource to delete. The reference to the shared subscription
+     * is released by the subscription service.
+     */
+    @Override
+    public void delete() {
+    }
+
+}
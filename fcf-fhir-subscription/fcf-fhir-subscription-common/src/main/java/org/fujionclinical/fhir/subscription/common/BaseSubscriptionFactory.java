@@ -28,6 +28,7 @@ package org.fujionclinical.fhir.subscription.common;
 import org.clinicalontology.terminology.impl.model.ConceptImpl;
 import org.coolmodel.mediator.datasource.DataSources;
 import org.coolmodel.mediator.fhir.common.AbstractFhirDataSource;
+import org.hl7.fhir.instance.model.api.IBaseResource;
 
 public abstract class BaseSubscriptionFactory {
 
@@ -45,6 +46,17 @@ public abstract class BaseSubscriptionFactory {
         return (AbstractFhirDataSource) DataSources.get(dataSourceId);
     }
 
+    /**
+     * Creates a wrapper for a new subscription resource. The resource is not created on the
+     * server; the wrapper is pending until it is (see {@link BaseSubscriptionWrapper#initialize()}).
+     *
+     * @param paramIndex  The index for looking up by criteria/payload type.
+     * @param callbackUrl The base callback URL.
+     * @param payloadType The expected type of the payload.
+     * @param criteria    The subscription criteria.
+     * @param tag         The tag identifying subscriptions created by this application.
+     * @return The subscription wrapper.
+     */
     protected abstract BaseSubscriptionWrapper create(
             String paramIndex,
             String callbackUrl,
@@ -52,4 +64,18 @@ public abstract class BaseSubscriptionFactory {
             String criteria,
             ConceptImpl tag);
 
+    /**
+     * Creates a wrapper for an existing subscription resource that was created by a previous
+     * instance of the application.
+     *
+     * @param paramIndex     The index for looking up by criteria/payload type.
+     * @param subscriptionId The unique subscription id assigned when the resource was created.
+     * @param subscription   The existing subscription resource.
+     * @return The subscription wrapper.
+     */
+    protected abstract BaseSubscriptionWrapper adopt(
+            String paramIndex,
+            String subscriptionId,
+            IBaseResource subscription);
+
 }
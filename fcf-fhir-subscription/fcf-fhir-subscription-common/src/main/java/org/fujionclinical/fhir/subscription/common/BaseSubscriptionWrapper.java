@@ -25,22 +25,36 @@
  */
 package org.fujionclinical.fhir.subscription.common;
 
-import ca.uhn.fhir.parser.IParser;
-import ca.uhn.fhir.rest.api.PreferReturnEnum;
-import org.apache.commons.lang3.StringUtils;
+import ca.uhn.fhir.rest.api.MethodOutcome;
 import org.coolmodel.mediator.fhir.common.AbstractFhirDataSource;
 import org.fujion.common.Assert;
 import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Wraps a FHIR subscription resource, adding necessary metadata for managing the subscription.
+ * Wraps a FHIR subscription resource, adding necessary metadata for managing the subscription. A
+ * new wrapper is pending until its subscription resource has been created on the server.
+ * Notifications received while it is pending are buffered, and are delivered once it is active.
  */
 public abstract class BaseSubscriptionWrapper<T extends IBaseResource> {
 
+    public enum State {
+        PENDING, ACTIVE, FAILED, DELETED
+    }
+
     public static final String EVENT_ROOT = "FHIR.SUB";
 
+    /**
+     * Reference count value indicating that the last reference has been released.
+     */
+    private static final int RELEASED = -1;
+
     private final String paramIndex;
 
     private final String subscriptionId;
@@ -49,9 +63,13 @@ public abstract class BaseSubscriptionWrapper<T extends IBaseResource> {
 
     private T subscription;
 
-    private boolean initialized;
+    private volatile State state = State.PENDING;
+
+    private List<SubscriptionPayload> buffered = new ArrayList<>();
+
+    private final AtomicInteger refCount = new AtomicInteger();
 
-    private int refCount;
+    private final AtomicInteger directCount = new AtomicInteger();
 
     protected static String getParamIndexKey(
             String criteria,
@@ -76,6 +94,28 @@ public abstract class BaseSubscriptionWrapper<T extends IBaseResource> {
         this.subscriptionId = UUID.randomUUID().toString();
     }
 
+    /**
+     * Create a wrapper for an existing subscription resource that was created by a previous
+     * instance of the application.
+     *
+     * @param subscription   The existing subscription resource.
+     * @param subscriptionId The unique subscription id assigned when the resource was created.
+     * @param paramIndex     The index for looking up by criteria/payload type.
+     * @param dataSource     The data source.
+     */
+    protected BaseSubscriptionWrapper(
+            T subscription,
+            String subscriptionId,
+            String paramIndex,
+            AbstractFhirDataSource<?, ?> dataSource) {
+        this.subscription = subscription;
+        this.paramIndex = paramIndex;
+        this.dataSource = dataSource;
+        this.subscriptionId = subscriptionId;
+        this.state = State.ACTIVE;
+        this.buffered = null;
+    }
+
     /**
      * Return the unique subscription id.
      *
@@ -111,37 +151,174 @@ public abstract class BaseSubscriptionWrapper<T extends IBaseResource> {
     }
 
     /**
-     * Decrements the reference count.
+     * Decrements the reference count. When the count reaches zero, the wrapper is idle: it may be
+     * referenced again, or released (see {@link #release()}).
      *
-     * @return The updated reference count.
+     * @return The updated reference count, or -1 if the wrapper was idle or had been released.
      */
     protected int decRefCount() {
-        return refCount == 0 ? 0 : --refCount;
+        while (true) {
+            int count = refCount.get();
+
+            if (count <= 0) {
+                return RELEASED;
+            }
+
+            if (refCount.compareAndSet(count, count - 1)) {
+                return count - 1;
+            }
+        }
     }
 
     /**
-     * Increments the reference count.
+     * Marks an idle wrapper as released, after which it can no longer be referenced.
      *
-     * @return The updated reference count.
+     * @return True if the wrapper was idle and is now released; false if it has been referenced
+     *         again or was already released.
+     */
+    protected boolean release() {
+        return refCount.compareAndSet(0, RELEASED);
+    }
+
+    /**
+     * Increments the reference count, unless the wrapper has been released.
+     *
+     * @return The updated reference count, or -1 if the wrapper has been released.
      */
     protected int incRefCount() {
-        return ++refCount;
+        while (true) {
+            int count = refCount.get();
+
+            if (count == RELEASED) {
+                return RELEASED;
+            }
+
+            if (refCount.compareAndSet(count, count + 1)) {
+                return count + 1;
+            }
+        }
+    }
+
+    /**
+     * Records a reference held by a subscriber of this wrapper's own event, as distinct from a
+     * reference held on behalf of an aggregated subscription that shares the FHIR subscription.
+     */
+    protected void incDirectCount() {
+        directCount.incrementAndGet();
+    }
+
+    /**
+     * Removes a reference recorded by {@link #incDirectCount()}.
+     */
+    protected void decDirectCount() {
+        directCount.updateAndGet(count -> Math.max(0, count - 1));
+    }
+
+    /**
+     * Returns true if any subscriber holds a reference to this wrapper's own event.
+     *
+     * @return True if there are subscribers to this wrapper's own event.
+     */
+    protected boolean hasDirectSubscribers() {
+        return directCount.get() > 0;
     }
 
     public AbstractFhirDataSource<?, ?> getDataSource() {
         return dataSource;
     }
 
-    @SuppressWarnings("unchecked")
+    /**
+     * Returns the state of the subscription.
+     *
+     * @return The state of the subscription.
+     */
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * Returns the subscription resource, whatever its state.
+     *
+     * @return The subscription resource (null if deleted).
+     */
+    protected T getSubscription() {
+        return subscription;
+    }
+
+    /**
+     * Creates the subscription resource on the server if it has not already been created, waiting
+     * for the response.
+     *
+     * @return This wrapper.
+     */
     public BaseSubscriptionWrapper<?> initialize() {
-        if (!initialized) {
-            initialized = true;
-            subscription = (T) dataSource.getClient().create().resource(subscription).prefer(PreferReturnEnum.REPRESENTATION).execute().getResource();
+        if (state == State.PENDING) {
+            create();
         }
 
         return this;
     }
 
+    /**
+     * Creates the subscription resource on the server, waiting for the response.
+     *
+     * @return The notifications buffered while the subscription was pending (null if it was
+     *         deleted in the meantime).
+     */
+    protected List<SubscriptionPayload> create() {
+        MethodOutcome outcome = dataSource.getClient().create().resource(subscription).execute();
+        return activate(outcome.getId().toUnqualifiedVersionless().getValue());
+    }
+
+    /**
+     * Marks a pending subscription as active once its resource has been created on the server. If
+     * the wrapper was deleted in the meantime, the newly created resource is deleted instead.
+     *
+     * @param resourceId The id of the created subscription resource.
+     * @return The notifications buffered while the subscription was pending (null if it was
+     *         deleted in the meantime).
+     */
+    protected List<SubscriptionPayload> activate(String resourceId) {
+        synchronized (this) {
+            if (state == State.PENDING) {
+                List<SubscriptionPayload> result = buffered;
+                subscription.setId(resourceId);
+                state = State.ACTIVE;
+                buffered = null;
+                return result;
+            }
+        }
+
+        IIdType id = dataSource.getClient().getFhirContext().getVersion().newIdType().setValue(resourceId).toUnqualifiedVersionless();
+        dataSource.getClient().delete().resourceById(id).execute();
+        return null;
+    }
+
+    /**
+     * Marks a pending subscription as failed, discarding any buffered notifications.
+     */
+    protected synchronized void fail() {
+        if (state == State.PENDING) {
+            state = State.FAILED;
+            buffered = null;
+        }
+    }
+
+    /**
+     * Buffers a notification if the subscription is pending.
+     *
+     * @param payload The notification payload.
+     * @return True if the notification was buffered; false if it should be delivered now.
+     */
+    protected synchronized boolean buffer(SubscriptionPayload payload) {
+        if (state == State.PENDING) {
+            buffered.add(payload);
+            return true;
+        }
+
+        return false;
+    }
+
     /**
      * Parses a resource from the raw payload.
      *
@@ -149,32 +326,53 @@ public abstract class BaseSubscriptionWrapper<T extends IBaseResource> {
      * @return The parsed resource (may be null).
      */
     public IBaseResource parseResource(String payload) {
-        IBaseResource resource = null;
-        payload = StringUtils.trimToNull(payload);
-
-        if (payload != null) {
-            IParser parser = payload.startsWith("{") ? dataSource.getClient().getFhirContext().newJsonParser()
-                    : dataSource.getClient().getFhirContext().newXmlParser();
+        return createPayload(payload == null ? null : payload.getBytes(StandardCharsets.UTF_8), null).getResource();
+    }
 
-            try {
-                resource = parser.parseResource(payload);
-            } catch (Exception e) {
-                throw new RuntimeException("Unable to parse payload in subscription request", e);
-            }
-        }
+    /**
+     * Creates a payload from the raw content of a notification. The content is not decoded until
+     * the resource is requested.
+     *
+     * @param content     The raw content (may be null).
+     * @param contentType The MIME type of the content (may be null).
+     * @return The payload.
+     */
+    public SubscriptionPayload createPayload(
+            byte[] content,
+            String contentType) {
+        return new SubscriptionPayload(content, contentType, dataSource.getClient().getFhirContext());
+    }
 
-        return resource;
+    /**
+     * Returns the id of the subscription resource on the server.
+     *
+     * @return The relative, unversioned id of the subscription resource (e.g., Subscription/123),
+     *         or null if there is none.
+     */
+    public String getResourceId() {
+        T resource = state == State.ACTIVE ? subscription : null;
+        return resource == null || resource.getIdElement().isEmpty() ? null : resource.getIdElement().toUnqualifiedVersionless().getValue();
     }
 
     public T getWrapped() {
         Assert.notNull(subscription, "Subscription has been deleted.");
-        Assert.isTrue(initialized, "Subscription has not been initialized.");
+        Assert.isTrue(state == State.ACTIVE, "Subscription has not been initialized.");
         return subscription;
     }
 
     public void delete() {
-        dataSource.getClient().delete().resource(subscription).execute();
-        subscription = null;
+        T resource;
+
+        synchronized (this) {
+            resource = state == State.ACTIVE ? subscription : null;
+            state = State.DELETED;
+            buffered = null;
+            subscription = null;
+        }
+
+        if (resource != null) {
+            dataSource.getClient().delete().resource(resource).execute();
+        }
     }
 
 }
@@ -29,7 +29,10 @@ import org.fujionclinical.api.event.IEventSubscriber;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 
 /**
- * Generic event callback signature used for reports subscription-related events.
+ * Generic event callback signature used for reports subscription-related events. The callback is
+ * invoked once for each notification, with the changed resource (or null if the notification has
+ * no payload) as the event data. Subscribers that do not need the resources, or that can process
+ * notifications together, should use {@link ISubscriptionBatchCallback} instead.
  */
 public interface ISubscriptionCallback extends IEventSubscriber<IBaseResource> {
 
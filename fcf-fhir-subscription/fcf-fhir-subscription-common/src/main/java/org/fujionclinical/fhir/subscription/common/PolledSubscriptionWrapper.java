@@ -0,0 +1,123 @@
+/*
+ * #%L
+ * Fujion Clinical Framework
+ * %%
+ * Copyright (C) 2020 fujionclinical.org
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.fujionclinical.org/licensing/disclaimer
+ *
+ * #L%
+ */
+package org.fujionclinical.fhir.subscription.common;
+
+import org.coolmodel.mediator.fhir.common.AbstractFhirDataSource;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.util.UUID;
+
+/**
+ * A subscription that is serviced by polling rather than by a FHIR subscription resource. Polled
+ * subscriptions are grouped by the search that detects changes to their resources (see
+ * {@link SubscriptionPoller}). Criteria that can be evaluated in memory share a single search on
+ * their resource type; any other criteria are searched individually.
+ */
+/*package*/ class PolledSubscriptionWrapper extends BaseSubscriptionWrapper<IBaseResource> {
+
+    private final String criteria;
+
+    private final SubscriptionCriteria parsed;
+
+    /**
+     * Create the subscription wrapper.
+     *
+     * @param criteria   The subscription criteria.
+     * @param paramIndex The index for looking up by criteria/payload type.
+     * @param dataSource The data source.
+     */
+    /*package*/ PolledSubscriptionWrapper(
+            String criteria,
+            String paramIndex,
+            AbstractFhirDataSource<?, ?> dataSource) {
+        super(null, UUID.randomUUID().toString(), paramIndex, dataSource);
+        this.criteria = criteria;
+        this.parsed = SubscriptionCriteria.parse(criteria, dataSource.getClient().getFhirContext());
+    }
+
+    /**
+     * Returns the search used to detect changes to the resources of interest, excluding the
+     * <code>_lastUpdated</code> parameter.
+     *
+     * @return The search (a resource type, or the original criteria if they cannot be evaluated
+     *         in memory).
+     */
+    /*package*/ String getQuery() {
+        return parsed == null ? criteria : parsed.getResourceType();
+    }
+
+    /**
+     * Returns the key identifying the group of subscriptions that share the same search.
+     *
+     * @return The group key.
+     */
+    /*package*/ String getGroupKey() {
+        return getDataSource().getId() + "|" + getQuery();
+    }
+
+    /**
+     * Returns true if a resource returned by the group's search satisfies the subscription
+     * criteria.
+     *
+     * @param resource The resource.
+     * @return True if the resource satisfies the subscription criteria.
+     */
+    /*package*/ boolean matches(IBaseResource resource) {
+        return parsed == null || parsed.matches(resource);
+    }
+
+    @Override
+    protected String getCriteria() {
+        return criteria;
+    }
+
+    /**
+     * There is no FHIR subscription resource to create.
+     */
+    @Override
+    public BaseSubscriptionWrapper<?> initialize() {
+        return this;
+    }
+
+    /**
+     * There is no FHIR subscription resource.
+     *
+     * @return Always null.
+     */
+    @Override
+    public IBaseResource getWrapped() {
+        return null;
+    }
+
+    /**
+     * There is no FHIR subscription resource to delete. The subscription is removed from its
+     * polling group by the subscription service.
+     */
+    @Override
+    public void delete() {
+    }
+
+}
@@ -27,6 +27,7 @@ package org.fujionclinical.fhir.subscription.common;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
@@ -52,30 +53,33 @@ public class ResourceSubscriptionEndpoint {
     @RequestMapping(value = "/{id}", method = RequestMethod.POST)
     public ResponseEntity<?> post(
             @PathVariable("id") String id,
-            @RequestBody(required = false) String payload) {
-        return processRequest(id, payload);
+            @RequestBody(required = false) byte[] payload,
+            @RequestHeader(value = HttpHeaders.CONTENT_TYPE, required = false) String contentType) {
+        return processRequest(id, payload, contentType);
     }
 
     @RequestMapping(value = "/{id}", method = RequestMethod.PUT)
     public ResponseEntity<?> put(
             @PathVariable("id") String id,
-            @RequestBody(required = false) String payload) {
-        return processRequest(id, payload);
+            @RequestBody(required = false) byte[] payload,
+            @RequestHeader(value = HttpHeaders.CONTENT_TYPE, required = false) String contentType) {
+        return processRequest(id, payload, contentType);
     }
 
     @RequestMapping(value = "/{id}", method = RequestMethod.GET)
     public ResponseEntity<?> get(@PathVariable("id") String id) {
-        return processRequest(id, null);
+        return processRequest(id, null, null);
     }
 
     private ResponseEntity<?> processRequest(
             String id,
-            String payload) {
+            byte[] payload,
+            String contentType) {
         boolean rejected = disabled;
 
         if (!rejected) {
             try {
-                rejected = !service.notifySubscribers(id, payload);
+                rejected = !service.notifySubscribers(id, payload, contentType);
             } catch (Exception e) {
                 rejected = true;
                 disableService("notifying subscribers of a resource subscription event", e);
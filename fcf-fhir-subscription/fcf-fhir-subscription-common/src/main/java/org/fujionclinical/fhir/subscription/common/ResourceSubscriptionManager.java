@@ -29,14 +29,52 @@ import org.coolmodel.mediator.fhir.common.AbstractFhirDataSource;
 import org.fujionclinical.api.event.IEventManager;
 import org.fujionclinical.fhir.subscription.common.ResourceSubscriptionService.PayloadType;
 
+import java.util.Objects;
+
 /**
  * Convenience class for managing resource subscriptions at the application instance level. Simply
  * delegates resource subscription requests to the subscription service and callback registrations
- * to the event manager for the application instance.
+ * to the event manager for the application instance. Notifications are delivered in batches; a
+ * per-resource callback is registered through an adapter that invokes it once for each
+ * notification in a batch.
  */
 @SuppressWarnings("rawtypes")
 public class ResourceSubscriptionManager {
 
+    /**
+     * Adapts a per-resource callback to receive batches. Adapters for the same callback are equal,
+     * so a callback may be unregistered using a new adapter.
+     */
+    private static class ResourceCallbackAdapter implements ISubscriptionBatchCallback {
+
+        private final ISubscriptionCallback callback;
+
+        private ResourceCallbackAdapter(ISubscriptionCallback callback) {
+            this.callback = callback;
+        }
+
+        @Override
+        public void eventCallback(
+                String eventName,
+                SubscriptionBatch batch) {
+            for (SubscriptionPayload payload : batch.getPayloads()) {
+                callback.eventCallback(eventName, payload.getResource());
+            }
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            return object instanceof ResourceCallbackAdapter
+                    && ((ResourceCallbackAdapter) object).callback.equals(callback);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(ResourceCallbackAdapter.class, callback);
+        }
+
+    }
+
     private final IEventManager eventManager;
 
     private final ResourceSubscriptionService service;
@@ -64,6 +102,21 @@ public class ResourceSubscriptionManager {
             PayloadType payloadType,
             ISubscriptionCallback callback,
             AbstractFhirDataSource dataSource) {
+        return subscribe(criteria, payloadType, new ResourceCallbackAdapter(callback), dataSource);
+    }
+
+    public BaseSubscriptionWrapper subscribe(
+            String criteria,
+            ISubscriptionBatchCallback callback,
+            AbstractFhirDataSource dataSource) {
+        return subscribe(criteria, null, callback, dataSource);
+    }
+
+    public BaseSubscriptionWrapper subscribe(
+            String criteria,
+            PayloadType payloadType,
+            ISubscriptionBatchCallback callback,
+            AbstractFhirDataSource dataSource) {
         BaseSubscriptionWrapper subscription = service.subscribe(criteria, payloadType, dataSource);
 
         if (subscription != null) {
@@ -76,6 +129,12 @@ public class ResourceSubscriptionManager {
     public BaseSubscriptionWrapper unsubscribe(
             BaseSubscriptionWrapper subscription,
             ISubscriptionCallback callback) {
+        return unsubscribe(subscription, new ResourceCallbackAdapter(callback));
+    }
+
+    public BaseSubscriptionWrapper unsubscribe(
+            BaseSubscriptionWrapper subscription,
+            ISubscriptionBatchCallback callback) {
         if (subscription != null) {
             eventManager.unsubscribe(subscription.getEventName(), callback);
             service.unsubscribe(subscription);
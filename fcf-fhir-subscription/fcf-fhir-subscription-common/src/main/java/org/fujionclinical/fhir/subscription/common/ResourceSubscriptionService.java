@@ -25,8 +25,11 @@
  */
 package org.fujionclinical.fhir.subscription.common;
 
+import ca.uhn.fhir.rest.client.api.IGenericClient;
 import ca.uhn.fhir.rest.gclient.ICriterion;
 import ca.uhn.fhir.rest.gclient.TokenClientParam;
+import ca.uhn.fhir.util.BundleUtil;
+import ca.uhn.fhir.util.FhirTerser;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -37,13 +40,22 @@ import org.fujionclinical.api.event.EventMessage;
 import org.fujionclinical.api.event.EventUtil;
 import org.fujionclinical.api.messaging.Message;
 import org.fujionclinical.api.messaging.ProducerService;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.springframework.beans.BeansException;
 import org.springframework.beans.factory.config.BeanPostProcessor;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Service for managing FHIR resource subscriptions. It provides a bridge between FHIR's
@@ -53,6 +65,40 @@ import java.util.Map;
  * the supported mechanisms (preferably via a REST callback), this service may be invoked to deliver
  * the notification to each of the FCF subscribers by means of the associated event name. The
  * service also manages the lifecycle of the subscriptions, creating and revoking them as required.
+ * <p>
+ * The subscription indexes are concurrent and subscriptions are reference counted atomically, so
+ * no global lock is held. In particular, notifications are parsed and published concurrently, and
+ * are never blocked by the creation or revocation of a subscription.
+ * <p>
+ * Aggregation may be enabled for selected resource types. Subscriptions to those types whose
+ * criteria consist only of simple token and reference search parameters (e.g.,
+ * <code>Observation?subject=123</code>) do not each create a FHIR subscription. Instead, they share
+ * a single FHIR subscription on the resource type per data source, and each notification received
+ * on it is matched in memory against their criteria and delivered only to the event names of those
+ * that match (see {@link SubscriptionCriteria}). The shared subscription is unrestricted, so the
+ * server notifies the application of every change to a resource of that type, with its payload.
+ * This trades fewer FHIR subscriptions for more notification traffic and matching work, which pays
+ * off only for types with many narrow subscriptions and a modest rate of change. It should not be
+ * enabled for high-volume types.
+ * <p>
+ * If a registry file is configured, the FHIR subscriptions survive a restart. Upon shutdown, the
+ * active subscriptions are recorded in the registry (see {@link SubscriptionRegistry}) instead of
+ * being deleted. Upon startup, a single search for tagged subscriptions on each data source
+ * identifies those that can be adopted; any others are deleted. A subscription that has no
+ * subscribers, whether adopted or released by its last subscriber, is retained for an idle
+ * timeout before it is deleted, giving subscribers time to return. Without a registry file, all
+ * tagged subscriptions are deleted upon startup and shutdown, and a subscription is deleted as
+ * soon as it has no subscribers.
+ * <p>
+ * Subscription resources are created in the background (see {@link SubscriptionInitializer}), so
+ * that a request to subscribe returns at once with a pending wrapper. Notifications received for a
+ * pending subscription are buffered until it becomes active. If creation fails, the wrapper is
+ * removed from the indexes, so that a later request for the same criteria tries again.
+ * <p>
+ * If no callback URL is specified but a polling interval is, the service operates in polling mode
+ * instead: no FHIR subscription resources are created, and changes are detected by searching for
+ * recently updated resources (see {@link SubscriptionPoller}). Notifications are delivered to
+ * subscribers in the same manner. Note that deletions are not detected in polling mode.
  */
 public class ResourceSubscriptionService implements BeanPostProcessor {
 
@@ -73,6 +119,14 @@ public class ResourceSubscriptionService implements BeanPostProcessor {
 
     private static final TokenClientParam TAG = new TokenClientParam("tag");
 
+    /**
+     * Default period for which a subscription without subscribers is retained when a registry file
+     * is configured, in milliseconds.
+     */
+    public static final long DEFAULT_IDLE_TIMEOUT = 300000;
+
+    private static final Set<String> ADOPTABLE_STATUSES = Set.of("requested", "active");
+
     private final Log log = LogFactory.getLog(ResourceSubscriptionService.class);
 
     private final ProducerService producer;
@@ -81,48 +135,303 @@ public class ResourceSubscriptionService implements BeanPostProcessor {
 
     private final String callbackUrl;
 
-    private final Map<String, BaseSubscriptionFactory> factories = new HashMap<>();
+    private final Map<String, BaseSubscriptionFactory> factories = new ConcurrentHashMap<>();
 
     private final ConceptImpl subscriptionTag;
 
-    private final Map<String, BaseSubscriptionWrapper<?>> subscriptionsByParams = new HashMap<>();
+    private final Map<String, BaseSubscriptionWrapper<?>> subscriptionsByParams = new ConcurrentHashMap<>();
+
+    private final Map<String, BaseSubscriptionWrapper<?>> subscriptionsById = new ConcurrentHashMap<>();
+
+    private final Map<String, Set<AggregatedSubscriptionWrapper>> aggregatedById = new ConcurrentHashMap<>();
+
+    private final SubscriptionCoalescer coalescer;
+
+    private final SubscriptionPoller poller;
 
-    private final Map<String, BaseSubscriptionWrapper<?>> subscriptionsById = new HashMap<>();
+    private final Set<String> aggregateTypes;
+
+    private SubscriptionRegistry registry;
+
+    private long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+    private ScheduledExecutorService scheduler;
+
+    private final SubscriptionInitializer initializer;
 
     /**
      * Create the resource subscription service.
      *
      * @param producer    The message producer for delivering events to subscribers.
      * @param callbackUrl The callback URL to be associated with new subscriptions. If no callback
-     *                    URL is specified, this service will be disabled.
+     *                    URL is specified, this service will be disabled unless polling is
+     *                    configured.
      */
     public ResourceSubscriptionService(
             ProducerService producer,
             String callbackUrl) {
+        this(producer, callbackUrl, 0, 0);
+    }
+
+    /**
+     * Create the resource subscription service.
+     *
+     * @param producer         The message producer for delivering events to subscribers.
+     * @param callbackUrl      The callback URL to be associated with new subscriptions. If no
+     *                         callback URL is specified, this service will be disabled unless
+     *                         polling is configured.
+     * @param coalesceWindow   Notifications for the same subscription received within this many
+     *                         milliseconds of the first are delivered as a single event (0 to
+     *                         deliver each notification separately).
+     * @param coalesceMaxBatch The maximum number of notifications delivered as a single event (0
+     *                         for no limit).
+     */
+    public ResourceSubscriptionService(
+            ProducerService producer,
+            String callbackUrl,
+            long coalesceWindow,
+            int coalesceMaxBatch) {
+        this(producer, callbackUrl, coalesceWindow, coalesceMaxBatch, null);
+    }
+
+    /**
+     * Create the resource subscription service.
+     *
+     * @param producer         The message producer for delivering events to subscribers.
+     * @param callbackUrl      The callback URL to be associated with new subscriptions. If no
+     *                         callback URL is specified, this service will be disabled unless
+     *                         polling is configured.
+     * @param coalesceWindow   Notifications for the same subscription received within this many
+     *                         milliseconds of the first are delivered as a single event (0 to
+     *                         deliver each notification separately).
+     * @param coalesceMaxBatch The maximum number of notifications delivered as a single event (0
+     *                         for no limit).
+     * @param aggregateTypes   Comma-separated list of resource types for which subscriptions with
+     *                         simple criteria share a single FHIR subscription per data source
+     *                         (empty to disable aggregation).
+     */
+    public ResourceSubscriptionService(
+            ProducerService producer,
+            String callbackUrl,
+            long coalesceWindow,
+            int coalesceMaxBatch,
+            String aggregateTypes) {
+        this(producer, callbackUrl, coalesceWindow, coalesceMaxBatch, aggregateTypes, 0);
+    }
+
+    /**
+     * Create the resource subscription service.
+     *
+     * @param producer         The message producer for delivering events to subscribers.
+     * @param callbackUrl      The callback URL to be associated with new subscriptions. If no
+     *                         callback URL is specified, this service will be disabled unless
+     *                         polling is configured.
+     * @param coalesceWindow   Notifications for the same subscription received within this many
+     *                         milliseconds of the first are delivered as a single event (0 to
+     *                         deliver each notification separately).
+     * @param coalesceMaxBatch The maximum number of notifications delivered as a single event (0
+     *                         for no limit).
+     * @param aggregateTypes   Comma-separated list of resource types for which subscriptions with
+     *                         simple criteria share a single FHIR subscription per data source
+     *                         (empty to disable aggregation).
+     * @param createWindow     Requests to create subscription resources on the same data source
+     *                         within this many milliseconds of the first are combined into a
+     *                         single batch request (0 to create each subscription resource at
+     *                         once, in the subscribing thread).
+     */
+    public ResourceSubscriptionService(
+            ProducerService producer,
+            String callbackUrl,
+            long coalesceWindow,
+            int coalesceMaxBatch,
+            String aggregateTypes,
+            long createWindow) {
         this.producer = producer;
+        this.aggregateTypes = Set.copyOf(Arrays.asList(StringUtils.split(StringUtils.defaultString(aggregateTypes), ", ")));
+        this.coalescer = new SubscriptionCoalescer(coalesceWindow, coalesceMaxBatch, this::publish);
         disabled = StringUtils.isEmpty(callbackUrl);
+        this.initializer = new SubscriptionInitializer(disabled ? 0 : createWindow, this::activated, this::failed);
         this.callbackUrl = disabled ? null : callbackUrl.endsWith("/") ? callbackUrl : callbackUrl + "/";
+        this.poller = disabled ? new SubscriptionPoller(coalescer::submit) : null;
         subscriptionTag = new ConceptImpl(callbackUrl, "ResourceSubscription", null);
-        destroy();
         log.info("FHIR Resource Subscription Service is " + (disabled ? "disabled." : "enabled."));
     }
 
     /**
-     * Delete any old subscriptions upon startup/shutdown.
+     * Sets the location of the registry file that allows subscriptions to be adopted after a
+     * restart.
+     *
+     * @param registryFile Location of the registry file (if empty, subscriptions are not retained
+     *                     across restarts).
+     */
+    public void setRegistryFile(String registryFile) {
+        this.registry = StringUtils.isEmpty(registryFile) ? null : new SubscriptionRegistry(registryFile);
+    }
+
+    /**
+     * Sets the period for which a subscription without subscribers is retained when a registry
+     * file is configured.
+     *
+     * @param idleTimeout The idle timeout in milliseconds.
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = Math.max(0, idleTimeout);
+    }
+
+    /**
+     * Sets the minimum interval for polling, which is used only if no callback URL is specified.
+     *
+     * @param pollInterval The minimum polling interval in milliseconds (0 to disable polling).
+     */
+    public void setPollInterval(long pollInterval) {
+        if (poller != null) {
+            poller.setMinInterval(pollInterval);
+
+            if (poller.isEnabled()) {
+                log.info("FHIR Resource Subscription Service is enabled in polling mode.");
+            }
+        }
+    }
+
+    /**
+     * Sets the maximum interval for polling, to which the interval grows while no changes are
+     * found.
+     *
+     * @param pollMaxInterval The maximum polling interval in milliseconds.
+     */
+    public void setPollMaxInterval(long pollMaxInterval) {
+        if (poller != null) {
+            poller.setMaxInterval(pollMaxInterval);
+        }
+    }
+
+    /**
+     * Upon shutdown, record active subscriptions in the registry if one is configured, or delete
+     * them otherwise.
      */
-    public void destroy() {
-        if (!disabled) {
-            ICriterion<?> criterion = TAG.exactly().systemAndCode(subscriptionTag.getCodeSystemAsString(),
-                    subscriptionTag.getCode());
+    public synchronized void destroy() {
+        initializer.shutdown();
 
-            for (BaseSubscriptionFactory factory : factories.values()) {
-                try {
-                    factory.getDataSource().getClient().delete().resourceConditionalByType("Subscription").where(criterion).execute();
-                } catch (Exception e) {
-                    log.error("Error attempting to delete old subscription resources for data source " + factory.getDataSource().getId(), e);
+        if (poller != null) {
+            poller.shutdown();
+        }
+
+        coalescer.shutdown();
+
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+
+        if (disabled) {
+            return;
+        }
+
+        if (registry != null) {
+            List<SubscriptionRegistry.Entry> entries = new ArrayList<>();
+
+            for (BaseSubscriptionWrapper<?> wrapper : subscriptionsById.values()) {
+                String resourceId = wrapper.getResourceId();
+
+                if (resourceId != null) {
+                    entries.add(new SubscriptionRegistry.Entry(wrapper.getDataSource().getId(), resourceId,
+                            wrapper.getSubscriptionId(), wrapper.getParamIndex()));
                 }
             }
+
+            registry.save(entries);
+            log.info("Recorded " + entries.size() + " FHIR subscription(s) for adoption upon restart.");
+        } else {
+            factories.values().forEach(this::deleteAll);
+        }
+    }
+
+    /**
+     * Delete all tagged subscriptions on a factory's data source.
+     *
+     * @param factory The subscription factory.
+     */
+    private void deleteAll(BaseSubscriptionFactory factory) {
+        ICriterion<?> criterion = TAG.exactly().systemAndCode(subscriptionTag.getCodeSystemAsString(),
+                subscriptionTag.getCode());
+
+        try {
+            factory.getDataSource().getClient().delete().resourceConditionalByType("Subscription").where(criterion).execute();
+        } catch (Exception e) {
+            log.error("Error attempting to delete old subscription resources for data source " + factory.getDataSourceId(), e);
+        }
+    }
+
+    /**
+     * Upon startup, adopt the tagged subscriptions on a factory's data source that are recorded in
+     * the registry and still active, and delete the rest. Adopted subscriptions are indexed as
+     * idle, so they are deleted if no subscriber claims them within the idle timeout.
+     *
+     * @param factory The subscription factory.
+     */
+    private void reconcile(BaseSubscriptionFactory factory) {
+        AbstractFhirDataSource<?, ?> dataSource = factory.getDataSource();
+        IGenericClient client = dataSource.getClient();
+        FhirTerser terser = client.getFhirContext().newTerser();
+        Map<String, SubscriptionRegistry.Entry> entries = registry.getEntries(dataSource.getId());
+        List<IBaseResource> orphans = new ArrayList<>();
+        int adopted = 0;
+
+        for (IBaseResource resource : findTagged(client)) {
+            SubscriptionRegistry.Entry entry = entries.get(resource.getIdElement().toUnqualifiedVersionless().getValue());
+            String status = terser.getSinglePrimitiveValueOrNull(resource, "status");
+            BaseSubscriptionWrapper<?> wrapper = entry == null || !ADOPTABLE_STATUSES.contains(status) ? null
+                    : factory.adopt(entry.getParamIndex(), entry.getSubscriptionId(), resource);
+
+            if (wrapper != null && subscriptionsByParams.putIfAbsent(wrapper.getParamIndex(), wrapper) == null) {
+                subscriptionsById.put(wrapper.getSubscriptionId(), wrapper);
+                scheduleRevoke(wrapper);
+                adopted++;
+            } else {
+                orphans.add(resource);
+            }
         }
+
+        for (IBaseResource orphan : orphans) {
+            try {
+                client.delete().resource(orphan).execute();
+            } catch (Exception e) {
+                log.warn("Error deleting stale subscription " + orphan.getIdElement().getValue(), e);
+            }
+        }
+
+        log.info("Adopted " + adopted + " and deleted " + orphans.size() + " FHIR subscription(s) for data source "
+                + dataSource.getId() + ".");
+    }
+
+    /**
+     * Returns all tagged subscriptions on a data source.
+     *
+     * @param client The client for the data source.
+     * @return The tagged subscriptions.
+     */
+    @SuppressWarnings("unchecked")
+    private List<IBaseResource> findTagged(IGenericClient client) {
+        Class<? extends IBaseBundle> bundleClass = (Class<? extends IBaseBundle>) client.getFhirContext()
+                .getResourceDefinition("Bundle").getImplementingClass();
+        List<IBaseResource> resources = new ArrayList<>();
+        IBaseBundle bundle = client.search()
+                .forResource("Subscription")
+                .withTag(subscriptionTag.getCodeSystemAsString(), subscriptionTag.getCode())
+                .returnBundle(bundleClass)
+                .execute();
+
+        while (bundle != null) {
+            for (IBaseResource resource : BundleUtil.toListOfResources(client.getFhirContext(), bundle)) {
+                if ("Subscription".equals(resource.fhirType())) {
+                    resources.add(resource);
+                }
+            }
+
+            bundle = BundleUtil.getLinkUrlOfType(client.getFhirContext(), bundle, "next") == null ? null
+                    : client.loadPage().next(bundle).execute();
+        }
+
+        return resources;
     }
 
     /**
@@ -131,7 +440,11 @@ public class ResourceSubscriptionService implements BeanPostProcessor {
      * @return True if the service is disabled.
      */
     public boolean isDisabled() {
-        return disabled;
+        return disabled && !isPolling();
+    }
+
+    private boolean isPolling() {
+        return poller != null && poller.isEnabled();
     }
 
     /**
@@ -142,7 +455,7 @@ public class ResourceSubscriptionService implements BeanPostProcessor {
      * @param dataSource The data source.
      * @return The subscription wrapper.
      */
-    public synchronized BaseSubscriptionWrapper<?> subscribe(
+    public BaseSubscriptionWrapper<?> subscribe(
             String criteria,
             AbstractFhirDataSource<?, ?> dataSource) {
         return subscribe(criteria, null, dataSource);
@@ -157,11 +470,25 @@ public class ResourceSubscriptionService implements BeanPostProcessor {
      * @param dataSource  The data source.
      * @return The subscription wrapper.
      */
-    public synchronized BaseSubscriptionWrapper<?> subscribe(
+    public BaseSubscriptionWrapper<?> subscribe(
             String criteria,
             PayloadType payloadType,
             AbstractFhirDataSource<?, ?> dataSource) {
-        return disabled ? null : getOrCreateSubscription(criteria, payloadType == null ? PayloadType.NONE : payloadType, dataSource);
+        if (isDisabled()) {
+            return null;
+        }
+
+        PayloadType type = payloadType == null ? PayloadType.NONE : payloadType;
+        SubscriptionCriteria parsed = aggregateTypes.isEmpty() || disabled ? null
+                : SubscriptionCriteria.parse(criteria, dataSource.getClient().getFhirContext());
+
+        if (parsed != null && aggregateTypes.contains(parsed.getResourceType())) {
+            return getOrCreateAggregated(parsed, type, dataSource);
+        }
+
+        BaseSubscriptionWrapper<?> wrapper = getOrCreateSubscription(criteria, type, dataSource);
+        wrapper.incDirectCount();
+        return wrapper;
     }
 
     /**
@@ -171,9 +498,24 @@ public class ResourceSubscriptionService implements BeanPostProcessor {
      * @param wrapper The subscription wrapper.
      * @return The subscription wrapper.
      */
-    public synchronized BaseSubscriptionWrapper<?> unsubscribe(BaseSubscriptionWrapper<?> wrapper) {
+    public BaseSubscriptionWrapper<?> unsubscribe(BaseSubscriptionWrapper<?> wrapper) {
+        if (wrapper != null && !(wrapper instanceof AggregatedSubscriptionWrapper)) {
+            wrapper.decDirectCount();
+        }
+
+        return releaseReference(wrapper);
+    }
+
+    /**
+     * Releases a reference to a subscription wrapper, revoking the FHIR subscription if there are
+     * no further references.
+     *
+     * @param wrapper The subscription wrapper.
+     * @return The subscription wrapper.
+     */
+    private BaseSubscriptionWrapper<?> releaseReference(BaseSubscriptionWrapper<?> wrapper) {
         if (wrapper != null && wrapper.decRefCount() == 0) {
-            deleteSubscription(wrapper);
+            scheduleRevoke(wrapper);
         }
 
         return wrapper;
@@ -184,7 +526,7 @@ public class ResourceSubscriptionService implements BeanPostProcessor {
      *
      * @param wrappers Collection of subscription wrappers.
      */
-    public synchronized void unsubscribe(Collection<BaseSubscriptionWrapper<?>> wrappers) {
+    public void unsubscribe(Collection<BaseSubscriptionWrapper<?>> wrappers) {
         if (wrappers != null) {
             for (BaseSubscriptionWrapper<?> wrapper : wrappers) {
                 unsubscribe(wrapper);
@@ -199,25 +541,148 @@ public class ResourceSubscriptionService implements BeanPostProcessor {
      * @param payload Serialized resource (may be null).
      * @return True if the subscription notification was delivered.
      */
-    protected synchronized boolean notifySubscribers(
+    protected boolean notifySubscribers(
             String id,
             String payload) {
+        return notifySubscribers(id, payload == null ? null : payload.getBytes(StandardCharsets.UTF_8), null);
+    }
+
+    /**
+     * Notify all event subscribers of a subscription notification. The payload is delivered
+     * undecoded; it is decoded only if and when a subscriber requests the resource. Notifications
+     * may be coalesced before delivery (see {@link SubscriptionCoalescer}).
+     *
+     * @param id          Unique identifier of the FHIR subscription.
+     * @param content     Serialized resource (may be null).
+     * @param contentType MIME type of the serialized resource (may be null).
+     * @return True if the subscription notification was delivered.
+     */
+    protected boolean notifySubscribers(
+            String id,
+            byte[] content,
+            String contentType) {
         BaseSubscriptionWrapper<?> wrapper = subscriptionsById.get(id);
-        boolean found = wrapper != null;
 
-        if (found) {
-            IBaseResource resource = wrapper.parseResource(payload);
-            String eventName = wrapper.getEventName();
-            Message message = new EventMessage(eventName, resource);
-            producer.publish(EventUtil.getChannelName(eventName), message);
+        if (wrapper == null) {
+            return false;
+        }
+
+        SubscriptionPayload payload = wrapper.createPayload(content, contentType);
+
+        if (!wrapper.buffer(payload)) {
+            dispatch(wrapper, payload);
+        }
+
+        return true;
+    }
+
+    /**
+     * Delivers a notification to the subscribers of a FHIR subscription.
+     *
+     * @param wrapper The subscription wrapper.
+     * @param payload The notification payload.
+     */
+    private void dispatch(
+            BaseSubscriptionWrapper<?> wrapper,
+            SubscriptionPayload payload) {
+        Set<AggregatedSubscriptionWrapper> aggregated = aggregatedById.get(wrapper.getSubscriptionId());
+
+        if (aggregated == null) {
+            coalescer.submit(wrapper.getEventName(), payload);
+        } else {
+            fanOut(wrapper, aggregated, payload);
+        }
+    }
+
+    /**
+     * Delivers the notifications buffered while a subscription was pending, once it has become
+     * active.
+     *
+     * @param wrapper  The subscription wrapper.
+     * @param buffered The buffered notifications (null if the wrapper was deleted while pending).
+     */
+    private void activated(
+            BaseSubscriptionWrapper<?> wrapper,
+            List<SubscriptionPayload> buffered) {
+        if (buffered != null) {
+            buffered.forEach(payload -> dispatch(wrapper, payload));
         }
+    }
 
-        return found;
+    /**
+     * Removes a subscription that could not be created from the indexes, along with any aggregated
+     * subscriptions that share it and their entry in the aggregation index, so that they are
+     * created anew when next requested. Existing references remain valid until released.
+     *
+     * @param wrapper The subscription wrapper.
+     */
+    private void failed(BaseSubscriptionWrapper<?> wrapper) {
+        subscriptionsByParams.remove(wrapper.getParamIndex(), wrapper);
+        subscriptionsById.remove(wrapper.getSubscriptionId(), wrapper);
+        Set<AggregatedSubscriptionWrapper> aggregated = aggregatedById.remove(wrapper.getSubscriptionId());
+
+        if (aggregated != null) {
+            aggregated.forEach(subscription -> subscriptionsByParams.remove(subscription.getParamIndex(), subscription));
+        }
+    }
+
+    /**
+     * Delivers a notification received on a shared FHIR subscription to each aggregated
+     * subscription whose criteria the resource satisfies. The payload is decoded once for all. If
+     * there is no resource to match (e.g., a deletion without a payload), the notification is
+     * delivered to all of them. The notification is also delivered under the shared
+     * subscription's own event name if it has direct subscribers (those that subscribed to the
+     * bare resource type), which are counted separately from the references held on behalf of
+     * aggregated subscriptions.
+     *
+     * @param wrapper    The wrapper for the shared FHIR subscription.
+     * @param aggregated The aggregated subscriptions that share it.
+     * @param payload    The notification payload.
+     */
+    private void fanOut(
+            BaseSubscriptionWrapper<?> wrapper,
+            Set<AggregatedSubscriptionWrapper> aggregated,
+            SubscriptionPayload payload) {
+        IBaseResource resource;
+
+        try {
+            resource = payload.getResource();
+        } catch (Exception e) {
+            log.warn("Unable to match subscription notification; delivering it to all aggregated subscribers.", e);
+            resource = null;
+        }
+
+        for (AggregatedSubscriptionWrapper subscription : aggregated) {
+            if (resource == null || subscription.matches(resource)) {
+                coalescer.submit(subscription.getEventName(), payload);
+            }
+        }
+
+        if (wrapper.hasDirectSubscribers()) {
+            coalescer.submit(wrapper.getEventName(), payload);
+        }
+    }
+
+    /**
+     * Delivers a batch of notifications to all event subscribers.
+     *
+     * @param eventName The event name associated with the subscription.
+     * @param batch     The batch of notifications.
+     */
+    private void publish(
+            String eventName,
+            SubscriptionBatch batch) {
+        Message message = new EventMessage(eventName, batch);
+        producer.publish(EventUtil.getChannelName(eventName), message);
     }
 
     /**
      * Returns a FHIR subscription wrapper from the list of active subscriptions, creating one if it
-     * does not exist.
+     * does not exist. A new wrapper is indexed while still pending, and only then is its
+     * subscription resource created (or, in polling mode, its query registered), so that no
+     * request to the server is made while the index is being updated. If another thread indexes a
+     * wrapper for the same criteria first, the new wrapper is discarded unused. If the wrapper found
+     * has just been released by another thread, it is discarded and the lookup repeated.
      *
      * @param criteria    The subscription criteria.
      * @param payloadType The expected type of the payload.
@@ -228,30 +693,199 @@ public class ResourceSubscriptionService implements BeanPostProcessor {
             String criteria,
             PayloadType payloadType,
             AbstractFhirDataSource<?, ?> dataSource) {
-        String paramIndex = payloadType + "|" + criteria;
-        BaseSubscriptionWrapper<?> wrapper = subscriptionsByParams.get(paramIndex);
+        String paramIndex = getParamIndex(criteria, payloadType, dataSource);
 
-        if (wrapper == null) {
-            BaseSubscriptionFactory factory = factories.get(dataSource.getId());
-            Assert.notNull(factory, () -> "No subscription factory is registered to data source " + dataSource.getId());
-            wrapper = factory.create(paramIndex, callbackUrl, payloadType, criteria, subscriptionTag);
-            subscriptionsByParams.put(paramIndex, wrapper);
-            subscriptionsById.put(wrapper.getSubscriptionId(), wrapper);
+        while (true) {
+            BaseSubscriptionWrapper<?> wrapper = subscriptionsByParams.get(paramIndex);
+
+            if (wrapper == null) {
+                BaseSubscriptionWrapper<?> newWrapper = newSubscription(paramIndex, criteria, payloadType, dataSource);
+                wrapper = subscriptionsByParams.putIfAbsent(paramIndex, newWrapper);
+
+                if (wrapper == null) {
+                    wrapper = newWrapper;
+                    start(newWrapper);
+                }
+            }
+
+            if (wrapper.incRefCount() > 0) {
+                return wrapper;
+            }
+
+            subscriptionsByParams.remove(paramIndex, wrapper);
         }
+    }
 
-        wrapper.incRefCount();
-        return wrapper;
+    /**
+     * Creates a pending wrapper for a FHIR subscription or, in polling mode, for a polled query.
+     * No request is made to the server.
+     *
+     * @param paramIndex  The parameter index.
+     * @param criteria    The subscription criteria.
+     * @param payloadType The expected type of the payload.
+     * @param dataSource  The data source.
+     * @return The new wrapper.
+     */
+    private BaseSubscriptionWrapper<?> newSubscription(
+            String paramIndex,
+            String criteria,
+            PayloadType payloadType,
+            AbstractFhirDataSource<?, ?> dataSource) {
+        if (disabled) {
+            return new PolledSubscriptionWrapper(criteria, paramIndex, dataSource);
+        }
+
+        BaseSubscriptionFactory factory = factories.get(dataSource.getId());
+        Assert.notNull(factory, () -> "No subscription factory is registered to data source " + dataSource.getId());
+        return factory.create(paramIndex, callbackUrl, payloadType, criteria, subscriptionTag);
     }
 
     /**
-     * Revokes a FHIR subscription.
+     * Starts a newly indexed wrapper: registers a polled query with the poller, or submits a
+     * pending subscription for creation of its resource. If creation fails at once, the wrapper is
+     * removed from the indexes and the error is rethrown.
+     *
+     * @param wrapper The new wrapper.
+     */
+    private void start(BaseSubscriptionWrapper<?> wrapper) {
+        if (wrapper instanceof PolledSubscriptionWrapper) {
+            poller.register((PolledSubscriptionWrapper) wrapper);
+            return;
+        }
+
+        subscriptionsById.put(wrapper.getSubscriptionId(), wrapper);
+
+        try {
+            initializer.submit(wrapper);
+        } catch (RuntimeException e) {
+            wrapper.fail();
+            failed(wrapper);
+            throw e;
+        }
+    }
+
+    /**
+     * Returns an aggregated subscription wrapper from the list of active subscriptions, creating
+     * one if it does not exist. A new wrapper holds a reference to the shared FHIR subscription for
+     * its resource type, which is created as necessary with a JSON payload so that notifications
+     * can be matched. The shared subscription is obtained before the new wrapper is indexed, so
+     * that the index is never updated from within its own update. If another thread indexes a
+     * wrapper for the same criteria first, that reference is released and the lookup repeated.
+     *
+     * @param criteria    The parsed subscription criteria.
+     * @param payloadType The expected type of the payload.
+     * @param dataSource  The data source.
+     * @return The subscription wrapper (never null).
+     */
+    private BaseSubscriptionWrapper<?> getOrCreateAggregated(
+            SubscriptionCriteria criteria,
+            PayloadType payloadType,
+            AbstractFhirDataSource<?, ?> dataSource) {
+        String paramIndex = getParamIndex(criteria.getCriteria(), payloadType, dataSource);
+
+        while (true) {
+            BaseSubscriptionWrapper<?> wrapper = subscriptionsByParams.get(paramIndex);
+
+            if (wrapper == null) {
+                BaseSubscriptionWrapper<?> shared = getOrCreateSubscription(criteria.getResourceType(), PayloadType.JSON, dataSource);
+                AggregatedSubscriptionWrapper newWrapper = new AggregatedSubscriptionWrapper(criteria, shared, paramIndex, dataSource);
+                aggregatedById.compute(shared.getSubscriptionId(), (id, aggregated) -> {
+                    aggregated = aggregated == null ? ConcurrentHashMap.newKeySet() : aggregated;
+                    aggregated.add(newWrapper);
+                    return aggregated;
+                });
+                wrapper = subscriptionsByParams.putIfAbsent(paramIndex, newWrapper);
+
+                if (wrapper == null) {
+                    wrapper = newWrapper;
+                } else {
+                    releaseAggregated(newWrapper);
+                }
+            }
+
+            if (wrapper.incRefCount() > 0) {
+                return wrapper;
+            }
+
+            subscriptionsByParams.remove(paramIndex, wrapper);
+        }
+    }
+
+    private String getParamIndex(
+            String criteria,
+            PayloadType payloadType,
+            AbstractFhirDataSource<?, ?> dataSource) {
+        return dataSource.getId() + "|" + payloadType + "|" + criteria;
+    }
+
+    /**
+     * Revokes an idle subscription, after the idle timeout if a registry file is configured, or at
+     * once otherwise. A subscription that is referenced again in the meantime is not revoked.
+     *
+     * @param wrapper The subscription wrapper.
+     */
+    private void scheduleRevoke(BaseSubscriptionWrapper<?> wrapper) {
+        if (registry == null || idleTimeout == 0) {
+            revokeIfIdle(wrapper);
+        } else {
+            getScheduler().schedule(() -> revokeIfIdle(wrapper), idleTimeout, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void revokeIfIdle(BaseSubscriptionWrapper<?> wrapper) {
+        if (wrapper.release()) {
+            try {
+                deleteSubscription(wrapper);
+            } catch (Exception e) {
+                log.error("Error revoking subscription " + wrapper.getSubscriptionId(), e);
+            }
+        }
+    }
+
+    private synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "fhir-subscription-idle");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        return scheduler;
+    }
+
+    /**
+     * Revokes a FHIR subscription. For an aggregated subscription, this releases its reference to
+     * the shared FHIR subscription instead.
      *
      * @param wrapper The subscription wrapper.
      */
     private void deleteSubscription(BaseSubscriptionWrapper<?> wrapper) {
-        subscriptionsByParams.remove(wrapper.getParamIndex());
-        subscriptionsById.remove(wrapper.getSubscriptionId());
-        wrapper.delete();
+        subscriptionsByParams.remove(wrapper.getParamIndex(), wrapper);
+
+        if (wrapper instanceof AggregatedSubscriptionWrapper) {
+            releaseAggregated((AggregatedSubscriptionWrapper) wrapper);
+        } else if (wrapper instanceof PolledSubscriptionWrapper) {
+            poller.unregister((PolledSubscriptionWrapper) wrapper);
+        } else {
+            subscriptionsById.remove(wrapper.getSubscriptionId(), wrapper);
+            wrapper.delete();
+        }
+    }
+
+    /**
+     * Removes an aggregated subscription from the fan-out list of its shared FHIR subscription and
+     * releases its reference to the latter.
+     *
+     * @param wrapper The aggregated subscription wrapper.
+     */
+    private void releaseAggregated(AggregatedSubscriptionWrapper wrapper) {
+        BaseSubscriptionWrapper<?> shared = wrapper.getAggregate();
+        aggregatedById.computeIfPresent(shared.getSubscriptionId(), (id, aggregated) -> {
+            aggregated.remove(wrapper);
+            return aggregated.isEmpty() ? null : aggregated;
+        });
+        releaseReference(shared);
     }
 
     @Override
@@ -261,6 +895,18 @@ public class ResourceSubscriptionService implements BeanPostProcessor {
         if (bean instanceof BaseSubscriptionFactory) {
             BaseSubscriptionFactory factory = (BaseSubscriptionFactory) bean;
             factories.put(factory.getDataSourceId(), factory);
+
+            if (!disabled) {
+                if (registry == null) {
+                    deleteAll(factory);
+                } else {
+                    try {
+                        reconcile(factory);
+                    } catch (Exception e) {
+                        log.error("Error reconciling subscriptions for data source " + factory.getDataSourceId(), e);
+                    }
+                }
+            }
         }
 
         return bean;
@@ -85,7 +85,7 @@ public class ResourceSubscriptionServlet extends HttpServlet {
         if (!rejected) {
             try {
                 String id = req.getPathInfo().substring(1);
-                rejected = !service.notifySubscribers(id, IOUtils.toString(req.getReader()));
+                rejected = !service.notifySubscribers(id, IOUtils.toByteArray(req.getInputStream()), req.getContentType());
             } catch (Exception e) {
                 rejected = true;
                 disableService("notifying subscribers of a resource subscription event", e);
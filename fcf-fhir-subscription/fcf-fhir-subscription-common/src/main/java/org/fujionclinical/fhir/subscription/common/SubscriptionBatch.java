@@ -0,0 +1,97 @@
+/*
+ * #%L
+ * Fujion Clinical Framework
+ * %%
+ * Copyright (C) 2020 fujionclinical.org
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.fujionclinical.org/licensing/disclaimer
+ *
+ * #L%
+ */
+package org.fujionclinical.fhir.subscription.common;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One or more subscription notifications for the same subscription, delivered to subscribers as a
+ * single event. Notifications received in quick succession may be coalesced into a single batch.
+ */
+public class SubscriptionBatch implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final List<SubscriptionPayload> payloads;
+
+    /**
+     * Creates a batch.
+     *
+     * @param payloads The notification payloads, in order of receipt.
+     */
+    public SubscriptionBatch(List<SubscriptionPayload> payloads) {
+        this.payloads = Collections.unmodifiableList(new ArrayList<>(payloads));
+    }
+
+    /**
+     * Returns the number of notifications in the batch.
+     *
+     * @return The number of notifications.
+     */
+    public int size() {
+        return payloads.size();
+    }
+
+    /**
+     * Returns the notification payloads, in order of receipt.
+     *
+     * @return The notification payloads.
+     */
+    public List<SubscriptionPayload> getPayloads() {
+        return payloads;
+    }
+
+    /**
+     * Returns the changed resources, decoding each payload as necessary. Notifications without a
+     * payload are omitted.
+     *
+     * @return The changed resources, in order of receipt.
+     */
+    public List<IBaseResource> getResources() {
+        List<IBaseResource> resources = new ArrayList<>(payloads.size());
+
+        for (SubscriptionPayload payload : payloads) {
+            IBaseResource resource = payload.getResource();
+
+            if (resource != null) {
+                resources.add(resource);
+            }
+        }
+
+        return resources;
+    }
+
+    @Override
+    public String toString() {
+        return "SubscriptionBatch[" + payloads.size() + "]";
+    }
+
+}
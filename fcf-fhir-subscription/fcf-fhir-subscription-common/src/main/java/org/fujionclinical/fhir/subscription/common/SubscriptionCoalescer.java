@@ -0,0 +1,211 @@
+/*
+ * #%L
+ * Fujion Clinical Framework
+ * %%
+ * Copyright (C) 2020 fujionclinical.org
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.fujionclinical.org/licensing/disclaimer
+ *
+ * #L%
+ */
+package org.fujionclinical.fhir.subscription.common;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Coalesces subscription notifications before they are published. Notifications for the same
+ * event that arrive within a time window of the first are merged into a single batch, which is
+ * published when the window closes or when the batch reaches its maximum size, whichever occurs
+ * first. A batch published early because it is full cancels its timer, and a timer only ever
+ * publishes the batch for which it was scheduled, so that a batch started after an early flush
+ * is given its full window. A window of zero disables coalescing, so that each notification is
+ * published at once, as does shutting the coalescer down.
+ */
+public class SubscriptionCoalescer {
+
+    private static final Log log = LogFactory.getLog(SubscriptionCoalescer.class);
+
+    private final long window;
+
+    private final int maxBatchSize;
+
+    private final BiConsumer<String, SubscriptionBatch> publisher;
+
+    private final Map<String, Batch> pending = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService scheduler;
+
+    private volatile boolean shutdown;
+
+    /**
+     * @param window       The coalescing window in milliseconds (0 to disable coalescing).
+     * @param maxBatchSize The maximum number of notifications in a batch (0 for no limit).
+     * @param publisher    Publishes a batch under the specified event name.
+     */
+    public SubscriptionCoalescer(
+            long window,
+            int maxBatchSize,
+            BiConsumer<String, SubscriptionBatch> publisher) {
+        this.window = Math.max(0, window);
+        this.maxBatchSize = maxBatchSize <= 0 ? Integer.MAX_VALUE : maxBatchSize;
+        this.publisher = publisher;
+        this.scheduler = this.window == 0 ? null : Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "fhir-subscription-coalescer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Submits a notification for publication.
+     *
+     * @param eventName The event name associated with the subscription.
+     * @param payload   The notification payload.
+     */
+    public void submit(
+            String eventName,
+            SubscriptionPayload payload) {
+        if (scheduler == null || shutdown) {
+            publisher.accept(eventName, new SubscriptionBatch(List.of(payload)));
+            return;
+        }
+
+        Batch[] started = {null};
+        Batch[] full = {null};
+
+        pending.compute(eventName, (key, batch) -> {
+            if (batch == null) {
+                batch = started[0] = new Batch();
+            }
+
+            batch.payloads.add(payload);
+
+            if (batch.payloads.size() >= maxBatchSize) {
+                full[0] = batch;
+                return null;
+            }
+
+            return batch;
+        });
+
+        if (full[0] != null) {
+            full[0].cancel();
+            publish(eventName, full[0]);
+        } else if (started[0] != null) {
+            Batch batch = started[0];
+
+            try {
+                batch.timer = scheduler.schedule(() -> flush(eventName, batch), window, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Shut down after the batch was started.
+                flush(eventName, batch);
+            }
+        }
+    }
+
+    /**
+     * Publishes all pending batches and stops the timer thread. Notifications submitted afterwards
+     * are published at once.
+     */
+    public void shutdown() {
+        shutdown = true;
+
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+
+        flush();
+    }
+
+    /**
+     * Publishes all pending batches at once.
+     */
+    public void flush() {
+        pending.keySet().forEach(this::flush);
+    }
+
+    /**
+     * Publishes the pending batch for an event, if any.
+     *
+     * @param eventName The event name.
+     */
+    private void flush(String eventName) {
+        Batch batch = pending.remove(eventName);
+
+        if (batch != null) {
+            batch.cancel();
+            publish(eventName, batch);
+        }
+    }
+
+    /**
+     * Publishes a batch when its window closes, unless it has already been published.
+     *
+     * @param eventName The event name.
+     * @param batch     The batch for which the timer was scheduled.
+     */
+    private void flush(
+            String eventName,
+            Batch batch) {
+        if (pending.remove(eventName, batch)) {
+            publish(eventName, batch);
+        }
+    }
+
+    private void publish(
+            String eventName,
+            Batch batch) {
+        try {
+            publisher.accept(eventName, new SubscriptionBatch(batch.payloads));
+        } catch (Exception e) {
+            log.error("Error publishing subscription notifications for " + eventName, e);
+        }
+    }
+
+    /**
+     * The notifications pending for an event, and the timer that will publish them.
+     */
+    private static class Batch {
+
+        private final List<SubscriptionPayload> payloads = new ArrayList<>();
+
+        private volatile ScheduledFuture<?> timer;
+
+        private void cancel() {
+            ScheduledFuture<?> timer = this.timer;
+
+            if (timer != null) {
+                timer.cancel(false);
+            }
+        }
+
+    }
+
+}
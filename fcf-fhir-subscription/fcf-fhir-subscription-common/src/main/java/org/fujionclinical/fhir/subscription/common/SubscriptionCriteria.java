@@ -0,0 +1,367 @@
+/*
+ * #%L
+ * Fujion Clinical Framework
+ * %%
+ * Copyright (C) 2020 fujionclinical.org
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.fujionclinical.org/licensing/disclaimer
+ *
+ * #L%
+ */
+package org.fujionclinical.fhir.subscription.common;
+
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementCompositeDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementDefinition;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.rest.api.RestSearchParameterTypeEnum;
+import ca.uhn.fhir.util.FhirTerser;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseReference;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Subscription criteria that can be evaluated in memory against a resource. Only simple criteria
+ * are supported: a resource type followed by one or more token or reference search parameters
+ * without modifiers or chains (e.g., <code>Observation?subject=Patient/123&amp;code=1234-5</code>).
+ * Multiple parameters must all match; comma-separated values within a parameter are alternatives.
+ */
+public class SubscriptionCriteria {
+
+    private static final Pattern TYPE = Pattern.compile("^[A-Z][A-Za-z]+$");
+
+    private static final Pattern PARAM_NAME = Pattern.compile("^[a-z][a-z0-9-]*$");
+
+    private static final Pattern PATH = Pattern.compile("^([A-Za-z]+(?:\\.[A-Za-z]+)+)(?:\\.where\\(resolve\\(\\) is ([A-Za-z]+)\\))?$");
+
+    /**
+     * A path to the elements searched by a parameter, with an optional restriction on the type of
+     * resource referenced.
+     */
+    private static class ParamPath {
+
+        private final String path;
+
+        private final String targetType;
+
+        private ParamPath(
+                String path,
+                String targetType) {
+            this.path = path;
+            this.targetType = targetType;
+        }
+
+    }
+
+    /**
+     * A search parameter and the values that satisfy it.
+     */
+    private static class Param {
+
+        private final boolean reference;
+
+        private final List<ParamPath> paths;
+
+        private final List<String[]> values;
+
+        private Param(
+                boolean reference,
+                List<ParamPath> paths,
+                List<String[]> values) {
+            this.reference = reference;
+            this.paths = paths;
+            this.values = values;
+        }
+
+    }
+
+    private final String criteria;
+
+    private final String resourceType;
+
+    private final List<Param> params;
+
+    private final FhirContext fhirContext;
+
+    private final FhirTerser terser;
+
+    /**
+     * Parses subscription criteria.
+     *
+     * @param criteria    The subscription criteria.
+     * @param fhirContext The FHIR context.
+     * @return The parsed criteria, or null if the criteria cannot be evaluated in memory.
+     */
+    public static SubscriptionCriteria parse(
+            String criteria,
+            FhirContext fhirContext) {
+        String[] pcs = StringUtils.split(criteria, "?", 2);
+        String resourceType = pcs.length == 0 ? null : pcs[0].trim();
+
+        if (pcs.length != 2 || !TYPE.matcher(resourceType).matches()) {
+            return null;
+        }
+
+        RuntimeResourceDefinition resourceDefinition;
+
+        try {
+            resourceDefinition = fhirContext.getResourceDefinition(resourceType);
+        } catch (Exception e) {
+            return null;
+        }
+
+        List<Param> params = new ArrayList<>();
+
+        for (String pair : StringUtils.split(pcs[1], "&")) {
+            Param param = parseParam(resourceDefinition, pair);
+
+            if (param == null) {
+                return null;
+            }
+
+            params.add(param);
+        }
+
+        return params.isEmpty() ? null : new SubscriptionCriteria(criteria, resourceType, params, fhirContext);
+    }
+
+    private static Param parseParam(
+            RuntimeResourceDefinition resourceDefinition,
+            String pair) {
+        String[] pcs = pair.split("=", 2);
+        String name = pcs[0].trim();
+
+        if (pcs.length != 2 || !PARAM_NAME.matcher(name).matches()) {
+            return null;
+        }
+
+        RuntimeSearchParam searchParam = resourceDefinition.getSearchParam(name);
+        RestSearchParameterTypeEnum paramType = searchParam == null ? null : searchParam.getParamType();
+
+        if (paramType != RestSearchParameterTypeEnum.TOKEN && paramType != RestSearchParameterTypeEnum.REFERENCE) {
+            return null;
+        }
+
+        List<ParamPath> paths = new ArrayList<>();
+
+        for (String path : StringUtils.split(StringUtils.defaultString(searchParam.getPath()), "|")) {
+            Matcher matcher = PATH.matcher(path.trim());
+
+            if (!matcher.matches() || !matcher.group(1).startsWith(resourceDefinition.getName() + ".")) {
+                return null;
+            }
+
+            paths.add(new ParamPath(matcher.group(1), matcher.group(2)));
+        }
+
+        boolean reference = paramType == RestSearchParameterTypeEnum.REFERENCE;
+        List<String[]> values = new ArrayList<>();
+
+        for (String value : URLDecoder.decode(pcs[1], StandardCharsets.UTF_8).split(",")) {
+            String[] parsed = reference ? parseReference(value.trim()) : parseToken(value.trim());
+
+            if (parsed == null) {
+                return null;
+            }
+
+            values.add(parsed);
+        }
+
+        return paths.isEmpty() ? null : new Param(reference, paths, values);
+    }
+
+    /**
+     * Parses a reference value into its resource type (may be null) and id.
+     */
+    private static String[] parseReference(String value) {
+        String[] pcs = StringUtils.split(value, "/");
+
+        if (pcs.length == 0 || value.contains("?")) {
+            return null;
+        }
+
+        String id = pcs[pcs.length - 1];
+        String type = pcs.length > 1 ? pcs[pcs.length - 2] : null;
+        return new String[] {type, id};
+    }
+
+    /**
+     * Parses a token value into its system (null if unspecified, empty if explicitly absent) and
+     * code.
+     */
+    private static String[] parseToken(String value) {
+        int i = value.indexOf('|');
+        String system = i < 0 ? null : value.substring(0, i);
+        String code = i < 0 ? value : value.substring(i + 1);
+        return code.isEmpty() ? null : new String[] {system, code};
+    }
+
+    private SubscriptionCriteria(
+            String criteria,
+            String resourceType,
+            List<Param> params,
+            FhirContext fhirContext) {
+        this.criteria = criteria;
+        this.resourceType = resourceType;
+        this.params = params;
+        this.fhirContext = fhirContext;
+        this.terser = fhirContext.newTerser();
+    }
+
+    /**
+     * Returns the original criteria.
+     *
+     * @return The original criteria.
+     */
+    public String getCriteria() {
+        return criteria;
+    }
+
+    /**
+     * Returns the resource type to which the criteria apply.
+     *
+     * @return The resource type.
+     */
+    public String getResourceType() {
+        return resourceType;
+    }
+
+    /**
+     * Returns true if a resource satisfies the criteria.
+     *
+     * @param resource The resource.
+     * @return True if the resource satisfies the criteria.
+     */
+    public boolean matches(IBaseResource resource) {
+        if (resource == null || !resourceType.equals(fhirContext.getResourceType(resource))) {
+            return false;
+        }
+
+        for (Param param : params) {
+            if (!matches(resource, param)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private boolean matches(
+            IBaseResource resource,
+            Param param) {
+        for (ParamPath path : param.paths) {
+            for (IBase element : terser.getValues(resource, path.path)) {
+                for (String[] value : param.values) {
+                    if (param.reference ? matchesReference(element, path.targetType, value) : matchesToken(element, value)) {
+                        return true;
+                    }
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private boolean matchesReference(
+            IBase element,
+            String targetType,
+            String[] value) {
+        if (!(element instanceof IBaseReference)) {
+            return false;
+        }
+
+        IIdType id = ((IBaseReference) element).getReferenceElement();
+        String type = id == null ? null : id.getResourceType();
+
+        if (id == null || !value[1].equals(id.getIdPart())) {
+            return false;
+        }
+
+        return (targetType == null || targetType.equals(type)) && (value[0] == null || value[0].equals(type));
+    }
+
+    private boolean matchesToken(
+            IBase element,
+            String[] value) {
+        if (element instanceof IPrimitiveType) {
+            return value[0] == null && value[1].equals(((IPrimitiveType<?>) element).getValueAsString());
+        }
+
+        switch (element.fhirType()) {
+            case "CodeableConcept":
+                for (IBase coding : getChildValues(element, "coding")) {
+                    if (matchesToken(coding, value)) {
+                        return true;
+                    }
+                }
+
+                return false;
+
+            case "Coding":
+                return matchesToken(getChildString(element, "system"), getChildString(element, "code"), value);
+
+            case "Identifier":
+                return matchesToken(getChildString(element, "system"), getChildString(element, "value"), value);
+
+            default:
+                return false;
+        }
+    }
+
+    private boolean matchesToken(
+            String system,
+            String code,
+            String[] value) {
+        if (!value[1].equals(code)) {
+            return false;
+        }
+
+        return value[0] == null || value[0].equals(StringUtils.defaultString(system));
+    }
+
+    private List<IBase> getChildValues(
+            IBase element,
+            String name) {
+        BaseRuntimeElementDefinition<?> definition = fhirContext.getElementDefinition(element.getClass());
+        BaseRuntimeChildDefinition child = definition instanceof BaseRuntimeElementCompositeDefinition
+                ? ((BaseRuntimeElementCompositeDefinition<?>) definition).getChildByName(name) : null;
+        return child == null ? Collections.emptyList() : child.getAccessor().getValues(element);
+    }
+
+    private String getChildString(
+            IBase element,
+            String name) {
+        List<IBase> values = getChildValues(element, name);
+        IBase value = values.isEmpty() ? null : values.get(0);
+        return value instanceof IPrimitiveType ? ((IPrimitiveType<?>) value).getValueAsString() : null;
+    }
+
+}
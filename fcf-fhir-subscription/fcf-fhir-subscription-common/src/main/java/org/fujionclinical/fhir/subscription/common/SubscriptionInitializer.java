@@ -0,0 +1,206 @@
+/*
+ * #%L
+ * Fujion Clinical Framework
+ * %%
+ * Copyright (C) 2020 fujionclinical.org
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.fujionclinical.org/licensing/disclaimer
+ *
+ * #L%
+ */
+package org.fujionclinical.fhir.subscription.common;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.util.BundleBuilder;
+import ca.uhn.fhir.util.FhirTerser;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Creates subscription resources on the server in the background. Wrappers submitted for the same
+ * data source within a time window of the first are created with a single batch request when the
+ * window closes. Each wrapper becomes active or failed according to its entry in the batch
+ * response. If the batch request itself fails, each subscription is created individually. A
+ * window of zero disables batching, so that each subscription is created at once, in the
+ * submitting thread.
+ */
+public class SubscriptionInitializer {
+
+    private static final Log log = LogFactory.getLog(SubscriptionInitializer.class);
+
+    private final long window;
+
+    private final BiConsumer<BaseSubscriptionWrapper<?>, List<SubscriptionPayload>> activated;
+
+    private final Consumer<BaseSubscriptionWrapper<?>> failed;
+
+    private final Map<String, List<BaseSubscriptionWrapper<?>>> pending = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * @param window    The batching window in milliseconds (0 to disable batching).
+     * @param activated Invoked when a subscription becomes active, with the notifications buffered
+     *                  while it was pending (null if the wrapper was deleted in the meantime).
+     * @param failed    Invoked when a subscription could not be created.
+     */
+    public SubscriptionInitializer(
+            long window,
+            BiConsumer<BaseSubscriptionWrapper<?>, List<SubscriptionPayload>> activated,
+            Consumer<BaseSubscriptionWrapper<?>> failed) {
+        this.window = Math.max(0, window);
+        this.activated = activated;
+        this.failed = failed;
+        this.scheduler = this.window == 0 ? null : Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "fhir-subscription-initializer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Submits a pending wrapper for creation of its subscription resource. If batching is
+     * disabled, the resource is created before returning, and any error is thrown to the caller.
+     *
+     * @param wrapper The pending wrapper.
+     */
+    public void submit(BaseSubscriptionWrapper<?> wrapper) {
+        if (scheduler == null) {
+            activated.accept(wrapper, wrapper.create());
+            return;
+        }
+
+        String dataSourceId = wrapper.getDataSource().getId();
+        boolean[] first = {false};
+
+        pending.compute(dataSourceId, (key, wrappers) -> {
+            first[0] = wrappers == null;
+            wrappers = first[0] ? new ArrayList<>() : wrappers;
+            wrappers.add(wrapper);
+            return wrappers;
+        });
+
+        if (first[0]) {
+            scheduler.schedule(() -> flush(dataSourceId), window, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops the background thread. Subscriptions not yet created remain pending.
+     */
+    public void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Creates the subscription resources pending for a data source.
+     *
+     * @param dataSourceId The data source id.
+     */
+    private void flush(String dataSourceId) {
+        List<BaseSubscriptionWrapper<?>> wrappers = pending.remove(dataSourceId);
+
+        if (wrappers == null) {
+            return;
+        }
+
+        // Skip any that were deleted while pending.
+        wrappers.removeIf(wrapper -> wrapper.getState() != BaseSubscriptionWrapper.State.PENDING);
+
+        if (wrappers.isEmpty()) {
+            return;
+        }
+
+        if (wrappers.size() == 1) {
+            createOne(wrappers.get(0));
+            return;
+        }
+
+        try {
+            createBatch(wrappers);
+        } catch (Exception e) {
+            log.warn("Error creating subscriptions in batch; creating them individually.", e);
+            wrappers.forEach(this::createOne);
+        }
+    }
+
+    private void createOne(BaseSubscriptionWrapper<?> wrapper) {
+        try {
+            activated.accept(wrapper, wrapper.create());
+        } catch (Exception e) {
+            log.error("Error creating subscription " + wrapper.getSubscriptionId(), e);
+            wrapper.fail();
+            failed.accept(wrapper);
+        }
+    }
+
+    /**
+     * Creates subscription resources on the same data source with a single batch request.
+     *
+     * @param wrappers The pending wrappers.
+     */
+    private void createBatch(List<BaseSubscriptionWrapper<?>> wrappers) {
+        IGenericClient client = wrappers.get(0).getDataSource().getClient();
+        FhirContext fhirContext = client.getFhirContext();
+        FhirTerser terser = fhirContext.newTerser();
+        BundleBuilder builder = new BundleBuilder(fhirContext);
+
+        for (BaseSubscriptionWrapper<?> wrapper : wrappers) {
+            builder.addTransactionCreateEntry(wrapper.getSubscription());
+        }
+
+        builder.setBundleField("type", "batch");
+        IBaseBundle response = client.transaction().withBundle(builder.getBundle()).execute();
+        List<IBase> entries = terser.getValues(response, "Bundle.entry");
+
+        for (int i = 0; i < wrappers.size(); i++) {
+            BaseSubscriptionWrapper<?> wrapper = wrappers.get(i);
+            IBase entry = i < entries.size() ? entries.get(i) : null;
+            String status = entry == null ? null : terser.getSinglePrimitiveValueOrNull(entry, "response.status");
+            String location = entry == null ? null : terser.getSinglePrimitiveValueOrNull(entry, "response.location");
+
+            if (status != null && status.startsWith("2") && location != null) {
+                try {
+                    activated.accept(wrapper, wrapper.activate(location));
+                } catch (Exception e) {
+                    log.error("Error activating subscription " + wrapper.getSubscriptionId(), e);
+                }
+            } else {
+                log.error("Error creating subscription " + wrapper.getSubscriptionId() + ": " + status);
+                wrapper.fail();
+                failed.accept(wrapper);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,78 @@
+/*
+ * #%L
+ * Fujion Clinical Framework
+ * %%
+ * Copyright (C) 2020 fujionclinical.org
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.fujionclinical.org/licensing/disclaimer
+ *
+ * #L%
+ */
+package org.fujionclinical.fhir.subscription.common;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Pools FHIR parsers by FHIR context and format. Parsers are not thread-safe, so each is used by
+ * one thread at a time and returned to the pool afterwards. The pool for each context and format
+ * grows to the maximum number of concurrent parses.
+ */
+public final class SubscriptionParserPool {
+
+    private static final Map<FhirContext, Queue<IParser>> jsonParsers = new ConcurrentHashMap<>();
+
+    private static final Map<FhirContext, Queue<IParser>> xmlParsers = new ConcurrentHashMap<>();
+
+    /**
+     * Parses a resource.
+     *
+     * @param fhirContext The FHIR context.
+     * @param json        If true, the content is JSON; otherwise, XML.
+     * @param content     The serialized resource.
+     * @return The parsed resource.
+     */
+    public static IBaseResource parse(
+            FhirContext fhirContext,
+            boolean json,
+            String content) {
+        Queue<IParser> pool = (json ? jsonParsers : xmlParsers)
+                .computeIfAbsent(fhirContext, k -> new ConcurrentLinkedQueue<>());
+        IParser parser = pool.poll();
+
+        if (parser == null) {
+            parser = json ? fhirContext.newJsonParser() : fhirContext.newXmlParser();
+        }
+
+        try {
+            return parser.parseResource(content);
+        } finally {
+            pool.offer(parser);
+        }
+    }
+
+    private SubscriptionParserPool() {
+    }
+
+}
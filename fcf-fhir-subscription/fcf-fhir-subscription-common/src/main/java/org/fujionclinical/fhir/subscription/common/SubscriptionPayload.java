@@ -0,0 +1,155 @@
+/*
+ * #%L
+ * Fujion Clinical Framework
+ * %%
+ * Copyright (C) 2020 fujionclinical.org
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.fujionclinical.org/licensing/disclaimer
+ *
+ * #L%
+ */
+package org.fujionclinical.fhir.subscription.common;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The payload of a subscription notification. The raw content is retained and decoded into a
+ * resource only when first requested, so subscribers that do not examine the resource incur no
+ * parsing cost. The decoded resource is shared by all local subscribers that receive the same
+ * payload.
+ */
+public class SubscriptionPayload implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final byte[] content;
+
+    private final String contentType;
+
+    private final FhirVersionEnum fhirVersion;
+
+    private transient FhirContext fhirContext;
+
+    private transient volatile IBaseResource resource;
+
+    private transient volatile boolean decoded;
+
+    /**
+     * Creates a payload.
+     *
+     * @param content     The raw content (may be null or empty).
+     * @param contentType The MIME type of the content (may be null, in which case the format is
+     *                    inferred from the content).
+     * @param fhirContext The FHIR context for decoding the content.
+     */
+    public SubscriptionPayload(
+            byte[] content,
+            String contentType,
+            FhirContext fhirContext) {
+        this.content = content == null || content.length == 0 ? null : content;
+        this.contentType = contentType;
+        this.fhirContext = fhirContext;
+        this.fhirVersion = fhirContext.getVersion().getVersion();
+    }
+
+    /**
+     * Returns true if the payload has no content.
+     *
+     * @return True if the payload has no content.
+     */
+    public boolean isEmpty() {
+        return content == null;
+    }
+
+    /**
+     * Returns the raw content.
+     *
+     * @return The raw content (null if none).
+     */
+    public byte[] getContent() {
+        return content;
+    }
+
+    /**
+     * Returns the MIME type of the content as reported by the sender.
+     *
+     * @return The MIME type (may be null).
+     */
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * Returns the resource, decoding it on first access.
+     *
+     * @return The resource (null if the payload has no content).
+     */
+    public IBaseResource getResource() {
+        if (!decoded) {
+            synchronized (this) {
+                if (!decoded) {
+                    resource = decode();
+                    decoded = true;
+                }
+            }
+        }
+
+        return resource;
+    }
+
+    private IBaseResource decode() {
+        String text = content == null ? null : StringUtils.trimToNull(new String(content, StandardCharsets.UTF_8));
+
+        if (text == null) {
+            return null;
+        }
+
+        try {
+            return SubscriptionParserPool.parse(getFhirContext(), isJson(text), text);
+        } catch (Exception e) {
+            throw new RuntimeException("Unable to parse payload in subscription request", e);
+        }
+    }
+
+    private boolean isJson(String text) {
+        if (contentType != null && contentType.contains("json")) {
+            return true;
+        }
+
+        if (contentType != null && contentType.contains("xml")) {
+            return false;
+        }
+
+        return text.startsWith("{");
+    }
+
+    private FhirContext getFhirContext() {
+        if (fhirContext == null) {
+            fhirContext = FhirContext.forCached(fhirVersion);
+        }
+
+        return fhirContext;
+    }
+
+}
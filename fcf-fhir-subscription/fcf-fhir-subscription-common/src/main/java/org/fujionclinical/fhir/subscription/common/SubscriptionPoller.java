@@ -0,0 +1,401 @@
+/*
+ * #%L
+ * Fujion Clinical Framework
+ * %%
+ * Copyright (C) 2020 fujionclinical.org
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.fujionclinical.org/licensing/disclaimer
+ *
+ * #L%
+ */
+package org.fujionclinical.fhir.subscription.common;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.util.BundleUtil;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.coolmodel.mediator.fhir.common.AbstractFhirDataSource;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.nio.charset.StandardCharsets;
+import java.time.format.DateTimeFormatter;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Detects changes to resources by polling, for servers that do not support REST hook
+ * subscriptions or cannot reach the callback URL. Subscriptions are grouped by search (see
+ * {@link PolledSubscriptionWrapper}), and each group runs a single search for resources updated
+ * since the latest change it has seen (its watermark). Each resource returned is matched in memory
+ * against the criteria of the group's subscriptions and delivered under the event name of each
+ * one that matches. The polling interval of a group is reset to the minimum whenever changes are
+ * found, and doubles (up to the maximum) whenever they are not. Polling is disabled until a
+ * minimum interval is set.
+ * <p>
+ * The watermark is always a time recorded by the server, never by the local clock, so that clock
+ * skew between client and server cannot cause changes to be missed or replayed. When a group is
+ * created, an initial search for its most recently updated resource establishes the watermark.
+ * <p>
+ * Only creations and updates are detected. A deleted resource no longer satisfies the search, so
+ * deletions are not delivered in polling mode.
+ */
+public class SubscriptionPoller {
+
+    private static final Log log = LogFactory.getLog(SubscriptionPoller.class);
+
+    /**
+     * Number of resources to request per page.
+     */
+    private static final int PAGE_SIZE = 100;
+
+    /**
+     * Default maximum polling interval, in milliseconds.
+     */
+    public static final long DEFAULT_MAX_INTERVAL = 60000;
+
+    /**
+     * A group of subscriptions that share the same search.
+     */
+    private static class Group {
+
+        private final String query;
+
+        private final String resourceType;
+
+        private final AbstractFhirDataSource<?, ?> dataSource;
+
+        private final Set<PolledSubscriptionWrapper> members = ConcurrentHashMap.newKeySet();
+
+        /**
+         * The server time of the latest change seen (-1 until established by the initial search).
+         */
+        private long watermark = -1;
+
+        private Set<String> seen = new HashSet<>();
+
+        private long interval;
+
+        private Group(
+                PolledSubscriptionWrapper wrapper,
+                long interval) {
+            this.query = wrapper.getQuery();
+            this.resourceType = query.split("\\?", 2)[0];
+            this.dataSource = wrapper.getDataSource();
+            this.interval = interval;
+        }
+
+        private String getQuery(String params) {
+            String separator = !query.contains("?") ? "?" : query.endsWith("?") ? "" : "&";
+            return query + separator + params;
+        }
+
+    }
+
+    private final BiConsumer<String, SubscriptionPayload> sink;
+
+    private final Map<String, Group> groups = new ConcurrentHashMap<>();
+
+    private volatile long minInterval;
+
+    private volatile long maxInterval = DEFAULT_MAX_INTERVAL;
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * @param sink Accepts each notification along with its event name.
+     */
+    public SubscriptionPoller(BiConsumer<String, SubscriptionPayload> sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * Sets the minimum polling interval.
+     *
+     * @param minInterval The minimum polling interval in milliseconds (0 to disable polling).
+     */
+    public void setMinInterval(long minInterval) {
+        this.minInterval = Math.max(0, minInterval);
+    }
+
+    /**
+     * Sets the maximum polling interval.
+     *
+     * @param maxInterval The maximum polling interval in milliseconds.
+     */
+    public void setMaxInterval(long maxInterval) {
+        this.maxInterval = maxInterval;
+    }
+
+    /**
+     * Returns true if polling is enabled.
+     *
+     * @return True if polling is enabled.
+     */
+    public boolean isEnabled() {
+        return minInterval > 0;
+    }
+
+    /**
+     * Adds a subscription to its polling group, creating the group if necessary. A new group is
+     * polled at once to establish its watermark, and only changes made after that are detected.
+     *
+     * @param wrapper The subscription wrapper.
+     */
+    /*package*/ void register(PolledSubscriptionWrapper wrapper) {
+        String key = wrapper.getGroupKey();
+        Group[] created = {null};
+
+        groups.compute(key, (k, group) -> {
+            if (group == null) {
+                group = created[0] = new Group(wrapper, 0);
+            }
+
+            group.members.add(wrapper);
+            return group;
+        });
+
+        if (created[0] != null) {
+            schedule(key, created[0]);
+        }
+    }
+
+    /**
+     * Removes a subscription from its polling group. Polling for the group stops once it has no
+     * more subscriptions.
+     *
+     * @param wrapper The subscription wrapper.
+     */
+    /*package*/ void unregister(PolledSubscriptionWrapper wrapper) {
+        groups.computeIfPresent(wrapper.getGroupKey(), (key, group) -> {
+            group.members.remove(wrapper);
+            return group.members.isEmpty() ? null : group;
+        });
+    }
+
+    /**
+     * Stops polling.
+     */
+    public synchronized void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    private synchronized void schedule(
+            String key,
+            Group group) {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "fhir-subscription-poller");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        if (!scheduler.isShutdown()) {
+            scheduler.schedule(() -> poll(key, group), group.interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Polls for changes for a group, then schedules the next poll with an interval adapted to the
+     * outcome.
+     *
+     * @param key   The group key.
+     * @param group The group.
+     */
+    private void poll(
+            String key,
+            Group group) {
+        if (groups.get(key) != group) {
+            return;
+        }
+
+        boolean changed = false;
+
+        try {
+            if (group.watermark < 0) {
+                initWatermark(group);
+            } else {
+                changed = fetchChanges(group) > 0;
+            }
+        } catch (Exception e) {
+            log.warn("Error polling for changes to " + group.query + " on data source " + group.dataSource.getId(), e);
+        }
+
+        group.interval = changed ? minInterval : Math.max(minInterval, Math.min(group.interval * 2, maxInterval));
+
+        if (groups.get(key) == group) {
+            schedule(key, group);
+        }
+    }
+
+    /**
+     * Establishes the initial watermark for a group with a search for its most recently updated
+     * resource.
+     *
+     * @param group The group.
+     */
+    @SuppressWarnings("unchecked")
+    private void initWatermark(Group group) {
+        IGenericClient client = group.dataSource.getClient();
+        FhirContext fhirContext = client.getFhirContext();
+        Class<? extends IBaseBundle> bundleClass = (Class<? extends IBaseBundle>) fhirContext
+                .getResourceDefinition("Bundle").getImplementingClass();
+        IBaseBundle bundle = client.search()
+                .byUrl(group.getQuery("_sort=-_lastUpdated"))
+                .count(1)
+                .returnBundle(bundleClass)
+                .execute();
+        Set<String> seen = new HashSet<>();
+        group.watermark = getWatermark(fhirContext, bundle, group.resourceType, seen);
+        group.seen = seen;
+    }
+
+    /**
+     * Returns the initial watermark given the result of a search for the most recently updated
+     * resource, which is then treated as already delivered. If the search returned no resources,
+     * the time the server reports for the search result is used instead, or, if it reports none,
+     * any resource subsequently found is treated as a change.
+     *
+     * @param fhirContext  The FHIR context.
+     * @param bundle       The search result.
+     * @param resourceType The resource type searched.
+     * @param seen         Receives the versioned id of the resource treated as delivered, if any.
+     * @return The initial watermark.
+     */
+    /*package*/ static long getWatermark(
+            FhirContext fhirContext,
+            IBaseBundle bundle,
+            String resourceType,
+            Set<String> seen) {
+        for (IBaseResource resource : BundleUtil.toListOfResources(fhirContext, bundle)) {
+            Date lastUpdated = resource.getMeta().getLastUpdated();
+
+            if (resourceType.equals(resource.fhirType()) && lastUpdated != null) {
+                seen.add(resource.getIdElement().toUnqualified().getValue());
+                return lastUpdated.getTime();
+            }
+        }
+
+        Date lastUpdated = bundle.getMeta().getLastUpdated();
+        return lastUpdated == null ? 0 : lastUpdated.getTime();
+    }
+
+    /**
+     * Searches for resources updated since the group's watermark and delivers each to the
+     * subscriptions that match it. Resources updated at the watermark itself that were delivered
+     * by the previous poll are skipped, so that no change is delivered twice even if the server
+     * records update times with greater precision than the watermark.
+     *
+     * @param group The group.
+     * @return The number of changes found.
+     */
+    @SuppressWarnings("unchecked")
+    private int fetchChanges(Group group) {
+        IGenericClient client = group.dataSource.getClient();
+        FhirContext fhirContext = client.getFhirContext();
+        Class<? extends IBaseBundle> bundleClass = (Class<? extends IBaseBundle>) fhirContext
+                .getResourceDefinition("Bundle").getImplementingClass();
+        IParser parser = fhirContext.newJsonParser();
+        String since = DateTimeFormatter.ISO_INSTANT.format(new Date(group.watermark).toInstant());
+        IBaseBundle bundle = client.search()
+                .byUrl(group.getQuery("_lastUpdated=ge" + since + "&_sort=_lastUpdated"))
+                .count(PAGE_SIZE)
+                .returnBundle(bundleClass)
+                .execute();
+        long watermark = group.watermark;
+        Set<String> seen = new HashSet<>();
+        int count = 0;
+
+        while (bundle != null) {
+            for (IBaseResource resource : BundleUtil.toListOfResources(fhirContext, bundle)) {
+                String versionedId = resource.getIdElement().toUnqualified().getValue();
+                Date lastUpdated = resource.getMeta().getLastUpdated();
+                long updated = lastUpdated == null ? watermark : lastUpdated.getTime();
+
+                if (!group.resourceType.equals(resource.fhirType())
+                        || (updated == group.watermark && group.seen.contains(versionedId))) {
+                    continue;
+                }
+
+                if (updated > watermark) {
+                    watermark = updated;
+                    seen.clear();
+                }
+
+                if (updated == watermark) {
+                    seen.add(versionedId);
+                }
+
+                deliver(group, resource, parser);
+                count++;
+            }
+
+            bundle = BundleUtil.getLinkUrlOfType(fhirContext, bundle, "next") == null ? null
+                    : client.loadPage().next(bundle).execute();
+        }
+
+        if (watermark == group.watermark) {
+            group.seen.addAll(seen);
+        } else {
+            group.watermark = watermark;
+            group.seen = seen;
+        }
+
+        return count;
+    }
+
+    /**
+     * Delivers a changed resource to each subscription in the group that matches it. The resource
+     * is serialized at most once, and only if there is a match.
+     *
+     * @param group    The group.
+     * @param resource The changed resource.
+     * @param parser   The parser for serializing the resource.
+     */
+    private void deliver(
+            Group group,
+            IBaseResource resource,
+            IParser parser) {
+        SubscriptionPayload payload = null;
+
+        for (PolledSubscriptionWrapper wrapper : group.members) {
+            if (wrapper.matches(resource)) {
+                if (payload == null) {
+                    byte[] content = parser.encodeResourceToString(resource).getBytes(StandardCharsets.UTF_8);
+                    payload = new SubscriptionPayload(content, ResourceSubscriptionService.PayloadType.JSON.toString(),
+                            group.dataSource.getClient().getFhirContext());
+                }
+
+                sink.accept(wrapper.getEventName(), payload);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,165 @@
+/*
+ * #%L
+ * Fujion Clinical Framework
+ * %%
+ * Copyright (C) 2020 fujionclinical.org
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.fujionclinical.org/licensing/disclaimer
+ *
+ * #L%
+ */
+package org.fujionclinical.fhir.subscription.common;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A local store of the FHIR subscriptions created by the subscription service, so that they can be
+ * adopted rather than recreated after a restart. Each entry records the data source, the id of the
+ * subscription resource on the server, the unique subscription id (which forms part of the
+ * callback URL) and the key for the parameter-based index. The store is a text file with one
+ * tab-delimited entry per line, and is replaced atomically when saved.
+ */
+public class SubscriptionRegistry {
+
+    private static final Log log = LogFactory.getLog(SubscriptionRegistry.class);
+
+    /**
+     * A registered subscription.
+     */
+    public static class Entry {
+
+        private final String dataSourceId;
+
+        private final String resourceId;
+
+        private final String subscriptionId;
+
+        private final String paramIndex;
+
+        public Entry(
+                String dataSourceId,
+                String resourceId,
+                String subscriptionId,
+                String paramIndex) {
+            this.dataSourceId = dataSourceId;
+            this.resourceId = resourceId;
+            this.subscriptionId = subscriptionId;
+            this.paramIndex = paramIndex;
+        }
+
+        public String getDataSourceId() {
+            return dataSourceId;
+        }
+
+        /**
+         * Returns the relative, unversioned id of the subscription resource (e.g.,
+         * Subscription/123).
+         *
+         * @return The id of the subscription resource.
+         */
+        public String getResourceId() {
+            return resourceId;
+        }
+
+        public String getSubscriptionId() {
+            return subscriptionId;
+        }
+
+        public String getParamIndex() {
+            return paramIndex;
+        }
+
+    }
+
+    private final Path file;
+
+    /**
+     * @param file Location of the file that backs the registry.
+     */
+    public SubscriptionRegistry(String file) {
+        this.file = Paths.get(file);
+    }
+
+    /**
+     * Returns the registered subscriptions for a data source.
+     *
+     * @param dataSourceId The data source id.
+     * @return The registered subscriptions, indexed by the id of the subscription resource (empty
+     *         if the file does not exist or cannot be read).
+     */
+    public Map<String, Entry> getEntries(String dataSourceId) {
+        if (!Files.exists(file)) {
+            return Collections.emptyMap();
+        }
+
+        Map<String, Entry> entries = new HashMap<>();
+
+        try {
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                String[] pcs = line.split("\t", 4);
+
+                if (pcs.length == 4 && pcs[0].equals(dataSourceId)) {
+                    entries.put(pcs[1], new Entry(pcs[0], pcs[1], pcs[2], pcs[3]));
+                }
+            }
+        } catch (IOException e) {
+            log.error("Error reading subscription registry " + file, e);
+            return Collections.emptyMap();
+        }
+
+        return entries;
+    }
+
+    /**
+     * Replaces the contents of the registry.
+     *
+     * @param entries The subscriptions to register.
+     */
+    public void save(Collection<Entry> entries) {
+        List<String> lines = new ArrayList<>(entries.size());
+
+        for (Entry entry : entries) {
+            lines.add(entry.dataSourceId + "\t" + entry.resourceId + "\t" + entry.subscriptionId + "\t" + entry.paramIndex);
+        }
+
+        try {
+            Path parent = file.toAbsolutePath().getParent();
+            Files.createDirectories(parent);
+            Path temp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+            Files.write(temp, lines, StandardCharsets.UTF_8);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.error("Error writing subscription registry " + file, e);
+        }
+    }
+
+}
@@ -0,0 +1,147 @@
+/*
+ * #%L
+ * Fujion Clinical Framework
+ * %%
+ * Copyright (C) 2020 fujionclinical.org
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.fujionclinical.org/licensing/disclaimer
+ *
+ * #L%
+ */
+package org.fujionclinical.fhir.subscription.common;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class SubscriptionCoalescerTest {
+
+    private static final FhirContext fhirContext = FhirContext.forR4();
+
+    private static class Published {
+
+        private final String eventName;
+
+        private final int size;
+
+        private Published(
+                String eventName,
+                SubscriptionBatch batch) {
+            this.eventName = eventName;
+            this.size = batch.size();
+        }
+
+    }
+
+    private final BlockingQueue<Published> published = new LinkedBlockingQueue<>();
+
+    private SubscriptionCoalescer createCoalescer(
+            long window,
+            int maxBatchSize) {
+        return new SubscriptionCoalescer(window, maxBatchSize,
+                (eventName, batch) -> published.add(new Published(eventName, batch)));
+    }
+
+    private static SubscriptionPayload createPayload() {
+        return new SubscriptionPayload(null, null, fhirContext);
+    }
+
+    private void assertPublished(
+            String eventName,
+            int size,
+            long timeout) throws InterruptedException {
+        Published batch = published.poll(timeout, TimeUnit.MILLISECONDS);
+        assertNotNull("Batch was not published", batch);
+        assertEquals(eventName, batch.eventName);
+        assertEquals(size, batch.size);
+    }
+
+    private void assertNotPublished(long timeout) throws InterruptedException {
+        assertNull("Batch was published early", published.poll(timeout, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testNoWindow() throws InterruptedException {
+        SubscriptionCoalescer coalescer = createCoalescer(0, 0);
+        coalescer.submit("a", createPayload());
+        coalescer.submit("a", createPayload());
+        assertPublished("a", 1, 0);
+        assertPublished("a", 1, 0);
+    }
+
+    @Test
+    public void testWindow() throws InterruptedException {
+        SubscriptionCoalescer coalescer = createCoalescer(500, 0);
+        coalescer.submit("a", createPayload());
+        coalescer.submit("b", createPayload());
+        coalescer.submit("a", createPayload());
+        assertNotPublished(200);
+        Published first = published.poll(1000, TimeUnit.MILLISECONDS);
+        Published second = published.poll(1000, TimeUnit.MILLISECONDS);
+        assertNotNull(first);
+        assertNotNull(second);
+        assertEquals(3, first.size + second.size);
+        assertNotPublished(200);
+    }
+
+    @Test
+    public void testFlush() throws InterruptedException {
+        SubscriptionCoalescer coalescer = createCoalescer(60000, 0);
+        coalescer.submit("a", createPayload());
+        coalescer.submit("a", createPayload());
+        coalescer.flush();
+        assertPublished("a", 2, 0);
+    }
+
+    @Test
+    public void testMaxBatchSize() throws InterruptedException {
+        SubscriptionCoalescer coalescer = createCoalescer(1000, 2);
+        coalescer.submit("a", createPayload());
+        coalescer.submit("a", createPayload());
+        // A full batch is published at once.
+        assertPublished("a", 2, 0);
+        Thread.sleep(500);
+        coalescer.submit("a", createPayload());
+        // The timer of the batch published early must not publish the next batch before its own
+        // window closes.
+        assertNotPublished(800);
+        assertPublished("a", 1, 2000);
+    }
+
+    @Test
+    public void testShutdown() throws InterruptedException {
+        SubscriptionCoalescer coalescer = createCoalescer(60000, 0);
+        coalescer.submit("a", createPayload());
+        coalescer.submit("a", createPayload());
+        coalescer.shutdown();
+        // Pending batches are published on shutdown.
+        assertPublished("a", 2, 0);
+        // Later notifications are published at once.
+        coalescer.submit("a", createPayload());
+        assertPublished("a", 1, 0);
+        assertNotPublished(100);
+    }
+
+}
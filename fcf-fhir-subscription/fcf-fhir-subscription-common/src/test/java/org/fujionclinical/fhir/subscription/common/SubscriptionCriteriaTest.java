@@ -0,0 +1,130 @@
+/*
+ * #%L
+ * Fujion Clinical Framework
+ * %%
+ * Copyright (C) 2020 fujionclinical.org
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.fujionclinical.org/licensing/disclaimer
+ *
+ * #L%
+ */
+package org.fujionclinical.fhir.subscription.common;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.*;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SubscriptionCriteriaTest {
+
+    private static final FhirContext fhirContext = FhirContext.forR4();
+
+    private static SubscriptionCriteria parse(String criteria) {
+        return SubscriptionCriteria.parse(criteria, fhirContext);
+    }
+
+    private static Observation createObservation(
+            String subject,
+            String system,
+            String code) {
+        Observation observation = new Observation();
+        observation.setStatus(Observation.ObservationStatus.FINAL);
+        observation.setSubject(new Reference(subject));
+        observation.getCode().addCoding().setSystem(system).setCode(code);
+        return observation;
+    }
+
+    @Test
+    public void testParse() {
+        SubscriptionCriteria criteria = parse("Observation?subject=Patient/123&code=1234-5");
+        assertNotNull(criteria);
+        assertEquals("Observation", criteria.getResourceType());
+        assertEquals("Observation?subject=Patient/123&code=1234-5", criteria.getCriteria());
+    }
+
+    @Test
+    public void testUnsupported() {
+        assertNull("No parameters", parse("Observation"));
+        assertNull("No parameters", parse("Observation?"));
+        assertNull("Not a resource type", parse("observation?code=1"));
+        assertNull("Unknown resource type", parse("Unknown?code=1"));
+        assertNull("Unknown parameter", parse("Observation?unknown=1"));
+        assertNull("Modifier", parse("Observation?code:not=1"));
+        assertNull("Chain", parse("Observation?subject.name=Smith"));
+        assertNull("Quantity parameter", parse("Observation?value-quantity=5"));
+        assertNull("Date parameter", parse("Observation?date=2020"));
+        assertNull("Empty code", parse("Observation?code=http://loinc.org|"));
+    }
+
+    @Test
+    public void testReference() {
+        Observation observation = createObservation("Patient/123", "http://loinc.org", "1234-5");
+        assertTrue(parse("Observation?subject=Patient/123").matches(observation));
+        assertTrue(parse("Observation?subject=123").matches(observation));
+        assertTrue(parse("Observation?subject=Patient/999,Patient/123").matches(observation));
+        assertFalse(parse("Observation?subject=Group/123").matches(observation));
+        assertFalse(parse("Observation?subject=Patient/999").matches(observation));
+        // The patient parameter is restricted to references to patients.
+        assertTrue(parse("Observation?patient=123").matches(observation));
+        assertFalse(parse("Observation?patient=123").matches(createObservation("Group/123", null, "1234-5")));
+    }
+
+    @Test
+    public void testToken() {
+        Observation observation = createObservation("Patient/123", "http://loinc.org", "1234-5");
+        assertTrue(parse("Observation?code=1234-5").matches(observation));
+        assertTrue(parse("Observation?code=http://loinc.org|1234-5").matches(observation));
+        assertTrue(parse("Observation?code=http%3A%2F%2Floinc.org%7C1234-5").matches(observation));
+        assertTrue(parse("Observation?code=9999-9,1234-5").matches(observation));
+        assertFalse(parse("Observation?code=http://snomed.info/sct|1234-5").matches(observation));
+        assertFalse(parse("Observation?code=|1234-5").matches(observation));
+        assertTrue(parse("Observation?code=|1234-5").matches(createObservation("Patient/123", null, "1234-5")));
+        assertFalse(parse("Observation?code=9999-9").matches(observation));
+        // Primitive codes match without a system.
+        assertTrue(parse("Observation?status=final").matches(observation));
+        assertFalse(parse("Observation?status=preliminary").matches(observation));
+    }
+
+    @Test
+    public void testIdentifier() {
+        Patient patient = new Patient();
+        patient.addIdentifier().setSystem("urn:mrn").setValue("A1");
+        assertTrue(parse("Patient?identifier=urn:mrn|A1").matches(patient));
+        assertTrue(parse("Patient?identifier=A1").matches(patient));
+        assertFalse(parse("Patient?identifier=urn:other|A1").matches(patient));
+    }
+
+    @Test
+    public void testAllParametersMustMatch() {
+        SubscriptionCriteria criteria = parse("Observation?subject=Patient/123&code=1234-5");
+        assertTrue(criteria.matches(createObservation("Patient/123", "http://loinc.org", "1234-5")));
+        assertFalse(criteria.matches(createObservation("Patient/123", "http://loinc.org", "9999-9")));
+        assertFalse(criteria.matches(createObservation("Patient/999", "http://loinc.org", "1234-5")));
+    }
+
+    @Test
+    public void testResourceType() {
+        SubscriptionCriteria criteria = parse("Observation?subject=Patient/123");
+        Condition condition = new Condition();
+        condition.setSubject(new Reference("Patient/123"));
+        assertFalse(criteria.matches(condition));
+        assertFalse(criteria.matches(null));
+    }
+
+}
@@ -0,0 +1,108 @@
+/*
+ * #%L
+ * Fujion Clinical Framework
+ * %%
+ * Copyright (C) 2020 fujionclinical.org
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.fujionclinical.org/licensing/disclaimer
+ *
+ * #L%
+ */
+package org.fujionclinical.fhir.subscription.common;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.Subscription;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SubscriptionInitializerTest {
+
+    private static final FhirContext fhirContext = FhirContext.forR4();
+
+    /**
+     * A wrapper whose subscription resource is "created" without a server.
+     */
+    private static class TestWrapper extends BaseSubscriptionWrapper<Subscription> {
+
+        private final boolean succeed;
+
+        private TestWrapper(boolean succeed) {
+            super(new Subscription(), "test", null);
+            this.succeed = succeed;
+        }
+
+        @Override
+        protected String getCriteria() {
+            return "Patient?";
+        }
+
+        @Override
+        protected List<SubscriptionPayload> create() {
+            if (!succeed) {
+                throw new IllegalStateException("Create failed");
+            }
+
+            return activate("Subscription/1");
+        }
+
+    }
+
+    private final List<List<SubscriptionPayload>> activated = new ArrayList<>();
+
+    private final List<BaseSubscriptionWrapper<?>> failed = new ArrayList<>();
+
+    private SubscriptionInitializer createInitializer() {
+        return new SubscriptionInitializer(0, (wrapper, buffered) -> activated.add(buffered), failed::add);
+    }
+
+    @Test
+    public void testCreate() {
+        TestWrapper wrapper = new TestWrapper(true);
+        SubscriptionPayload payload = new SubscriptionPayload(null, null, fhirContext);
+        // Notifications received while pending are buffered and delivered upon activation.
+        assertTrue(wrapper.buffer(payload));
+        createInitializer().submit(wrapper);
+        assertEquals(BaseSubscriptionWrapper.State.ACTIVE, wrapper.getState());
+        assertEquals(1, activated.size());
+        assertEquals(List.of(payload), activated.get(0));
+        assertEquals("Subscription/1", wrapper.getSubscription().getId());
+        assertFalse(wrapper.buffer(payload));
+        assertTrue(failed.isEmpty());
+    }
+
+    @Test
+    public void testCreateFailure() {
+        TestWrapper wrapper = new TestWrapper(false);
+
+        // Without batching, the error is thrown to the submitting thread.
+        try {
+            createInitializer().submit(wrapper);
+            fail("Expected an exception");
+        } catch (IllegalStateException e) {
+            assertEquals("Create failed", e.getMessage());
+        }
+
+        assertTrue(activated.isEmpty());
+        assertEquals(BaseSubscriptionWrapper.State.PENDING, wrapper.getState());
+    }
+
+}
@@ -0,0 +1,86 @@
+/*
+ * #%L
+ * Fujion Clinical Framework
+ * %%
+ * Copyright (C) 2020 fujionclinical.org
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This Source Code Form is also subject to the terms of the Health-Related
+ * Additional Disclaimer of Warranty and Limitation of Liability available at
+ *
+ *      http://www.fujionclinical.org/licensing/disclaimer
+ *
+ * #L%
+ */
+package org.fujionclinical.fhir.subscription.common;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.*;
+import org.junit.Test;
+
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SubscriptionPollerTest {
+
+    private static final FhirContext fhirContext = FhirContext.forR4();
+
+    private static Bundle createBundle(Date lastUpdated) {
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.SEARCHSET);
+        bundle.getMeta().setLastUpdated(lastUpdated);
+        return bundle;
+    }
+
+    private static void addEntry(
+            Bundle bundle,
+            Resource resource,
+            String id,
+            Date lastUpdated) {
+        resource.setId(id);
+        resource.getMeta().setLastUpdated(lastUpdated);
+        bundle.addEntry().setResource(resource);
+    }
+
+    @Test
+    public void testWatermarkFromLatestResource() {
+        Bundle bundle = createBundle(new Date(5000));
+        addEntry(bundle, new Observation(), "Observation/1/_history/2", new Date(2000));
+        Set<String> seen = new HashSet<>();
+        assertEquals(2000, SubscriptionPoller.getWatermark(fhirContext, bundle, "Observation", seen));
+        assertEquals(Set.of("Observation/1/_history/2"), seen);
+    }
+
+    @Test
+    public void testWatermarkFromBundle() {
+        // Included resources of other types are not considered.
+        Bundle bundle = createBundle(new Date(5000));
+        addEntry(bundle, new Patient(), "Patient/1/_history/1", new Date(2000));
+        Set<String> seen = new HashSet<>();
+        assertEquals(5000, SubscriptionPoller.getWatermark(fhirContext, bundle, "Observation", seen));
+        assertTrue(seen.isEmpty());
+    }
+
+    @Test
+    public void testWatermarkWithoutServerTime() {
+        Set<String> seen = new HashSet<>();
+        assertEquals(0, SubscriptionPoller.getWatermark(fhirContext, createBundle(null), "Observation", seen));
+        assertTrue(seen.isEmpty());
+    }
+
+}
@@ -34,6 +34,7 @@ import org.coolmodel.mediator.fhir.dstu2.common.Dstu2Utils;
 import org.fujionclinical.fhir.subscription.common.BaseSubscriptionFactory;
 import org.fujionclinical.fhir.subscription.common.BaseSubscriptionWrapper;
 import org.fujionclinical.fhir.subscription.common.ResourceSubscriptionService;
+import org.hl7.fhir.instance.model.api.IBaseResource;
 
 import java.util.Collections;
 
@@ -65,7 +66,15 @@ public class SubscriptionFactory extends BaseSubscriptionFactory {
         subscription.setChannel(channel);
         subscription.setStatus(SubscriptionStatusEnum.REQUESTED);
         subscription.setTag(Collections.singletonList(new CodingDt(tag.getCodeSystemAsString(), tag.getCode())));
-        return wrapper.initialize();
+        return wrapper;
+    }
+
+    @Override
+    protected BaseSubscriptionWrapper adopt(
+            String paramIndex,
+            String subscriptionId,
+            IBaseResource subscription) {
+        return new SubscriptionWrapper((Subscription) subscription, subscriptionId, paramIndex, getDataSource());
     }
 
 }
@@ -30,6 +30,7 @@ import org.coolmodel.mediator.fhir.r4.common.R4Utils;
 import org.fujionclinical.fhir.subscription.common.BaseSubscriptionFactory;
 import org.fujionclinical.fhir.subscription.common.BaseSubscriptionWrapper;
 import org.fujionclinical.fhir.subscription.common.ResourceSubscriptionService;
+import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.Subscription;
 
 public class SubscriptionFactory extends BaseSubscriptionFactory {
@@ -60,7 +61,15 @@ public class SubscriptionFactory extends BaseSubscriptionFactory {
         subscription.setChannel(channel);
         subscription.setStatus(Subscription.SubscriptionStatus.REQUESTED);
         subscription.getMeta().addTag(tag.getCodeSystemAsString(), tag.getCode(), tag.getPreferredName());
-        return wrapper.initialize();
+        return wrapper;
+    }
+
+    @Override
+    protected BaseSubscriptionWrapper adopt(
+            String paramIndex,
+            String subscriptionId,
+            IBaseResource subscription) {
+        return new SubscriptionWrapper((Subscription) subscription, subscriptionId, paramIndex, getDataSource());
     }
 
 }
@@ -46,6 +46,20 @@ public class SubscriptionWrapper extends BaseSubscriptionWrapper<Subscription> {
         super(subscription, paramIndex, dataSource);
     }
 
+    /**
+     * Create a wrapper for an existing subscription resource.
+     *
+     * @param subscriptionId The unique subscription id assigned when the resource was created.
+     * @param paramIndex     The index for looking up by criteria/payload type.
+     */
+    /*package*/ SubscriptionWrapper(
+            Subscription subscription,
+            String subscriptionId,
+            String paramIndex,
+            AbstractFhirDataSource dataSource) {
+        super(subscription, subscriptionId, paramIndex, dataSource);
+    }
+
     /**
      * Return the subscription criteria.
      *
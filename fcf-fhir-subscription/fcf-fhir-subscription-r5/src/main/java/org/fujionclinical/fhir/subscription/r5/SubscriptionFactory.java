@@ -30,6 +30,7 @@ import org.coolmodel.mediator.fhir.r5.common.R5Utils;
 import org.fujionclinical.fhir.subscription.common.BaseSubscriptionFactory;
 import org.fujionclinical.fhir.subscription.common.BaseSubscriptionWrapper;
 import org.fujionclinical.fhir.subscription.common.ResourceSubscriptionService;
+import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r5.model.Subscription;
 
 public class SubscriptionFactory extends BaseSubscriptionFactory {
@@ -64,7 +65,15 @@ public class SubscriptionFactory extends BaseSubscriptionFactory {
         subscription = (Subscription) client.create().resource(subscription).prefer(PreferReturnEnum.REPRESENTATION)
                 .execute().getResource();
          */
-        return wrapper.initialize();
+        return wrapper;
+    }
+
+    @Override
+    protected BaseSubscriptionWrapper adopt(
+            String paramIndex,
+            String subscriptionId,
+            IBaseResource subscription) {
+        return new SubscriptionWrapper((Subscription) subscription, subscriptionId, paramIndex, getDataSource());
     }
 
 }
@@ -31,6 +31,7 @@ import org.fujionclinical.fhir.subscription.common.BaseSubscriptionFactory;
 import org.fujionclinical.fhir.subscription.common.BaseSubscriptionWrapper;
 import org.fujionclinical.fhir.subscription.common.ResourceSubscriptionService;
 import org.hl7.fhir.dstu3.model.Subscription;
+import org.hl7.fhir.instance.model.api.IBaseResource;
 
 public class SubscriptionFactory extends BaseSubscriptionFactory {
 
@@ -60,7 +61,15 @@ public class SubscriptionFactory extends BaseSubscriptionFactory {
         subscription.setChannel(channel);
         subscription.setStatus(Subscription.SubscriptionStatus.REQUESTED);
         subscription.getMeta().addTag(tag.getCodeSystemAsString(), tag.getCode(), tag.getPreferredName());
-        return wrapper.initialize();
+        return wrapper;
+    }
+
+    @Override
+    protected BaseSubscriptionWrapper adopt(
+            String paramIndex,
+            String subscriptionId,
+            IBaseResource subscription) {
+        return new SubscriptionWrapper((Subscription) subscription, subscriptionId, paramIndex, getDataSource());
     }
 
 }